@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snappdf;
+import java.util.*;
+
+/**
+ * A List for a PDF array. Numeric arrays (the vast majority, like /Widths, /W, /MediaBox or /Matrix) are stored as
+ * primitive int[] or double[] instead of boxed values, and can be read without boxing with getInt()/getDouble() or as
+ * an int[]/float[]. An array that gets a non-numeric item switches to plain object storage.
+ * <p>
+ * Like ArrayList, this class isn't synchronized.
+ */
+public class PDFArray extends AbstractList<Object> implements RandomAccess {
+
+    // The items: one of int[], double[] or Object[], depending on mode
+    private int _ints[];
+    private double _reals[];
+    private Object _items[];
+
+    // For double[] storage, the bits of items that are reals (the rest are ints)
+    private long _realBits[];
+
+    // The number of items
+    private int _size;
+
+    // The number of the indirect object this array is the value of (or 0)
+    private int _objectNumber;
+
+    /**
+     * Creates a new PDFArray.
+     */
+    public PDFArray()
+    {
+        _ints = new int[4];
+    }
+
+    /**
+     * Creates a new PDFArray with items of given collection.
+     */
+    public PDFArray(Collection<?> theItems)
+    {
+        this();
+        addAll(theItems);
+    }
+
+    /**
+     * Returns the number of items.
+     */
+    public int size()  { return _size; }
+
+    /**
+     * Returns the number of the indirect object this array is the value of (or 0 if direct or not read from file).
+     */
+    public int getObjectNumber()  { return _objectNumber; }
+
+    /**
+     * Sets the number of the indirect object this array is the value of.
+     */
+    void setObjectNumber(int aNum)  { _objectNumber = aNum; }
+
+    /**
+     * Returns the item at given index (numbers are boxed as Integer or Double, as parsed).
+     */
+    public Object get(int anIndex)
+    {
+        checkIndex(anIndex);
+        if (_ints != null)
+            return _ints[anIndex];
+        if (_reals != null)
+            return isReal(anIndex) ? (Object) _reals[anIndex] : (Object) (int) _reals[anIndex];
+        return _items[anIndex];
+    }
+
+    /**
+     * Returns whether array is all numbers.
+     */
+    public boolean isNumeric()  { return _items == null; }
+
+    /**
+     * Returns the item at given index as int (or 0 if not a number).
+     */
+    public int getInt(int anIndex)
+    {
+        checkIndex(anIndex);
+        if (_ints != null) return _ints[anIndex];
+        if (_reals != null) return (int) _reals[anIndex];
+        return _items[anIndex] instanceof Number ? ((Number) _items[anIndex]).intValue() : 0;
+    }
+
+    /**
+     * Returns the item at given index as double (or 0 if not a number).
+     */
+    public double getDouble(int anIndex)
+    {
+        checkIndex(anIndex);
+        if (_ints != null) return _ints[anIndex];
+        if (_reals != null) return _reals[anIndex];
+        return _items[anIndex] instanceof Number ? ((Number) _items[anIndex]).doubleValue() : 0;
+    }
+
+    /**
+     * Returns the items as a new int array (or null if not all numbers).
+     */
+    public int[] getIntArray()
+    {
+        if (_ints != null)
+            return Arrays.copyOf(_ints, _size);
+        if (_reals == null)
+            return null;
+        int array[] = new int[_size];
+        for (int i = 0; i < _size; i++)
+            array[i] = (int) _reals[i];
+        return array;
+    }
+
+    /**
+     * Returns the items as a new float array (or null if not all numbers).
+     */
+    public float[] getFloatArray()
+    {
+        if (_items != null)
+            return null;
+        float array[] = new float[_size];
+        for (int i = 0; i < _size; i++)
+            array[i] = _ints != null ? _ints[i] : (float) _reals[i];
+        return array;
+    }
+
+    /**
+     * Sets the item at given index.
+     */
+    public Object set(int anIndex, Object anObj)
+    {
+        Object old = get(anIndex);
+        setImpl(anIndex, anObj);
+        return old;
+    }
+
+    /**
+     * Adds an item at given index.
+     */
+    public void add(int anIndex, Object anObj)
+    {
+        if (anIndex < 0 || anIndex > _size)
+            throw new IndexOutOfBoundsException("Index: " + anIndex + ", Size: " + _size);
+
+        // Make room and shift items after index
+        int length = _ints != null ? _ints.length : _reals != null ? _reals.length : _items.length;
+        if (_size == length)
+            setCapacity(Math.max(length * 2, 4));
+        Object array = _ints != null ? _ints : _reals != null ? _reals : _items;
+        System.arraycopy(array, anIndex, array, anIndex + 1, _size - anIndex);
+        if (_realBits != null)
+            for (int i = _size; i > anIndex; i--)
+                setReal(i, isReal(i - 1));
+        _size++;
+        modCount++;
+
+        // Set item
+        setImpl(anIndex, anObj);
+    }
+
+    /**
+     * Removes the item at given index.
+     */
+    public Object remove(int anIndex)
+    {
+        Object old = get(anIndex);
+        Object array = _ints != null ? _ints : _reals != null ? _reals : _items;
+        System.arraycopy(array, anIndex + 1, array, anIndex, _size - anIndex - 1);
+        if (_realBits != null)
+            for (int i = anIndex; i < _size - 1; i++)
+                setReal(i, isReal(i + 1));
+        _size--;
+        if (_items != null)
+            _items[_size] = null;
+        modCount++;
+        return old;
+    }
+
+    /**
+     * Sets the item at given index, changing storage if item doesn't fit.
+     */
+    private void setImpl(int anIndex, Object anObj)
+    {
+        // If Integer and storage is numeric, set int
+        if (anObj instanceof Integer && _items == null) {
+            int value = (Integer) anObj;
+            if (_ints != null) _ints[anIndex] = value;
+            else {
+                _reals[anIndex] = value;
+                setReal(anIndex, false);
+            }
+            return;
+        }
+
+        // If Double, switch ints to reals and set real
+        if (anObj instanceof Double && _items == null) {
+            if (_ints != null)
+                convertToReals();
+            _reals[anIndex] = (Double) anObj;
+            setReal(anIndex, true);
+            return;
+        }
+
+        // Otherwise switch to objects and set object
+        if (_items == null)
+            convertToObjects();
+        _items[anIndex] = anObj;
+    }
+
+    /**
+     * Converts int storage to double storage.
+     */
+    private void convertToReals()
+    {
+        _reals = new double[_ints.length];
+        for (int i = 0; i < _size; i++)
+            _reals[i] = _ints[i];
+        _realBits = new long[(_ints.length + 63) >> 6];
+        _ints = null;
+    }
+
+    /**
+     * Converts numeric storage to object storage.
+     */
+    private void convertToObjects()
+    {
+        int length = _ints != null ? _ints.length : _reals.length;
+        Object items[] = new Object[length];
+        for (int i = 0; i < _size; i++)
+            items[i] = get(i);
+        _items = items;
+        _ints = null;
+        _reals = null;
+        _realBits = null;
+    }
+
+    /**
+     * Sets storage capacity.
+     */
+    private void setCapacity(int aLength)
+    {
+        if (_ints != null) _ints = Arrays.copyOf(_ints, aLength);
+        else if (_reals != null) {
+            _reals = Arrays.copyOf(_reals, aLength);
+            _realBits = Arrays.copyOf(_realBits, (aLength + 63) >> 6);
+        }
+        else _items = Arrays.copyOf(_items, aLength);
+    }
+
+    /**
+     * Trims storage capacity to size.
+     */
+    public void trimToSize()
+    {
+        int length = _ints != null ? _ints.length : _reals != null ? _reals.length : _items.length;
+        if (length > _size)
+            setCapacity(_size);
+    }
+
+    /**
+     * Returns whether item at given index in double storage is real.
+     */
+    private boolean isReal(int anIndex)
+    {
+        return (_realBits[anIndex >> 6] & 1L << anIndex) != 0;
+    }
+
+    /**
+     * Sets whether item at given index in double storage is real.
+     */
+    private void setReal(int anIndex, boolean aValue)
+    {
+        if (aValue) _realBits[anIndex >> 6] |= 1L << anIndex;
+        else _realBits[anIndex >> 6] &= ~(1L << anIndex);
+    }
+
+    /**
+     * Checks given index.
+     */
+    private void checkIndex(int anIndex)
+    {
+        if (anIndex < 0 || anIndex >= _size)
+            throw new IndexOutOfBoundsException("Index: " + anIndex + ", Size: " + _size);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snappdf;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A class to provide random access to the bytes of a PDF file with long offsets. The bytes can come from a byte array
+ * or from a memory-mapped file, in which case only the pages of the file that are actually touched become resident.
+ */
+public abstract class PDFByteSource {
+
+    /**
+     * Returns the number of bytes in source.
+     */
+    public abstract long length();
+
+    /**
+     * Returns the byte at given index as an unsigned value (0-255).
+     */
+    public abstract int getByte(long anIndex);
+
+    /**
+     * Copies bytes from source starting at given index into given array.
+     */
+    public abstract void getBytes(long aStart, byte[] theBytes, int anOffset, int aLength);
+
+    /**
+     * Returns a copy of the bytes in given range.
+     */
+    public byte[] getBytes(long aStart, long aEnd)
+    {
+        long len = aEnd - aStart;
+        if (len < 0 || len > Integer.MAX_VALUE)
+            throw new PDFException("PDFByteSource.getBytes: Invalid range: " + aStart + " to " + aEnd);
+        byte[] bytes = new byte[(int) len];
+        getBytes(aStart, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Returns the backing array, if source is array based, so bytes can be read without copying.
+     */
+    public byte[] getArray()  { return null; }
+
+    /**
+     * Returns an input stream for the bytes in given range. Bytes are read from source as needed.
+     */
+    public InputStream getInputStream(long aStart, long aLength)
+    {
+        byte array[] = getArray();
+        if (array != null)
+            return new ByteArrayInputStream(array, (int) aStart, (int) aLength);
+        return new SourceInputStream(this, aStart, aStart + aLength);
+    }
+
+    /**
+     * Returns the index of given ASCII string, searching forward from given index (or -1 if not found).
+     */
+    public long indexOf(String aStr, long aStart)
+    {
+        int strLen = aStr.length();
+        char c0 = aStr.charAt(0);
+        for (long i = Math.max(aStart, 0), iMax = length() - strLen; i <= iMax; i++)
+            if (getByte(i) == c0 && matches(aStr, i))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Returns the last index of given ASCII string, searching backward from end (or -1 if not found).
+     */
+    public long lastIndexOf(String aStr)
+    {
+        return lastIndexOf(aStr, length() - aStr.length());
+    }
+
+    /**
+     * Returns the last index of given ASCII string, searching backward from given index (or -1 if not found).
+     */
+    public long lastIndexOf(String aStr, long aStart)
+    {
+        char c0 = aStr.charAt(0);
+        for (long i = Math.min(aStart, length() - aStr.length()); i >= 0; i--)
+            if (getByte(i) == c0 && matches(aStr, i))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Returns whether bytes at given index match given ASCII string.
+     */
+    public boolean matches(String aStr, long anIndex)
+    {
+        if (anIndex < 0 || anIndex + aStr.length() > length()) return false;
+        for (int i = 0, iMax = aStr.length(); i < iMax; i++)
+            if (getByte(anIndex + i) != aStr.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns a source for given byte array.
+     */
+    public static PDFByteSource getSourceForBytes(byte[] theBytes)
+    {
+        return new ArraySource(theBytes);
+    }
+
+    /**
+     * Returns a memory-mapped source for given file path.
+     */
+    public static PDFByteSource getSourceForPath(Path aPath) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(aPath, StandardOpenOption.READ)) {
+            return getSourceForChannel(channel);
+        }
+    }
+
+    /**
+     * Returns a memory-mapped source for given file channel. The mapping stays valid after the channel is closed.
+     */
+    public static PDFByteSource getSourceForChannel(FileChannel aChannel) throws IOException
+    {
+        return new MappedSource(aChannel);
+    }
+
+    /**
+     * A PDFByteSource for a byte array.
+     */
+    private static class ArraySource extends PDFByteSource {
+
+        // The bytes
+        private byte[] _bytes;
+
+        /**
+         * Creates a new ArraySource.
+         */
+        public ArraySource(byte[] theBytes)
+        {
+            _bytes = theBytes;
+        }
+
+        /**
+         * Override to return array length.
+         */
+        public long length()  { return _bytes.length; }
+
+        /**
+         * Override to return array byte.
+         */
+        public int getByte(long anIndex)  { return _bytes[(int) anIndex] & 0xff; }
+
+        /**
+         * Override to return array.
+         */
+        public byte[] getArray()  { return _bytes; }
+
+        /**
+         * Override to copy from array.
+         */
+        public void getBytes(long aStart, byte[] theBytes, int anOffset, int aLength)
+        {
+            System.arraycopy(_bytes, (int) aStart, theBytes, anOffset, aLength);
+        }
+
+        /**
+         * Override to copy from array.
+         */
+        public byte[] getBytes(long aStart, long aEnd)
+        {
+            return Arrays.copyOfRange(_bytes, (int) aStart, (int) aEnd);
+        }
+    }
+
+    /**
+     * A PDFByteSource for a memory-mapped file. Since a single MappedByteBuffer is limited to 2 GB, the file is mapped
+     * in fixed size segments.
+     */
+    private static class MappedSource extends PDFByteSource {
+
+        // The file length
+        private long _length;
+
+        // The mapped segments
+        private MappedByteBuffer[] _segments;
+
+        // Constants for segment size
+        private static final int SEGMENT_SHIFT = 30;
+        private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+        /**
+         * Creates a new MappedSource.
+         */
+        public MappedSource(FileChannel aChannel) throws IOException
+        {
+            _length = aChannel.size();
+            int count = (int) ((_length + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            _segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                long size = Math.min(_length - start, 1L << SEGMENT_SHIFT);
+                _segments[i] = aChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+        }
+
+        /**
+         * Override to return file length.
+         */
+        public long length()  { return _length; }
+
+        /**
+         * Override to return byte from segment.
+         */
+        public int getByte(long anIndex)
+        {
+            return _segments[(int) (anIndex >>> SEGMENT_SHIFT)].get((int) (anIndex & SEGMENT_MASK)) & 0xff;
+        }
+
+        /**
+         * Override to copy from segments.
+         */
+        public void getBytes(long aStart, byte[] theBytes, int anOffset, int aLength)
+        {
+            while (aLength > 0) {
+                MappedByteBuffer segment = _segments[(int) (aStart >>> SEGMENT_SHIFT)];
+                int segOffset = (int) (aStart & SEGMENT_MASK);
+                int len = Math.min(aLength, segment.limit() - segOffset);
+                segment.get(segOffset, theBytes, anOffset, len);
+                aStart += len;
+                anOffset += len;
+                aLength -= len;
+            }
+        }
+    }
+
+    /**
+     * An InputStream for a range of a PDFByteSource.
+     */
+    private static class SourceInputStream extends InputStream {
+
+        // The source, current position and end position
+        private PDFByteSource _source;
+        private long _pos, _end;
+
+        /**
+         * Creates a new SourceInputStream.
+         */
+        public SourceInputStream(PDFByteSource aSource, long aStart, long anEnd)
+        {
+            _source = aSource;
+            _pos = aStart;
+            _end = anEnd;
+        }
+
+        /**
+         * Override to read byte from source.
+         */
+        public int read()
+        {
+            return _pos < _end ? _source.getByte(_pos++) : -1;
+        }
+
+        /**
+         * Override to copy bytes from source.
+         */
+        public int read(byte theBytes[], int anOffset, int aLength)
+        {
+            if (aLength == 0) return 0;
+            if (_pos >= _end) return -1;
+            int len = (int) Math.min(aLength, _end - _pos);
+            _source.getBytes(_pos, theBytes, anOffset, len);
+            _pos += len;
+            return len;
+        }
+
+        /**
+         * Override to return remaining bytes.
+         */
+        public int available()
+        {
+            return (int) Math.min(_end - _pos, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -1,4 +1,5 @@
 package snappdf;
+import java.io.InputStream;
 import java.util.Map;
 
 /**
@@ -14,6 +15,38 @@ public interface PDFCodec {
         throw new RuntimeException("PDFCode.decryptObject: Not implemented");
     }
 
+    /**
+     * Returns the given bytes of a string of given object decrypted (possibly in place).
+     */
+    default byte[] decryptBytes(byte theBytes[], int objNum, int generationNum)
+    {
+        throw new RuntimeException("PDFCode.decryptBytes: Not implemented");
+    }
+
+    /**
+     * Returns the given bytes of a stream of given object decrypted (possibly in place).
+     */
+    default byte[] decryptStreamBytes(byte theBytes[], int objNum, int generationNum)
+    {
+        throw new RuntimeException("PDFCode.decryptStreamBytes: Not implemented");
+    }
+
+    /**
+     * Returns whether a stream with given dictionary is encrypted.
+     */
+    default boolean isStreamEncrypted(Map aDict)
+    {
+        return true;
+    }
+
+    /**
+     * Returns an input stream that decrypts the given input stream of a stream of given object.
+     */
+    default InputStream getDecryptStream(InputStream anInput, int objNum, int generationNum)
+    {
+        throw new RuntimeException("PDFCode.getDecryptStream: Not implemented");
+    }
+
     /**
      * Called to cache shared encrypt values.
      */
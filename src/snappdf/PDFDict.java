@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snappdf;
+import java.util.*;
+
+/**
+ * A Map for a PDF dictionary. Entries are kept in insertion order in a single array of alternating keys and values, so
+ * small dicts (the vast majority) are found with a short scan - keys are usually interned names, so they mostly match
+ * by identity. Larger dicts add an open-addressed index of entry positions.
+ * <p>
+ * Values can be PDFLazy placeholders for large arrays and dictionaries, which are parsed when first accessed through
+ * get() or entrySet() - so callers always see the parsed value.
+ * <p>
+ * Reads don't lock: the entries array, size and index are published together as one immutable snapshot through a
+ * single volatile field. Writes are synchronized and publish a new snapshot (entries of an array that readers may be
+ * using are never changed, only slots past its size are filled), so a dict shared between threads can be changed
+ * safely.
+ */
+public class PDFDict extends AbstractMap<String, Object> {
+
+    // The current entries snapshot
+    private volatile Snapshot _snapshot;
+
+    // The number of the indirect object this dict is the value of (or 0)
+    private int _objectNumber;
+
+    // Constant for the max number of entries to find without index
+    private static final int INDEX_MIN = 8;
+
+    // Constant for empty snapshot
+    private static final Snapshot EMPTY = new Snapshot(new Object[0], 0, null);
+
+    /**
+     * Creates a new PDFDict.
+     */
+    public PDFDict()
+    {
+        _snapshot = EMPTY;
+    }
+
+    /**
+     * Creates a new PDFDict with entries of given map.
+     */
+    public PDFDict(Map<String, ?> aMap)
+    {
+        _snapshot = EMPTY;
+        if (aMap instanceof PDFDict) {
+            Snapshot snap = ((PDFDict) aMap)._snapshot;
+            Object entries[] = Arrays.copyOf(snap.entries, Math.max(snap.size * 2, 8));
+            int index[] = snap.size > INDEX_MIN ? createIndex(entries, snap.size) : null;
+            _snapshot = new Snapshot(entries, snap.size, index);
+        }
+        else for (Map.Entry<String, ?> entry : aMap.entrySet())
+            put(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    public int size()  { return _snapshot.size; }
+
+    /**
+     * Returns the number of the indirect object this dict is the value of (or 0 if direct or not read from file).
+     */
+    public int getObjectNumber()  { return _objectNumber; }
+
+    /**
+     * Sets the number of the indirect object this dict is the value of.
+     */
+    void setObjectNumber(int aNum)  { _objectNumber = aNum; }
+
+    /**
+     * Returns whether dict contains given key.
+     */
+    public boolean containsKey(Object aKey)  { return _snapshot.indexOf(aKey) >= 0; }
+
+    /**
+     * Returns the value for given key (parsed, if lazy).
+     */
+    public Object get(Object aKey)
+    {
+        return PDFLazy.getValue(getRaw(aKey));
+    }
+
+    /**
+     * Returns the raw value for given key, which may be an unparsed PDFLazy.
+     */
+    public Object getRaw(Object aKey)
+    {
+        Snapshot snap = _snapshot;
+        int index = snap.indexOf(aKey);
+        return index >= 0 ? snap.entries[index * 2 + 1] : null;
+    }
+
+    /**
+     * Sets the value for given key (a null value removes key).
+     */
+    public synchronized Object put(String aKey, Object aValue)
+    {
+        // If null value, remove key
+        if (aValue == null)
+            return remove(aKey);
+
+        // If key exists, replace value in copy of entries
+        Snapshot snap = _snapshot;
+        int index = snap.indexOf(aKey);
+        if (index >= 0) {
+            Object entries[] = snap.entries.clone();
+            Object old = entries[index * 2 + 1];
+            entries[index * 2 + 1] = aValue;
+            _snapshot = new Snapshot(entries, snap.size, snap.index);
+            return PDFLazy.getValue(old);
+        }
+
+        // If full, replace entries with larger array
+        Object entries[] = snap.entries;
+        if (snap.size * 2 == entries.length)
+            entries = Arrays.copyOf(entries, Math.max(entries.length * 2, 8));
+
+        // Add entry past size of current snapshot
+        entries[snap.size * 2] = aKey;
+        entries[snap.size * 2 + 1] = aValue;
+        int size = snap.size + 1;
+
+        // Update index: Create new one if missing or too full, otherwise copy and add entry
+        int indexArray[] = snap.index;
+        if (size > INDEX_MIN && (indexArray == null || size * 2 > indexArray.length))
+            indexArray = createIndex(entries, size);
+        else if (indexArray != null) {
+            indexArray = indexArray.clone();
+            addToIndex(indexArray, aKey, size - 1);
+        }
+
+        // Publish new snapshot
+        _snapshot = new Snapshot(entries, size, indexArray);
+        return null;
+    }
+
+    /**
+     * Removes the value for given key (entries are copied to new array, since readers may be using current one).
+     */
+    public synchronized Object remove(Object aKey)
+    {
+        Snapshot snap = _snapshot;
+        int index = snap.indexOf(aKey);
+        if (index < 0) return null;
+        Object old = snap.entries[index * 2 + 1];
+
+        // Copy entries without removed entry
+        Object entries[] = new Object[snap.entries.length];
+        System.arraycopy(snap.entries, 0, entries, 0, index * 2);
+        System.arraycopy(snap.entries, index * 2 + 2, entries, index * 2, (snap.size - index - 1) * 2);
+        int size = snap.size - 1;
+
+        // Publish new snapshot
+        _snapshot = new Snapshot(entries, size, size > INDEX_MIN ? createIndex(entries, size) : null);
+        return PDFLazy.getValue(old);
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear()
+    {
+        _snapshot = EMPTY;
+    }
+
+    /**
+     * Returns the set of keys (without parsing values).
+     */
+    public Set<String> keySet()
+    {
+        return new AbstractSet<String>() {
+            public int size()  { return PDFDict.this.size(); }
+            public boolean contains(Object aKey)  { return containsKey(aKey); }
+            public Iterator<String> iterator()
+            {
+                EntryIterator iter = new EntryIterator();
+                return new Iterator<String>() {
+                    public boolean hasNext()  { return iter.hasNext(); }
+                    public String next()  { return iter.nextKey(); }
+                    public void remove()  { iter.remove(); }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns the set of entries (with values parsed, if lazy).
+     */
+    public Set<Entry<String, Object>> entrySet()
+    {
+        return new AbstractSet<Entry<String, Object>>() {
+            public int size()  { return PDFDict.this.size(); }
+            public Iterator<Entry<String, Object>> iterator()  { return new EntryIterator(); }
+        };
+    }
+
+    /**
+     * Returns a new index for given entries.
+     */
+    private static int[] createIndex(Object entries[], int aSize)
+    {
+        int indexArray[] = new int[Integer.highestOneBit(aSize * 4 - 1) << 1];
+        for (int i = 0; i < aSize; i++)
+            addToIndex(indexArray, entries[i * 2], i);
+        return indexArray;
+    }
+
+    /**
+     * Adds entry position for given key to given index.
+     */
+    private static void addToIndex(int indexArray[], Object aKey, int anIndex)
+    {
+        int mask = indexArray.length - 1;
+        int slot = hash(aKey) & mask;
+        while (indexArray[slot] != 0) slot = slot + 1 & mask;
+        indexArray[slot] = anIndex + 1;
+    }
+
+    /**
+     * Returns the spread hash code for given key.
+     */
+    private static int hash(Object aKey)
+    {
+        int h = aKey.hashCode();
+        return h ^ h >>> 16;
+    }
+
+    /**
+     * An iterator over a snapshot of entries.
+     */
+    private class EntryIterator implements Iterator<Entry<String, Object>> {
+
+        // The entries, size and next entry position
+        private Object _iterEntries[];
+        private int _iterSize;
+        private int _next;
+
+        /**
+         * Creates a new EntryIterator over current snapshot.
+         */
+        EntryIterator()
+        {
+            Snapshot snap = _snapshot;
+            _iterEntries = snap.entries;
+            _iterSize = snap.size;
+        }
+
+        /**
+         * Returns whether there is another entry.
+         */
+        public boolean hasNext()  { return _next < _iterSize; }
+
+        /**
+         * Returns the next key.
+         */
+        public String nextKey()
+        {
+            if (_next >= _iterSize) throw new NoSuchElementException();
+            return (String) _iterEntries[_next++ * 2];
+        }
+
+        /**
+         * Returns the next entry.
+         */
+        public Entry<String, Object> next()
+        {
+            String key = nextKey();
+            return new DictEntry(key, PDFLazy.getValue(_iterEntries[_next * 2 - 1]));
+        }
+
+        /**
+         * Removes the last entry.
+         */
+        public void remove()
+        {
+            if (_next == 0) throw new IllegalStateException();
+            PDFDict.this.remove(_iterEntries[_next * 2 - 2]);
+        }
+    }
+
+    /**
+     * An entry with parsed value, that sets dict value.
+     */
+    private class DictEntry extends SimpleEntry<String, Object> {
+
+        /**
+         * Creates a new DictEntry.
+         */
+        public DictEntry(String aKey, Object aValue)
+        {
+            super(aKey, aValue);
+        }
+
+        /**
+         * Override to set dict value.
+         */
+        public Object setValue(Object aValue)
+        {
+            put(getKey(), aValue);
+            return super.setValue(aValue);
+        }
+    }
+
+    /**
+     * The entries array, size and index of a dict, published together.
+     */
+    private static class Snapshot {
+
+        // The entries: key and value for each entry (slots past size may be filled by later snapshots)
+        final Object entries[];
+
+        // The number of entries
+        final int size;
+
+        // The index of entry positions (plus one) by key hash (null for small dicts)
+        final int index[];
+
+        /**
+         * Creates a new Snapshot.
+         */
+        Snapshot(Object theEntries[], int aSize, int theIndex[])
+        {
+            entries = theEntries;
+            size = aSize;
+            index = theIndex;
+        }
+
+        /**
+         * Returns the position of entry for given key (or -1 if not found).
+         */
+        int indexOf(Object aKey)
+        {
+            if (aKey == null) return -1;
+
+            // If index, probe it
+            if (index != null) {
+                int mask = index.length - 1;
+                for (int slot = hash(aKey) & mask; index[slot] != 0; slot = slot + 1 & mask) {
+                    int i = index[slot] - 1;
+                    Object key = entries[i * 2];
+                    if (key == aKey || key.equals(aKey))
+                        return i;
+                }
+                return -1;
+            }
+
+            // Scan keys for identical key, then for equal key
+            for (int i = 0; i < size; i++)
+                if (entries[i * 2] == aKey)
+                    return i;
+            for (int i = 0; i < size; i++)
+                if (aKey.equals(entries[i * 2]))
+                    return i;
+            return -1;
+        }
+    }
+}
@@ -1,6 +1,18 @@
 package snappdf;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
 import java.util.*;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.awt.Font;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+
+import snap.gfx.ColorSpace;
+import snappdf.read.GlyphMapper;
+import snappdf.read.PDFForm;
 import snappdf.write.PDFPageTree;
 
 /**
@@ -32,8 +44,14 @@ public class PDFFile {
     // The PDF file pages
     public Map _pagesDict;
 
+    // The linearization dict (if file is linearized)
+    protected Map _linearDict;
+
+    // The page index (created on first use)
+    private PDFPageIndex _pageIndex;
+
     // Cached PDFPage instances
-    Map<Integer, PDFPage> _pages = new Hashtable(4);
+    Map<Integer, PDFPage> _pages = new ConcurrentHashMap<>(4);
 
     // File identifier
     private byte _fileId[] = null;
@@ -42,6 +60,26 @@ public class PDFFile {
     // Pages tree
     public PDFPageTree _pageTree;
 
+    // Cache of decoded images (by image stream), weighted by pixel bytes
+    private PDFObjectCache<Image> _imageCache = new PDFObjectCache<>("Image", 128 << 20, img -> getImageBytes(img));
+
+    // Cache of decoded form xobjects (by form stream), weighted by stream bytes
+    private PDFObjectCache<PDFForm> _formCache = new PDFObjectCache<>("Form", 32 << 20, f -> f.getBytes().length);
+
+    // Caches of fonts, glyph mappers and glyph widths (by font dict)
+    private PDFObjectCache<Font> _fontCache = new PDFObjectCache<>("Font", 256);
+    private PDFObjectCache<GlyphMapper> _glyphMapperCache = new PDFObjectCache<>("GlyphMapper", 256);
+    private PDFObjectCache<Object> _glyphWidthsCache = new PDFObjectCache<>("GlyphWidths", 256);
+
+    // Cache of color spaces (by color space array)
+    private PDFObjectCache<ColorSpace> _colorSpaceCache = new PDFObjectCache<>("ColorSpace", 256);
+
+    // Cache of decoded page contents (by page dict), weighted by bytes
+    private PDFObjectCache<byte[]> _contentsCache = new PDFObjectCache<>("Contents", 16 << 20, b -> b.length);
+
+    // The number of pages before and after a page to prefetch
+    public static final int PREFETCH_RADIUS = 2;
+
     /**
      * Creates a new PDFFile.
      */
@@ -54,7 +92,24 @@ public class PDFFile {
      */
     public PDFFile(byte theBytes[])
     {
-        _reader = new PDFReader(this, theBytes);
+        this(PDFByteSource.getSourceForBytes(theBytes));
+    }
+
+    /**
+     * Creates a new PDFFile for given file path. The file is memory-mapped, so only the parts of the file that are
+     * actually read become resident.
+     */
+    public PDFFile(Path aPath)
+    {
+        this(getSourceForPath(aPath));
+    }
+
+    /**
+     * Creates a new PDFFile for given byte source.
+     */
+    public PDFFile(PDFByteSource aSource)
+    {
+        _reader = new PDFReader(this, aSource);
         _reader.readFile();
     }
 
@@ -131,6 +186,116 @@ public class PDFFile {
         return _xtable.getXRefObj(anObj);
     }
 
+    /**
+     * Sets a new value for given XRef, to be written by writeIncremental(). To change an object in place, get it with
+     * editXRefObj() instead.
+     */
+    public void setXRefObj(PDFXEntry anEntry, Object aValue)
+    {
+        _xtable.setXRefObj(anEntry.objectNumber, aValue);
+    }
+
+    /**
+     * Adds a new object (to be written by writeIncremental()) and returns its XRef, for use in other objects.
+     */
+    public PDFXEntry addXRefObj(Object aValue)
+    {
+        return _xtable.addXRefObj(aValue);
+    }
+
+    /**
+     * Returns the object for given XRef to be changed in place (like a page dict), so changes are written by
+     * writeIncremental(). The object is pinned in memory from then on - an object from getXRefObj() may be released
+     * from cache and read again, which would lose changes. Direct objects are changed through their containing object.
+     */
+    public Object editXRefObj(PDFXEntry anEntry)
+    {
+        return _xtable.editXRefObj(anEntry.objectNumber);
+    }
+
+    /**
+     * Writes this file with an incremental update: the original bytes followed by the changed and added objects and
+     * a new XRef section (see PDFIncrementalWriter).
+     */
+    public void writeIncremental(OutputStream anOut) throws IOException
+    {
+        new PDFIncrementalWriter(this).write(anOut);
+    }
+
+    /**
+     * Reads all compressed object streams (PDF 1.5+) in parallel with given executor. This can be called right after
+     * opening a file to decode the object streams up front on several cores.
+     */
+    public void readObjectStreams(Executor anExecutor)
+    {
+        _xtable.readObjectStreams(anExecutor);
+    }
+
+    /**
+     * Resolves the given references in one pass ordered by file offset (see PDFXTable.resolveAll()).
+     */
+    public int resolveAll(Collection<PDFXEntry> theRefs)
+    {
+        return _xtable.resolveAll(theRefs);
+    }
+
+    /**
+     * Resolves all references reachable from given object, up to given depth, with a batch read for each level. This
+     * is useful to read everything a page needs (like resources, fonts, font files and images) with sequential scans
+     * of the file instead of one random read per object. Parent links are not followed. Returns the number of objects
+     * read.
+     */
+    public int resolveReachable(Object anObj, int aDepth)
+    {
+        Set<PDFXEntry> visited = new HashSet<>();
+        List<Object> level = Collections.singletonList(anObj);
+        int readCount = 0;
+
+        // Iterate over levels: Get references from level objects, resolve in batch, then make next level from values
+        for (int depth = 0; depth <= aDepth && !level.isEmpty(); depth++) {
+            Set<PDFXEntry> refs = new LinkedHashSet<>();
+            for (Object obj : level)
+                addReferences(obj, refs, visited);
+            readCount += _xtable.resolveAll(refs);
+            level = new ArrayList<>(refs.size());
+            for (PDFXEntry ref : refs)
+                level.add(_xtable.getXRefObj(ref));
+        }
+
+        // Return number of objects read
+        return readCount;
+    }
+
+    /**
+     * Adds the references not yet visited in given object (and its direct sub-objects) to given set.
+     */
+    private static void addReferences(Object anObj, Set<PDFXEntry> theRefs, Set<PDFXEntry> theVisited)
+    {
+        // Handle reference
+        if (anObj instanceof PDFXEntry) {
+            if (theVisited.add((PDFXEntry) anObj))
+                theRefs.add((PDFXEntry) anObj);
+        }
+
+        // Handle stream: Add references in dict
+        else if (anObj instanceof PDFStream)
+            addReferences(((PDFStream) anObj).getDict(), theRefs, theVisited);
+
+        // Handle dict: Add references in values (but not Parent links)
+        else if (anObj instanceof Map) {
+            for (Map.Entry entry : (Set<Map.Entry>) ((Map) anObj).entrySet())
+                if (!"Parent".equals(entry.getKey()) && !"P".equals(entry.getKey()))
+                    addReferences(entry.getValue(), theRefs, theVisited);
+        }
+
+        // Handle list: Add references in items (numeric arrays have none)
+        else if (anObj instanceof List) {
+            if (anObj instanceof PDFArray && ((PDFArray) anObj).isNumeric()) return;
+            for (Object item : (List) anObj)
+                addReferences(item, theRefs, theVisited);
+        }
+    }
+
     /**
      * Returns the PDF reader.
      */
@@ -140,7 +305,15 @@ public class PDFFile {
     }
 
     /**
-     * Returns the PDF reader bytes.
+     * Returns the PDF reader byte source.
+     */
+    public PDFByteSource getSource()
+    {
+        return _reader.getSource();
+    }
+
+    /**
+     * Returns the PDF reader bytes. For a file opened from a path, this copies the whole file into memory.
      */
     public byte[] getBytes()
     {
@@ -160,19 +333,89 @@ public class PDFFile {
      */
     public int getPageCount()
     {
-        Object obj = _pagesDict.get("Count");
+        // If linearized, use page count from linearization dict
+        Object linCount = _linearDict != null ? _linearDict.get("N") : null;
+        if (linCount instanceof Number)
+            return ((Number) linCount).intValue();
+
+        // Return page tree count
+        Object obj = getPagesDict().get("Count");
         return (Integer) getXRefObj(obj); // Can Count really be a reference?
     }
 
+    /**
+     * Returns the root of the page tree.
+     */
+    public Map getPagesDict()
+    {
+        if (_pagesDict != null) return _pagesDict;
+        return _pagesDict = (Map) getXRefObj(_catalogDict.get("Pages"));
+    }
+
+    /**
+     * Returns the flat index of pages in the page tree.
+     */
+    public synchronized PDFPageIndex getPageIndex()
+    {
+        if (_pageIndex != null) return _pageIndex;
+        return _pageIndex = new PDFPageIndex(this);
+    }
+
+    /**
+     * Returns whether file is linearized ("Fast Web View"), so first page can be read without reading whole file.
+     */
+    public boolean isLinearized()  { return _linearDict != null; }
+
+    /**
+     * Returns the linearization dictionary (or null if file isn't linearized).
+     */
+    public Map getLinearizedDict()  { return _linearDict; }
+
+    /**
+     * Returns the first page dict given by linearization dict (or null if file isn't linearized).
+     */
+    public Map getLinearizedFirstPage()
+    {
+        Object objNum = _linearDict != null ? _linearDict.get("O") : null;
+        if (!(objNum instanceof Number)) return null;
+        Object page = getXRefObj(getXRef(((Number) objNum).intValue()));
+        return page instanceof Map ? (Map) page : null;
+    }
+
     /**
      * Returns an individual PDF page for the given page index.
      */
     public PDFPage getPage(int aPageIndex)
     {
         PDFPage page = _pages.get(aPageIndex);
-        if (page == null)
-            _pages.put(aPageIndex, page = new PDFPage(this, aPageIndex));
-        return page;
+        if (page != null)
+            return page;
+
+        // Create page and add (if another thread added page first, use that one)
+        page = new PDFPage(this, aPageIndex);
+        PDFPage page2 = _pages.putIfAbsent(aPageIndex, page);
+        return page2 != null ? page2 : page;
+    }
+
+    /**
+     * Prefetches the page at given index and the pages around it (PREFETCH_RADIUS pages before and after) with given
+     * executor. Call this when a viewer moves to a page, so the page and its likely next pages are read and decoded in
+     * the background. Returns the future for the given page (neighbor pages continue in the background).
+     */
+    public CompletableFuture<Void> prefetchPages(int aPageIndex, Executor anExecutor)
+    {
+        // Prefetch given page first, then neighbors from nearest to farthest
+        int pageCount = getPageCount();
+        CompletableFuture<Void> future = getPage(aPageIndex).prefetch(anExecutor);
+        for (int i = 1; i <= PREFETCH_RADIUS; i++) {
+            if (aPageIndex + i < pageCount)
+                getPage(aPageIndex + i).prefetch(anExecutor);
+            if (aPageIndex - i >= 0)
+                getPage(aPageIndex - i).prefetch(anExecutor);
+        }
+
+        // Return future for given page
+        return future;
     }
 
     /**
@@ -183,6 +426,71 @@ public class PDFFile {
         _pages.clear();
     }
 
+    /**
+     * Returns the cache of decoded images.
+     */
+    public PDFObjectCache<Image> getImageCache()  { return _imageCache; }
+
+    /**
+     * Returns the cache of decoded form xobjects.
+     */
+    public PDFObjectCache<PDFForm> getFormCache()  { return _formCache; }
+
+    /**
+     * Returns the cache of fonts.
+     */
+    public PDFObjectCache<Font> getFontCache()  { return _fontCache; }
+
+    /**
+     * Returns the cache of glyph mappers.
+     */
+    public PDFObjectCache<GlyphMapper> getGlyphMapperCache()  { return _glyphMapperCache; }
+
+    /**
+     * Returns the cache of glyph widths (float[] or PDFGlyphWidthTable).
+     */
+    public PDFObjectCache<Object> getGlyphWidthsCache()  { return _glyphWidthsCache; }
+
+    /**
+     * Returns the cache of color spaces.
+     */
+    public PDFObjectCache<ColorSpace> getColorSpaceCache()  { return _colorSpaceCache; }
+
+    /**
+     * Returns the cache of decoded page contents.
+     */
+    public PDFObjectCache<byte[]> getContentsCache()  { return _contentsCache; }
+
+    /**
+     * Returns all object caches (for statistics).
+     */
+    public List<PDFObjectCache<?>> getObjectCaches()
+    {
+        return Arrays.asList(_imageCache, _formCache, _fontCache, _glyphMapperCache, _glyphWidthsCache,
+            _colorSpaceCache, _contentsCache);
+    }
+
+    /**
+     * Clears all object caches.
+     */
+    public void clearObjectCaches()
+    {
+        for (PDFObjectCache<?> cache : getObjectCaches())
+            cache.clear();
+    }
+
+    /**
+     * Returns the approximate number of bytes for given image.
+     */
+    private static long getImageBytes(Image anImage)
+    {
+        if (anImage instanceof BufferedImage) {
+            BufferedImage image = (BufferedImage) anImage;
+            return (long) image.getWidth() * image.getHeight() * 4;
+        }
+        return 1024;
+    }
+
     /**
      * Returns the PDF file's info dictionary.
      */
@@ -275,4 +583,13 @@ public class PDFFile {
         sb.append('>');
         return sb.toString();
     }
+
+    /**
+     * Returns a memory-mapped byte source for given path.
+     */
+    private static PDFByteSource getSourceForPath(Path aPath)
+    {
+        try { return PDFByteSource.getSourceForPath(aPath); }
+        catch (IOException e) { throw new PDFException("PDFFile: Error opening file: " + aPath, e); }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snappdf;
+import java.io.*;
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.util.*;
+
+/**
+ * Writes a PDF file read from a source with an incremental update: the original bytes are copied verbatim, followed by
+ * the objects changed or added since the file was read (see PDFFile.setXRefObj(), editXRefObj() and addXRefObj()) and
+ * a new XRef section whose Prev points at the original one. So the cost of saving is the size of the changes, not of
+ * the file.
+ * <p>
+ * The new XRef section is a table or an XRef stream, matching the last section of the original file. Encrypted files
+ * aren't supported, since changed objects would need to be encrypted. Neither are files whose XRef table was rebuilt
+ * by scanning the file (see PDFXTable.isRebuilt()), since the new section's Prev would point at the damaged section -
+ * these need a full write.
+ */
+public class PDFIncrementalWriter extends PDFWriterBase {
+
+    // The PDF file
+    private PDFFile _pfile;
+
+    // The length of the original bytes (plus end of line added after them, if needed)
+    private long _baseLength;
+
+    // The trailer keys copied from original trailer
+    private static final String TRAILER_KEYS[] = { "Root", "Info", "ID" };
+
+    /**
+     * Creates a new PDFIncrementalWriter for given file.
+     */
+    public PDFIncrementalWriter(PDFFile aFile)
+    {
+        _pfile = aFile;
+    }
+
+    /**
+     * Writes the original bytes and the incremental update to given output stream.
+     */
+    public void write(OutputStream anOut) throws IOException
+    {
+        // Check file
+        PDFReader reader = _pfile._reader;
+        if (reader == null)
+            throw new PDFException("PDFIncrementalWriter: File wasn't read from a source");
+        if (_pfile._securityHandler != null)
+            throw new PDFException("PDFIncrementalWriter: Incremental update of encrypted file not supported");
+        if (_pfile.getXRefTable().isRebuilt())
+            throw new PDFException("PDFIncrementalWriter: XRef table of file was rebuilt - full write needed");
+
+        // Get original bytes and offset of last XRef section
+        PDFByteSource source = reader.getSource();
+        long sourceLength = source.length();
+        long startXRef = reader.readXRefTablePos();
+        if (startXRef < 0 || startXRef >= sourceLength)
+            throw new PDFException("PDFIncrementalWriter: XRef section of original file not found");
+        boolean isXRefStream = !source.matches("xref", startXRef);
+
+        // Copy original bytes, making sure they end with end of line
+        try (InputStream in = source.getInputStream(0, sourceLength)) {
+            in.transferTo(anOut);
+        }
+        int lastChar = sourceLength > 0 ? source.getByte(sourceLength - 1) : '\n';
+        if (lastChar != '\n' && lastChar != '\r')
+            appendln();
+        _baseLength = sourceLength + length();
+
+        // Write changed objects
+        PDFXTable xtable = _pfile.getXRefTable();
+        SortedMap<Integer, Object> changed = xtable.getChangedXRefObjs();
+        SortedMap<Integer, Long> offsets = new TreeMap<>();
+        for (Map.Entry<Integer, Object> entry : changed.entrySet()) {
+            int objNum = entry.getKey(), gen = getGeneration(objNum);
+            offsets.put(objNum, _baseLength + length());
+            append(objNum).append(' ').append(gen).appendln(" obj");
+            writeObject(entry.getValue());
+            appendln();
+            appendln("endobj");
+        }
+
+        // Get size: at least original trailer Size, count of all XRef sections (even if deferred) and last object + 1
+        xtable.readDeferredXRefs();
+        Map trailer0 = _pfile.getTrailer();
+        Object size0 = trailer0 != null ? _pfile.getXRefObj(trailer0.get("Size")) : null;
+        int size = Math.max(xtable.getXRefCount(), changed.isEmpty() ? 0 : changed.lastKey() + 1);
+        if (size0 instanceof Number)
+            size = Math.max(size, ((Number) size0).intValue());
+
+        // Write XRef section and trailer
+        if (isXRefStream)
+            writeXRefStream(offsets, size, startXRef);
+        else writeXRefTable(offsets, size, startXRef);
+
+        // Write update
+        _source.writeTo(anOut);
+    }
+
+    /**
+     * Writes an XRef table section for given object offsets, followed by trailer, startxref and end of file marker.
+     */
+    private void writeXRefTable(SortedMap<Integer, Long> theOffsets, int aSize, long aPrev)
+    {
+        // Write table: Each subsection is a run of consecutive object numbers (entries are 20 chars each)
+        long xrefOffset = _baseLength + length();
+        appendln("xref");
+        DecimalFormat format = new DecimalFormat("0000000000");
+        List<Integer> objNums = new ArrayList<>(theOffsets.keySet());
+        for (int i = 0, iMax = objNums.size(); i < iMax; ) {
+            int start = objNums.get(i), end = i + 1;
+            while (end < iMax && objNums.get(end) == objNums.get(end - 1) + 1) end++;
+            append(start).append(' ').append(end - i).appendln();
+            for (; i < end; i++) {
+                int objNum = objNums.get(i);
+                String gen = String.valueOf(100000 + getGeneration(objNum)).substring(1);
+                appendln(format.format(theOffsets.get(objNum)) + " " + gen + " n ");
+            }
+        }
+
+        // Write trailer
+        appendln("trailer");
+        writeObject(getTrailer(aSize, aPrev));
+        appendln();
+        appendln("startxref");
+        appendln(String.valueOf(xrefOffset));
+        appendln("%%EOF");
+    }
+
+    /**
+     * Writes an XRef stream for given object offsets, followed by startxref and end of file marker. The stream is an
+     * object itself, so it takes the next object number.
+     */
+    private void writeXRefStream(SortedMap<Integer, Long> theOffsets, int aSize, long aPrev)
+    {
+        // Add XRef stream object to offsets
+        int xrefNum = aSize;
+        long xrefOffset = _baseLength + length();
+        SortedMap<Integer, Long> offsets = new TreeMap<>(theOffsets);
+        offsets.put(xrefNum, xrefOffset);
+
+        // Get offset field width
+        int offsetWidth = 1;
+        while (offsetWidth < 8 && xrefOffset >>> (offsetWidth * 8) != 0) offsetWidth++;
+
+        // Get entries (type 1, offset, generation) and Index array of subsections
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        List<Object> index = new ArrayList<>();
+        int lastNum = -2;
+        for (Map.Entry<Integer, Long> entry : offsets.entrySet()) {
+            int objNum = entry.getKey(), gen = objNum == xrefNum ? 0 : getGeneration(objNum);
+            if (objNum != lastNum + 1) {
+                index.add(objNum);
+                index.add(0);
+            }
+            index.set(index.size() - 1, (Integer) index.get(index.size() - 1) + 1);
+            lastNum = objNum;
+            data.write(1);
+            for (int i = offsetWidth - 1; i >= 0; i--)
+                data.write((int) (entry.getValue() >>> (i * 8)));
+            data.write(gen >> 8);
+            data.write(gen);
+        }
+
+        // Get XRef stream dict (with trailer entries)
+        Map<String, Object> dict = new LinkedHashMap<>();
+        dict.put("Type", "/XRef");
+        dict.putAll(getTrailer(xrefNum + 1, aPrev));
+        dict.put("Index", index);
+        dict.put("W", Arrays.asList(1, offsetWidth, 2));
+
+        // Write XRef stream
+        append(xrefNum).appendln(" 0 obj");
+        writeObject(new PDFStream(data.toByteArray(), dict));
+        appendln();
+        appendln("endobj");
+        appendln("startxref");
+        appendln(String.valueOf(xrefOffset));
+        appendln("%%EOF");
+    }
+
+    /**
+     * Returns the trailer dict for update, with entries of original trailer.
+     */
+    private Map<String, Object> getTrailer(int aSize, long aPrev)
+    {
+        Map<String, Object> trailer = new LinkedHashMap<>();
+        trailer.put("Size", aSize);
+        Map trailer0 = _pfile.getTrailer();
+        for (String key : TRAILER_KEYS) {
+            Object value = trailer0 != null ? trailer0.get(key) : null;
+            if (value != null)
+                trailer.put(key, value);
+        }
+        trailer.put("Prev", aPrev);
+        return trailer;
+    }
+
+    /**
+     * Returns the generation number for given object.
+     */
+    private int getGeneration(int objNum)
+    {
+        return _pfile.getXRefTable().getObjectGeneration(objNum);
+    }
+
+    /**
+     * Writes a PDF object as read by PDFReader (strings and names are kept in PDF syntax, so they are written as is).
+     */
+    public void writeObject(Object anObj)
+    {
+        // Handle lazy value
+        if (anObj instanceof PDFLazy)
+            anObj = ((PDFLazy) anObj).getValue();
+
+        // Handle null
+        if (anObj == null)
+            append("null");
+
+        // Handle reference
+        else if (anObj instanceof PDFXEntry) {
+            int objNum = ((PDFXEntry) anObj).objectNumber;
+            append(objNum).append(' ').append(getGeneration(objNum)).append(" R");
+        }
+
+        // Handle strings, names and keywords
+        else if (anObj instanceof String)
+            append((String) anObj);
+
+        // Handle integers
+        else if (anObj instanceof Integer || anObj instanceof Long || anObj instanceof Short)
+            append(anObj.toString());
+
+        // Handle reals
+        else if (anObj instanceof Number) {
+            double value = ((Number) anObj).doubleValue();
+            if (Double.isNaN(value) || Double.isInfinite(value))
+                value = 0;
+            append(BigDecimal.valueOf(value).stripTrailingZeros().toPlainString());
+        }
+
+        // Handle boolean
+        else if (anObj instanceof Boolean)
+            append(anObj.toString());
+
+        // Handle stream
+        else if (anObj instanceof PDFStream)
+            writeStream((PDFStream) anObj);
+
+        // Handle dict
+        else if (anObj instanceof Map) {
+            appendln("<<");
+            for (Map.Entry entry : (Set<Map.Entry>) ((Map) anObj).entrySet()) {
+                append('/').append(entry.getKey().toString()).append(' ');
+                writeObject(entry.getValue());
+                appendln();
+            }
+            append(">>");
+        }
+
+        // Handle array
+        else if (anObj instanceof List) {
+            List list = (List) anObj;
+            append('[');
+            for (int i = 0, iMax = list.size(); i < iMax; i++) {
+                if (i > 0) append(' ');
+                writeObject(list.get(i));
+            }
+            append(']');
+        }
+
+        // Complain about anything else
+        else System.err.println("PDFIncrementalWriter: Unsupported PDF object: " + anObj.getClass().getName());
+    }
+
+    /**
+     * Writes a stream: the dict (with Length set to byte count), then the bytes as is (still encoded with filters).
+     */
+    public void writeStream(PDFStream aStream)
+    {
+        // Write dict with actual length
+        Map dict = new LinkedHashMap(aStream.getDict());
+        dict.put("Length", aStream.getLength());
+        writeObject(dict);
+
+        // Write bytes
+        appendln();
+        appendln("stream");
+        try (InputStream in = aStream.openRawStream()) {
+            in.transferTo(_source);
+        }
+        catch (IOException e) { throw new PDFException(e); }
+        appendln();
+        append("endstream");
+    }
+}
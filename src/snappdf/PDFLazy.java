@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snappdf;
+
+/**
+ * This class represents a dictionary value that hasn't been parsed yet. It just records where the value starts in the
+ * file, so large arrays and dictionaries that are never read (like /Widths, /W, /Kids or /Annots) are never turned
+ * into objects. The value is parsed on first access and then cached.
+ */
+public class PDFLazy {
+
+    // The PDF file
+    private PDFFile _pfile;
+
+    // The file position of the value
+    private long _start;
+
+    // The parsed value
+    private volatile Object _value;
+
+    // Whether value has been parsed
+    private volatile boolean _parsed;
+
+    /**
+     * Creates a new PDFLazy for value at given file position.
+     */
+    public PDFLazy(PDFFile aPF, long aStart)
+    {
+        _pfile = aPF;
+        _start = aStart;
+    }
+
+    /**
+     * Returns the file position of the value.
+     */
+    public long getStart()  { return _start; }
+
+    /**
+     * Returns whether value has been parsed.
+     */
+    public boolean isParsed()  { return _parsed; }
+
+    /**
+     * Returns the value, parsing it on first call (if two threads parse at once, they get equal values).
+     */
+    public Object getValue()
+    {
+        if (_parsed) return _value;
+
+        // Parse value with a new reader cursor
+        PDFReader reader = _pfile.getXRefTable().createReader();
+        reader.setCharIndex(_start);
+        Object value = reader.readObject();
+
+        // Cache value and return
+        _value = value;
+        _parsed = true;
+        return value;
+    }
+
+    /**
+     * Returns the value if given object is a lazy value, otherwise the object.
+     */
+    public static Object getValue(Object anObj)
+    {
+        return anObj instanceof PDFLazy ? ((PDFLazy) anObj).getValue() : anObj;
+    }
+
+    /**
+     * Standard toString implementation.
+     */
+    public String toString()  { return String.valueOf(getValue()); }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snappdf;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+/**
+ * A bounded cache of values created from PDF objects (like decoded images, fonts or color spaces). Values for the value
+ * of an indirect object are keyed by object number, so they are still found after the object is released from the
+ * XRef cache and read again. Values for direct objects are keyed weakly by identity of the object, so keys don't keep
+ * released objects in memory (their entries are dropped). When the total weight of values goes over the max, least
+ * recently used values are evicted.
+ */
+public class PDFObjectCache<V> {
+
+    // The name of the cache
+    private String _name;
+
+    // The max total weight of values
+    private long _maxWeight;
+
+    // The function that returns the weight of a value (null for weight 1)
+    private ToLongFunction<V> _weigher;
+
+    // The values by key (object number or IdentityKey) in access order
+    private LinkedHashMap<Object, Entry<V>> _values = new LinkedHashMap<>(16, .75f, true);
+
+    // The queue of identity keys whose objects were released
+    private ReferenceQueue<Object> _releasedKeys = new ReferenceQueue<>();
+
+    // The total weight of values
+    private long _weight;
+
+    // The number of hits, misses and evictions
+    private long _hits, _misses, _evictions;
+
+    /**
+     * Creates a new PDFObjectCache for given name and max number of values.
+     */
+    public PDFObjectCache(String aName, int aMaxCount)
+    {
+        this(aName, aMaxCount, null);
+    }
+
+    /**
+     * Creates a new PDFObjectCache for given name, max total weight and weigher.
+     */
+    public PDFObjectCache(String aName, long aMaxWeight, ToLongFunction<V> aWeigher)
+    {
+        _name = aName;
+        _maxWeight = aMaxWeight;
+        _weigher = aWeigher;
+    }
+
+    /**
+     * Returns the name.
+     */
+    public String getName()  { return _name; }
+
+    /**
+     * Returns the cached value for given object (or null if not cached).
+     */
+    public synchronized V get(Object anObj)
+    {
+        Entry<V> entry = anObj != null ? _values.get(getKey(anObj, null)) : null;
+        if (entry != null) _hits++;
+        else _misses++;
+        return entry != null ? entry._value : null;
+    }
+
+    /**
+     * Sets the cached value for given object (a null value removes it).
+     */
+    public synchronized void put(Object anObj, V aValue)
+    {
+        if (anObj == null) return;
+
+        // Remove entries of released objects
+        for (Object key = _releasedKeys.poll(); key != null; key = _releasedKeys.poll()) {
+            Entry<V> released = _values.remove(key);
+            if (released != null)
+                _weight -= released._weight;
+        }
+
+        // Remove old entry, if any
+        Object key = getKey(anObj, _releasedKeys);
+        Entry<V> old = _values.remove(key);
+        if (old != null)
+            _weight -= old._weight;
+        if (aValue == null)
+            return;
+
+        // Add new entry
+        long weight = _weigher != null ? Math.max(_weigher.applyAsLong(aValue), 1) : 1;
+        _values.put(key, new Entry<>(aValue, weight));
+        _weight += weight;
+
+        // Evict least recently used entries while over max (but always keep new entry)
+        Iterator<Entry<V>> iter = _values.values().iterator();
+        while (_weight > _maxWeight && _values.size() > 1) {
+            Entry<V> entry = iter.next();
+            iter.remove();
+            _weight -= entry._weight;
+            _evictions++;
+        }
+    }
+
+    /**
+     * Returns the key for given object: the object number if object is the value of an indirect object, otherwise an
+     * identity key (registered with given queue, if not just for lookup).
+     */
+    private static Object getKey(Object anObj, ReferenceQueue<Object> aQueue)
+    {
+        int objNum = anObj instanceof PDFDict ? ((PDFDict) anObj).getObjectNumber() :
+            anObj instanceof PDFStream ? ((PDFStream) anObj).getObjectNumber() :
+            anObj instanceof PDFArray ? ((PDFArray) anObj).getObjectNumber() : 0;
+        return objNum > 0 ? (Object) objNum : new IdentityKey(anObj, aQueue);
+    }
+
+    /**
+     * Removes all values.
+     */
+    public synchronized void clear()
+    {
+        _values.clear();
+        _weight = 0;
+    }
+
+    /**
+     * Returns the number of values.
+     */
+    public synchronized int size()  { return _values.size(); }
+
+    /**
+     * Returns the total weight of values.
+     */
+    public synchronized long getWeight()  { return _weight; }
+
+    /**
+     * Returns the max total weight of values.
+     */
+    public long getMaxWeight()  { return _maxWeight; }
+
+    /**
+     * Returns the number of lookups that found a value.
+     */
+    public synchronized long getHitCount()  { return _hits; }
+
+    /**
+     * Returns the number of lookups that didn't find a value.
+     */
+    public synchronized long getMissCount()  { return _misses; }
+
+    /**
+     * Returns the number of values evicted to stay under max weight.
+     */
+    public synchronized long getEvictionCount()  { return _evictions; }
+
+    /**
+     * Standard toString implementation.
+     */
+    public synchronized String toString()
+    {
+        return _name + " cache: size=" + _values.size() + ", weight=" + _weight + "/" + _maxWeight + ", hits=" + _hits +
+            ", misses=" + _misses + ", evictions=" + _evictions;
+    }
+
+    /**
+     * A cached value and its weight.
+     */
+    private static class Entry<V> {
+
+        // The value and weight
+        V _value;
+        long _weight;
+
+        /** Creates a new Entry. */
+        Entry(V aValue, long aWeight)  { _value = aValue; _weight = aWeight; }
+    }
+
+    /**
+     * A key that compares objects by identity, without keeping object from being released.
+     */
+    private static class IdentityKey extends WeakReference<Object> {
+
+        // The identity hash of object
+        int _hash;
+
+        /** Creates a new IdentityKey. */
+        IdentityKey(Object anObj, ReferenceQueue<Object> aQueue)
+        {
+            super(anObj, aQueue);
+            _hash = System.identityHashCode(anObj);
+        }
+
+        /** Override to compare by identity (a key whose object was released only equals itself). */
+        public boolean equals(Object anObj)
+        {
+            if (anObj == this) return true;
+            Object obj = get();
+            return obj != null && anObj instanceof IdentityKey && ((IdentityKey) anObj).get() == obj;
+        }
+
+        /** Override to use identity hash. */
+        public int hashCode()  { return _hash; }
+    }
+}
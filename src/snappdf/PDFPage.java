@@ -2,10 +2,16 @@
  * Copyright (c) 2010, ReportMill Software. All rights reserved.
  */
 package snappdf;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import snap.geom.Rect;
 import snap.gfx.*;
+import snappdf.read.DecodeStreams;
+import snappdf.read.PDFPagePrefetcher;
 
 /**
  * This class is used by PDFFile to represent a single page.
@@ -18,15 +24,30 @@ public class PDFPage {
     // The PDF page dictionary
     Map _page;
 
+    // The page index entry, with page dict and inherited attributes
+    PDFPageIndex.Entry _entry;
+
     // The index of this page
     int _index;
 
     // Resource dictionaries
     List _resources;
 
+    // Resolved resource lookups for each level of resource stack: resource type -> name -> object (or NOT_FOUND)
+    List<Map<String, Map<String, Object>>> _lookupCaches = new ArrayList<>(1);
+
+    // Marker for a cached lookup that didn't find resource
+    private static final Object NOT_FOUND = new Object();
+
     // cache so page is only rendered once
     Image _image;
 
+    // The prefetch of this page (if started)
+    private CompletableFuture<Void> _prefetch;
+
+    // Constant for depth of object graph read by prefetch (page resources to font files, image masks, etc.)
+    private static final int PREFETCH_DEPTH = 8;
+
     /**
      * Creates a new PDF page for the given PDF file and page index.
      */
@@ -38,14 +59,28 @@ public class PDFPage {
         // Set page index
         _index = anIndex;
 
-        // Get page dict
-        _page = (Map) getPageDict(_pfile._pagesDict, anIndex, new int[]{0});
+        // Get page entry (first page of linearized file comes from linearization dict, so page tree isn't needed)
+        Map firstPage = anIndex == 0 ? _pfile.getLinearizedFirstPage() : null;
+        if (firstPage != null)
+            _entry = PDFPageIndex.createEntry(_pfile, firstPage);
+        else _entry = _pfile.getPageIndex().getEntry(anIndex);
+        _page = _entry.getPageDict();
 
         // Get the page's resources (which may be inherited) and initialize the resource stack
         Object r = getXRefObj(getPageResources());
         _resources = new ArrayList(1);
-        if (r != null)
+        if (r != null) {
             _resources.add(r);
+            _lookupCaches.add(null);
+        }
+    }
+
+    /**
+     * Returns the page dict.
+     */
+    public Map getPageDict()
+    {
+        return _page;
     }
 
     /**
@@ -62,7 +97,7 @@ public class PDFPage {
     public Rect getMediaBox()
     {
         // Get the bounds of the page and the cliprect to figure out the bbox and matrix of the form
-        Object obj = getXRefObj(inheritedAttributeForKeyInPage("MediaBox", _page));
+        Object obj = getXRefObj(_entry.getMediaBox());
 
         // List elements are xmin, ymin, xmax, ymax
         List bbox = (List) obj;
@@ -77,9 +112,9 @@ public class PDFPage {
     public Rect getCropBox()
     {
         // Get the bounds of the page and the cliprect to figure out the bbox and matrix of the form
-        Object obj = getXRefObj(inheritedAttributeForKeyInPage("CropBox", _page));
+        Object obj = getXRefObj(_entry.getCropBox());
         if (obj == null)
-            obj = getXRefObj(inheritedAttributeForKeyInPage("MediaBox", _page));
+            obj = getXRefObj(_entry.getMediaBox());
 
         // List elements are xmin, ymin, xmax, ymax
         List bbox = (List) obj;
@@ -88,6 +123,16 @@ public class PDFPage {
         return new Rect(bx, by, bw, bh);
     }
 
+    /**
+     * Returns the rotation of this page in degrees (a multiple of 90).
+     */
+    public int getRotate()
+    {
+        Object obj = getXRefObj(_entry.getRotate());
+        int rotate = obj instanceof Number ? ((Number) obj).intValue() % 360 : 0;
+        return rotate < 0 ? rotate + 360 : rotate;
+    }
+
     /**
      * Returns the resources stack for this page.
      */
@@ -103,11 +148,14 @@ public class PDFPage {
     public void pushResources(Map r)
     {
         _resources.add(r);
+        _lookupCaches.add(null);
     }
 
     public void popResources()
     {
         _resources.remove(_resources.size() - 1);
+        if (!_lookupCaches.isEmpty())
+            _lookupCaches.remove(_lookupCaches.size() - 1);
     }
 
     /**
@@ -115,7 +163,7 @@ public class PDFPage {
      */
     public Object getPageResources()
     {
-        return inheritedAttributeForKeyInPage("Resources", _page);
+        return _entry.getResources();
     }
 
     /**
@@ -126,13 +174,42 @@ public class PDFPage {
      * If you need the ProcSet or something other than a dictionary, use getResources() and pull it out from there.
      */
     public Object findResource(String resourceName, String name)
+    {
+        // Get lookup cache for current resource stack level (sync cache stack in case resources list was changed)
+        List rezstack = getResources();
+        int n = rezstack.size();
+        if (n == 0) return null;
+        while (_lookupCaches.size() < n) _lookupCaches.add(null);
+        while (_lookupCaches.size() > n) _lookupCaches.remove(_lookupCaches.size() - 1);
+        Map<String, Map<String, Object>> lookupCache = _lookupCaches.get(n - 1);
+        if (lookupCache == null) {
+            lookupCache = new HashMap<>();
+            _lookupCaches.set(n - 1, lookupCache);
+        }
+
+        // If already looked up, return cached object
+        Map<String, Object> typeCache = lookupCache.computeIfAbsent(resourceName, k -> new HashMap<>());
+        Object cached = typeCache.get(name);
+        if (cached != null)
+            return cached != NOT_FOUND ? cached : null;
+
+        // Look up resource and cache it
+        Object resource = findResourceImpl(resourceName, name);
+        typeCache.put(name, resource != null ? resource : NOT_FOUND);
+        return resource;
+    }
+
+    /**
+     * Returns the named object from the page's resources by searching resource stack from the top.
+     */
+    private Object findResourceImpl(String resourceName, String name)
     {
         List rezstack = getResources();
         int n = rezstack.size();
 
         while (n-- > 0) {
-            Map resources = (Map) getXRefObj(rezstack.get(n));
-            Object adict = getXRefObj(resources.get(resourceName));
+            Object resources = getXRefObj(rezstack.get(n));
+            Object adict = resources instanceof Map ? getXRefObj(((Map) resources).get(resourceName)) : null;
             if (adict instanceof Map) {
                 Object obj = ((Map) adict).get(name);
                 if (obj != null)
@@ -143,29 +220,21 @@ public class PDFPage {
     }
 
     /**
-     * Returns the XRef object for given object.
+     * Reads the page contents and the objects reachable from page resources (up to given depth) in batches ordered by
+     * file offset. Calling this before painting turns the many scattered reads of fonts, descriptors, font files and
+     * images into a few sequential scans. Returns the number of objects read.
      */
-    public Object getXRefObj(Object anObj)
+    public int resolveResources(int aDepth)
     {
-        return _pfile.getXRefObj(anObj);
+        return _pfile.resolveReachable(Arrays.asList(_page.get("Contents"), getPageResources()), aDepth);
     }
 
     /**
-     * Returns x.
+     * Returns the XRef object for given object.
      */
-    protected Object inheritedAttributeForKeyInPage(String aKey, Map aPage)
+    public Object getXRefObj(Object anObj)
     {
-        // Get value for key from page dict
-        Object value = aPage.get(aKey);
-
-        // If key not declared in this object, check parent
-        if (value == null) {
-            Object parent = aPage.get("Parent");
-            if (parent != null)
-                value = inheritedAttributeForKeyInPage(aKey, (Map) getXRefObj(parent));
-        }
-
-        return value;
+        return _pfile.getXRefObj(anObj);
     }
 
     /**
@@ -196,44 +265,9 @@ public class PDFPage {
             // Get the contents of the page
             Object contents = getPageContents();
 
-            // If page contents is array of streams, concat into one (decode & decompress first)
-            if (contents instanceof List) {
-                List carray = (List) contents;
-                byte subdatas[][] = new byte[carray.size()][];
-                int sdatalen = 0;
-
-                for (int i = 0, iMax = carray.size(); i < iMax; i++) {
-
-                    // Get object and complain if not PDFStream
-                    Object obj = getXRefObj(carray.get(i));
-                    if (!(obj instanceof PDFStream))
-                        throw new PDFException("Element of page's contents array is not a stream");
-                    PDFStream onestream = (PDFStream) obj;
-
-                    // Resolve the filter parameters
-                    Map onestreamdict = onestream.getDict();
-                    obj = getXRefObj(onestreamdict.get("Filter"));
-                    if (obj != null)
-                        onestreamdict.put("Filter", obj);
-                    obj = getXRefObj(onestreamdict.get("DecodeParms"));  // need to resolve anything inside?
-                    if (obj != null)
-                        onestreamdict.put("DecodeParms", obj);
-
-                    // decode the data
-                    subdatas[i] = onestream.decodeStream();
-                    sdatalen += subdatas[i].length;
-                }
-
-                // Append all the subdatas into a single array
-                byte sdata[] = new byte[sdatalen];
-                int destpos = 0;
-                for (int i = 0, iMax = carray.size(); i < iMax; i++) {
-                    System.arraycopy(subdatas[i], 0, sdata, destpos, subdatas[i].length);
-                    destpos += subdatas[i].length;
-                }
-
-                contents = new PDFStream(sdata, null);
-            }
+            // If page contents is array of streams, read decoded streams in sequence into one
+            if (contents instanceof List)
+                contents = new PDFStream(DecodeStreams.readAllBytes(openPageContents((List) contents)), null);
 
             // If page contents is single stream,
             else if (!(contents instanceof PDFStream))
@@ -251,56 +285,103 @@ public class PDFPage {
     }
 
     /**
-     * Set everything to the default implementations and return an Image for this page.
+     * Returns an input stream of the decoded page contents streams in given array, one after the other. Each stream is
+     * only opened when the previous one is done.
      */
-    public Image getImage()
+    private InputStream openPageContents(List theStreams)
     {
-        // If already set, just return
-        if (_image != null) return _image;
-        return _image = PDFEnv.getEnv().getImage(this);
+        Iterator iter = theStreams.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            public boolean hasMoreElements()  { return iter.hasNext(); }
+            public InputStream nextElement()
+            {
+                // Get object and complain if not PDFStream
+                Object obj = getXRefObj(iter.next());
+                if (!(obj instanceof PDFStream))
+                    throw new PDFException("Element of page's contents array is not a stream");
+                return getDecodableStream((PDFStream) obj).openDecodedStream();
+            }
+        });
     }
 
     /**
-     * Draw the page to g,  scaled to fit the rectangle r.
+     * Returns given stream, or a copy with resolved filter parameters if they are references (the stream dict is
+     * shared, so it isn't changed).
      */
-    public void paint(Painter aPntr, Rect aRect)
+    private PDFStream getDecodableStream(PDFStream aStream)
     {
-        PDFEnv.getEnv().paint(this, aPntr, aRect);
+        Map dict = aStream.getDict();
+        Object filter = dict.get("Filter"), parms = dict.get("DecodeParms");
+        if (!(filter instanceof PDFXEntry) && !(parms instanceof PDFXEntry))
+            return aStream;
+        Map dict2 = new PDFDict(dict);
+        if (filter != null)
+            dict2.put("Filter", getXRefObj(filter));
+        if (parms != null)
+            dict2.put("DecodeParms", getXRefObj(parms));
+        return new PDFStream(aStream, dict2);
     }
 
     /**
-     * Returns the page dict for this page.
+     * Returns the decoded page contents (cached in file contents cache).
      */
-    public Object getPageDict(Map pages, int pnum, int start[])
+    public byte[] getPageContentsBytes()
     {
-        Object type = pages.get("Type");
-
-        // hit a leaf node
-        if (type.equals("/Page")) {
-            if (start[0] == pnum)
-                return pages;
-            ++start[0];
-            return null;
-        }
+        // Get cached bytes
+        PDFObjectCache<byte[]> contentsCache = _pfile.getContentsCache();
+        byte bytes[] = contentsCache.get(_page);
+        if (bytes != null)
+            return bytes;
+
+        // Decode page contents stream and add to cache
+        PDFStream stream = getPageContentsStream();
+        bytes = stream != null ? stream.decodeStream() : null;
+        contentsCache.put(_page, bytes);
+        return bytes;
+    }
 
-        if (!type.equals("/Pages"))
-            throw new PDFException("PDFPage.getPageDict: Type not Pages"); // Was { _pfile._valid = false; return null;
+    /**
+     * Starts reading this page in the background with given executor: resolves the page object graph in batches
+     * ordered by file offset, decodes page contents and builds page fonts and images in the file caches. Returns a
+     * future that completes when done (repeated calls return the same future), so a painter can wait for it to find
+     * everything already built.
+     */
+    public synchronized CompletableFuture<Void> prefetch(Executor anExecutor)
+    {
+        if (_prefetch != null) return _prefetch;
+        return _prefetch = CompletableFuture.runAsync(this::prefetchImpl, anExecutor);
+    }
 
-        int count = (Integer) getXRefObj(pages.get("Count"));
-        if (pnum >= start[0] && (start[0] + count > pnum)) {
-            List kids = (List) getXRefObj(pages.get("Kids"));
-            count = kids.size();
-            for (int i = 0; i < count; i++) {
-                Object obj = getXRefObj(kids.get(i));
-                obj = getPageDict((Map) obj, pnum, start);
-                if (obj != null)
-                    return obj;
-            }
-            throw new PDFException("PDFPage.getPageDict: Page dict not found"); // Was _pfile._valid = false;
+    /**
+     * Reads the page object graph, page contents, fonts and images.
+     */
+    private void prefetchImpl()
+    {
+        try {
+            resolveResources(PREFETCH_DEPTH);
+            getPageContentsBytes();
+            new PDFPagePrefetcher(_pfile, _index).prefetch();
         }
+        catch (Exception | PDFException e) {
+            System.err.println("PDFPage.prefetch: Failed to prefetch page " + _index + ": " + e);
+        }
+    }
 
-        // Increment start and return null
-        start[0] += count;
-        return null;
+    /**
+     * Set everything to the default implementations and return an Image for this page.
+     */
+    public Image getImage()
+    {
+        // If already set, just return
+        if (_image != null) return _image;
+        return _image = PDFEnv.getEnv().getImage(this);
+    }
+
+    /**
+     * Draw the page to g,  scaled to fit the rectangle r.
+     */
+    public void paint(Painter aPntr, Rect aRect)
+    {
+        PDFEnv.getEnv().paint(this, aPntr, aRect);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snappdf;
+import java.util.*;
+
+/**
+ * A flat index of the pages of a PDF file, built lazily from the page tree. Each Pages node is read once, when a page
+ * under it is first asked for, and records the page count before each kid - so finding a page binary searches down
+ * the tree (skipping other subtrees by Count), instead of walking the tree from the start. Page entries also hold the
+ * inheritable attributes (Resources, MediaBox, CropBox, Rotate), resolved once from the ancestors.
+ */
+public class PDFPageIndex {
+
+    // The PDF file
+    private PDFFile _pfile;
+
+    // The page entries (filled in as pages are found)
+    private Entry _entries[];
+
+    // The root node
+    private Node _root;
+
+    // The inheritable page attribute keys
+    private static final String INHERITED_KEYS[] = { "Resources", "MediaBox", "CropBox", "Rotate" };
+
+    // Constant for max page tree depth (guards against cyclic trees)
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * Creates a new PDFPageIndex for given file.
+     */
+    public PDFPageIndex(PDFFile aFile)
+    {
+        _pfile = aFile;
+        Map pagesDict = aFile.getPagesDict();
+        if (pagesDict == null)
+            throw new PDFException("PDFPageIndex: Pages tree not found");
+        _root = new Node(pagesDict, new Object[INHERITED_KEYS.length]);
+        _entries = new Entry[_root._count];
+    }
+
+    /**
+     * Returns the number of pages.
+     */
+    public int getPageCount()  { return _entries.length; }
+
+    /**
+     * Returns the page entry for given page index.
+     */
+    public Entry getEntry(int anIndex)
+    {
+        if (anIndex < 0 || anIndex >= _entries.length)
+            throw new PDFException("PDFPageIndex: Page index out of range: " + anIndex);
+
+        // Return entry if already found (entry fields are final, so it is safe to read without lock)
+        Entry entry = _entries[anIndex];
+        if (entry != null)
+            return entry;
+
+        // Find entry by searching nodes
+        synchronized (this) {
+            if (_entries[anIndex] == null)
+                _entries[anIndex] = findEntry(anIndex);
+            return _entries[anIndex];
+        }
+    }
+
+    /**
+     * Returns the page dict for given page index.
+     */
+    public Map getPageDict(int anIndex)  { return getEntry(anIndex).getPageDict(); }
+
+    /**
+     * Finds the entry for given page index by descending nodes.
+     */
+    private Entry findEntry(int anIndex)
+    {
+        Node node = _root;
+        int start = 0;
+        for (int depth = 0; depth < MAX_DEPTH; depth++) {
+
+            // Find last kid that starts at or before index
+            int kidIndex = Arrays.binarySearch(node.getStarts(), anIndex - start);
+            if (kidIndex < 0) kidIndex = -kidIndex - 2;
+            else while (kidIndex + 1 < node._starts.length && node._starts[kidIndex + 1] == anIndex - start)
+                kidIndex++; // Skip empty subtrees
+            if (kidIndex < 0)
+                break;
+            Object kid = node._kids[kidIndex];
+
+            // If page, return entry (if index matches)
+            if (kid instanceof Entry) {
+                if (node._starts[kidIndex] == anIndex - start)
+                    return (Entry) kid;
+                break;
+            }
+
+            // Otherwise descend into kid node
+            start += node._starts[kidIndex];
+            node = (Node) kid;
+        }
+
+        throw new PDFException("PDFPageIndex: Page dict not found: " + anIndex);
+    }
+
+    /**
+     * Returns an entry for a page dict not found through the index (like the first page of a linearized file), by
+     * getting inherited attributes from the Parent chain.
+     */
+    public static Entry createEntry(PDFFile aFile, Map aPageDict)
+    {
+        Object values[] = new Object[INHERITED_KEYS.length];
+        Map dict = aPageDict;
+        for (int depth = 0; dict != null && depth < MAX_DEPTH; depth++) {
+            for (int i = 0; i < INHERITED_KEYS.length; i++)
+                if (values[i] == null)
+                    values[i] = dict.get(INHERITED_KEYS[i]);
+            Object parent = aFile.getXRefObj(dict.get("Parent"));
+            dict = parent instanceof Map ? (Map) parent : null;
+        }
+        return new Entry(aPageDict, values);
+    }
+
+    /**
+     * Returns the given inherited values overridden by values in given dict.
+     */
+    private static Object[] getInheritedValues(Map aDict, Object theInherited[])
+    {
+        Object values[] = theInherited.clone();
+        for (int i = 0; i < INHERITED_KEYS.length; i++) {
+            Object value = aDict.get(INHERITED_KEYS[i]);
+            if (value != null)
+                values[i] = value;
+        }
+        return values;
+    }
+
+    /**
+     * A Pages node, with kids and the page count before each kid (read on first use).
+     */
+    private class Node {
+
+        // The Pages dict
+        Map _dict;
+
+        // The inherited values for this node
+        Object _inherited[];
+
+        // The number of pages under this node
+        int _count;
+
+        // The kids (Node or Entry) and the page count before each kid
+        Object _kids[];
+        int _starts[];
+
+        /**
+         * Creates a new Node.
+         */
+        Node(Map aDict, Object theInherited[])
+        {
+            _dict = aDict;
+            _inherited = getInheritedValues(aDict, theInherited);
+            Object count = _pfile.getXRefObj(aDict.get("Count"));
+            _count = count instanceof Number ? Math.max(((Number) count).intValue(), 0) : 0;
+        }
+
+        /**
+         * Returns the page count before each kid, reading kids on first call.
+         */
+        int[] getStarts()
+        {
+            if (_starts != null) return _starts;
+
+            // Get kids list
+            Object kidsObj = _pfile.getXRefObj(_dict.get("Kids"));
+            List kidsList = kidsObj instanceof List ? (List) kidsObj : Collections.emptyList();
+            int kidCount = kidsList.size();
+            Object kids[] = new Object[kidCount];
+            int starts[] = new int[kidCount];
+
+            // Iterate over kids: Create entry for pages and node for page tree nodes
+            int start = 0;
+            for (int i = 0; i < kidCount; i++) {
+                Object kid = _pfile.getXRefObj(kidsList.get(i));
+                if (!(kid instanceof Map))
+                    throw new PDFException("PDFPageIndex: Page tree kid not a dictionary");
+                Map kidDict = (Map) kid;
+                Object type = kidDict.get("Type");
+                if (type == null) // Type is required, but some files leave it out
+                    type = kidDict.containsKey("Kids") ? "/Pages" : "/Page";
+                starts[i] = start;
+
+                // Handle page
+                if ("/Page".equals(type)) {
+                    kids[i] = new Entry(kidDict, getInheritedValues(kidDict, _inherited));
+                    start++;
+                }
+
+                // Handle page tree node
+                else if ("/Pages".equals(type)) {
+                    Node node = new Node(kidDict, _inherited);
+                    kids[i] = node;
+                    start += node._count;
+                }
+
+                // Complain
+                else throw new PDFException("PDFPageIndex: Type not Page or Pages: " + type);
+            }
+
+            // Set kids, then starts (which marks node as read)
+            _kids = kids;
+            return _starts = starts;
+        }
+    }
+
+    /**
+     * A page in the index: the page dict and its inheritable attributes (resolved from ancestors).
+     */
+    public static class Entry {
+
+        // The page dict
+        private final Map _pageDict;
+
+        // The Resources, MediaBox, CropBox and Rotate values (which may be references)
+        private final Object _values[];
+
+        /**
+         * Creates a new Entry.
+         */
+        Entry(Map aPageDict, Object theValues[])
+        {
+            _pageDict = aPageDict;
+            _values = theValues;
+        }
+
+        /**
+         * Returns the page dict.
+         */
+        public Map getPageDict()  { return _pageDict; }
+
+        /**
+         * Returns the page resources (which may be a reference).
+         */
+        public Object getResources()  { return _values[0]; }
+
+        /**
+         * Returns the page media box (which may be a reference).
+         */
+        public Object getMediaBox()  { return _values[1]; }
+
+        /**
+         * Returns the page crop box (which may be a reference).
+         */
+        public Object getCropBox()  { return _values[2]; }
+
+        /**
+         * Returns the page rotation (which may be a reference).
+         */
+        public Object getRotate()  { return _values[3]; }
+    }
+}
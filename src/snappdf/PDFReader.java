@@ -2,53 +2,102 @@
  * Copyright (c) 2010, ReportMill Software. All rights reserved.
  */
 package snappdf;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
-import snap.parse.*;
 import snappdf.read.PDFDictUtils;
 import snap.util.*;
 
 /**
- * This parser subclass parses PDF files.
+ * This class reads PDF files. Objects are lexed directly from the PDFByteSource bytes, so numbers and tokens are
+ * parsed without creating intermediate strings.
  */
-public class PDFReader extends Parser {
+public class PDFReader {
 
     // The PDF FIle
     PDFFile _pfile;
 
-    // The bytes
-    byte[] _bytes;
+    // The source bytes
+    PDFByteSource _source;
+
+    // The source length
+    long _length;
+
+    // The current read position
+    long _pos;
 
     // The XRef start
-    int _xrefStart;
+    long _xrefStart;
+
+    // Whether large dictionary values are left unparsed until accessed (only for file source)
+    boolean _lazy;
+
+    // The min length of a dictionary value to leave unparsed
+    private static final int LAZY_MIN_LENGTH = 128;
+
+    // The decryptor for strings and streams of the object definition being read (and its object/generation number)
+    private PDFCodec _decryptor;
+    private int _decryptObjNum, _decryptGenNum;
 
     /**
      * Creates a new PDFReader.
      */
     public PDFReader(PDFFile aPF, byte[] theBytes)
+    {
+        this(aPF, PDFByteSource.getSourceForBytes(theBytes));
+        _lazy = false;
+    }
+
+    /**
+     * Creates a new PDFReader for given byte source.
+     */
+    public PDFReader(PDFFile aPF, PDFByteSource aSource)
     {
         _pfile = aPF;
-        _bytes = theBytes;
-        setInput(new ByteCharSequence());
+        _source = aSource;
+        _length = aSource.length();
+        _lazy = aPF != null;
+    }
 
-        // !!! Tokenizer used to skip comments in addition to whitespace by overriding old Tokenizer.skipWhitespace() method !!!
-        //getGrammar().addRule("Skip { %.* }");
+    /**
+     * Returns the byte source.
+     */
+    public PDFByteSource getSource()
+    {
+        return _source;
     }
 
     /**
-     * Returns the parser bytes.
+     * Returns the parser bytes. For a memory-mapped source, this copies the whole file into memory.
      */
     public byte[] getBytes()
     {
-        return _bytes;
+        return _source.getBytes(0, _length);
     }
 
     /**
      * Returns the bytes in range.
      */
-    public byte[] getBytes(int aStart, int aEnd)
+    public byte[] getBytes(long aStart, long aEnd)
+    {
+        return _source.getBytes(aStart, aEnd);
+    }
+
+    /**
+     * Returns the current read position.
+     */
+    public long getCharIndex()
+    {
+        return _pos;
+    }
+
+    /**
+     * Sets the current read position.
+     */
+    public void setCharIndex(long aPos)
     {
-        return Arrays.copyOfRange(_bytes, aStart, aEnd);
+        _pos = aPos;
     }
 
     /**
@@ -73,16 +122,61 @@ public class PDFReader extends Parser {
     public void readFile()
     {
         // Get version
-        ParseRule versRule = getRuleForName("Version");
-        String versStr = parse(versRule).getString();
+        String versStr = readVersion();
         _pfile.setVersionString(versStr);
 
         // Create XTable
         _pfile._xtable = new PDFXTable(_pfile, this);
 
-        // Read XRefs
-        _xrefStart = readXRefTablePos();
-        Map trailer = _pfile._trailer = readXRefSection(_xrefStart);
+        // Read XRefs: If linearized, just read first page XRef section (after linearization dict) and defer the rest
+        // until an object not in it is needed. Hint tables aren't used, since XRef offsets locate objects directly.
+        Map linearDict = _pfile._linearDict = readLinearizedDict();
+        Map trailer = null;
+        if (linearDict != null) {
+            try {
+                skipWhiteSpace();
+                _xrefStart = _pos;
+                trailer = _pfile._trailer = readXRefSectionOnly(_xrefStart);
+                Number prev = (Number) trailer.get("Prev");
+                if (prev != null)
+                    _pfile._xtable.setDeferredXRefPos(prev.longValue());
+            }
+
+            // If first page XRef section is damaged, start over with new XTable and read all sections below
+            catch (Exception | PDFException e) {
+                System.err.println("PDFReader.readFile: Failed to read first page XRef section: " + e);
+                _pfile._xtable = new PDFXTable(_pfile, this);
+                trailer = null;
+            }
+        }
+
+        // Otherwise (or if first page section failed) read all XRef sections, starting from last
+        if (trailer == null)
+            trailer = _pfile._trailer = readXRefSections();
+
+        // If XRef sections are missing or broken, rebuild XRef table by scanning file
+        PDFXTableRebuilder rebuilder = null;
+        if (trailer == null || trailer.get("Root") == null) {
+            System.err.println("PDFReader.readFile: XRef table damaged - rebuilding");
+            _pfile._xtable = new PDFXTable(_pfile, this);
+            rebuilder = new PDFXTableRebuilder(_pfile, _source);
+            trailer = _pfile._trailer = rebuilder.rebuild(_pfile._xtable, ForkJoinPool.commonPool());
+            _pfile._xtable.setRebuilder(rebuilder);
+            if (trailer == null)
+                throw new PDFException("PDFReader.readFile: Couldn't find Catalog dict");
+        }
+
+        // Get the file identifier (optional)
+        List<String> fileIds = _pfile._fileIds = (List) getXRefObj(trailer.get("ID"));
+
+        // If there was an encryption dictionary, make a handler for it
+        Map encrypter = (Map) getXRefObj(trailer.get("Encrypt"));
+        if (encrypter != null)
+            _pfile._securityHandler = PDFEnv.getEnv().getEncryptor(encrypter, fileIds, _pfile.getVersion());
+
+        // If XRef table was rebuilt, add objects in object streams (now that they can be decrypted)
+        if (rebuilder != null)
+            rebuilder.readObjectStreams(_pfile._xtable, ForkJoinPool.commonPool());
 
         // Get the info dict
         Map info = _pfile._infoDict = (Map) getXRefObj(trailer.get("Info"));
@@ -94,16 +188,62 @@ public class PDFReader extends Parser {
         if (catalog == null)
             throw new PDFException("PDFReader.readFile: Couldn't find Catalog dict");
 
-        // Get the file identifier (optional)
-        List<String> fileIds = _pfile._fileIds = (List) getXRefObj(trailer.get("ID"));
+        // Get pages (if linearized, this is deferred, since page tree usually isn't in first page section)
+        if (linearDict == null)
+            _pfile._pagesDict = (Map) getXRefObj(catalog.get("Pages"));
+    }
 
-        // If there was an encryption dictionary, make a handler for it
-        Map encrypter = (Map) getXRefObj(trailer.get("Encrypt"));
-        if (encrypter != null)
-            _pfile._securityHandler = PDFEnv.getEnv().getEncryptor(encrypter, fileIds, _pfile.getVersion());
+    /**
+     * Returns the version header string (like "%PDF-1.4"). The header is usually at file start, but some files have
+     * junk before it, so the first 1K is searched.
+     * Version { "%PDF-[\S]*" }
+     */
+    protected String readVersion()
+    {
+        for (long i = 0, iMax = Math.min(_length - 5, 1024); i <= iMax; i++) {
+            if (_source.matches("%PDF-", i)) {
+                long end = i + 5;
+                while (end < _length && !isWhiteSpace(_source.getByte(end))) end++;
+                return new String(_source.getBytes(i, end), StandardCharsets.ISO_8859_1);
+            }
+        }
+        throw new PDFException("PDFReader.readVersion: Couldn't find PDF version header");
+    }
 
-        // Get pages
-        _pfile._pagesDict = (Map) getXRefObj(catalog.get("Pages"));
+    /**
+     * Returns the linearization dictionary if file is linearized ("Fast Web View"), otherwise null. The dictionary is
+     * the first object in the file (within first 1K), and its length must match file length - otherwise the file was
+     * updated incrementally and first page XRef section isn't the newest. Leaves read position after the object.
+     */
+    protected Map readLinearizedDict()
+    {
+        // Find "/Linearized" in first 1K and the "obj" keyword before it
+        long linPos = -1;
+        for (long i = 0, iMax = Math.min(_length - 11, 1024); i <= iMax && linPos < 0; i++)
+            if (_source.getByte(i) == '/' && _source.matches("/Linearized", i))
+                linPos = i;
+        long objPos = linPos > 0 ? _source.lastIndexOf("obj", linPos) : -1;
+        if (objPos < 0) return null;
+
+        // Back up over object number and generation to get object start
+        long start = objPos;
+        for (int i = 0; i < 2; i++) {
+            while (start > 0 && isWhiteSpace(_source.getByte(start - 1))) start--;
+            while (start > 0 && Character.isDigit(_source.getByte(start - 1))) start--;
+        }
+
+        // Read object and make sure it's a linearization dict for this file length
+        Object obj;
+        try { _pos = start; obj = readObjectDef(); }
+        catch (Exception | PDFException e) {
+            System.err.println("PDFReader.readLinearizedDict: Failed to read linearization dict: " + e);
+            return null;
+        }
+        Map linDict = obj instanceof Map ? (Map) obj : null;
+        Object linLength = linDict != null && linDict.get("Linearized") != null ? linDict.get("L") : null;
+        if (!(linLength instanceof Number) || ((Number) linLength).longValue() != _length)
+            return null;
+        return linDict;
     }
 
     /**
@@ -111,41 +251,65 @@ public class PDFReader extends Parser {
      * PDF reading starts at file end - this routine starts at end and searches backwards until it finds startxref key
      * StartXRef { "startxref" Integer "%%EOF" }
      */
-    protected int readXRefTablePos()
+    protected long readXRefTablePos()
     {
-        int start = StringUtils.lastIndexOf(getInput(), "startxref");
+        long start = _source.lastIndexOf("startxref");
         if (start < 0) return -1;
-        return readIntAt(start + "startxref".length()); // check for %%EOF marker
+        long opos = _pos;
+        _pos = start + "startxref".length();
+        long xrefPos = readLong(); // check for %%EOF marker
+        _pos = opos;
+        return xrefPos;
     }
 
     /**
-     * Reads the XRef Section(s) and returns the trailer dictionary.
+     * Reads all XRef sections, starting from the one given by startxref, and returns the trailer dictionary (or null if
+     * sections are missing or broken).
      */
-    protected Map readXRefSection(int aPos)
+    protected Map readXRefSections()
     {
-        // Read section start
-        setCharIndex(aPos);
-        String str0 = getToken().getString();
-        Map trailer;
-
-        // If not "xref", read as stream
-        if (str0.equals("xref")) {
-            readString();
-            trailer = readXRefTable();
+        try {
+            _xrefStart = readXRefTablePos();
+            if (_xrefStart < 0 || _xrefStart >= _length) return null;
+            return readXRefSection(_xrefStart);
         }
+        catch (Exception | PDFException e) {
+            System.err.println("PDFReader.readXRefSections: Failed to read XRef section: " + e);
+            return null;
+        }
+    }
 
-        // Otherwise read XRefStream
-        else trailer = readXRefStream();
+    /**
+     * Reads the XRef Section(s) and returns the trailer dictionary.
+     */
+    protected Map readXRefSection(long aPos)
+    {
+        // Read section
+        Map trailer = readXRefSectionOnly(aPos);
 
         // Check for presence of previous xref table
-        Integer newOffset = (Integer) trailer.get("Prev");
+        Number newOffset = (Number) trailer.get("Prev");
         if (newOffset != null)
-            readXRefSection(newOffset);
+            readXRefSection(newOffset.longValue());
 
         // Return the trailer
         return trailer;
     }
 
+    /**
+     * Reads the XRef Section at given position (without previous sections) and returns the trailer dictionary.
+     */
+    protected Map readXRefSectionOnly(long aPos)
+    {
+        // Read section start
+        _pos = aPos;
+
+        // If "xref", read table, otherwise read XRefStream
+        if (readKeyword("xref"))
+            return readXRefTable();
+        return readXRefStream();
+    }
+
     /**
      * Reads an XRefTable and returns the trailer dictionary.
      * <p>
@@ -161,25 +325,24 @@ public class PDFReader extends Parser {
         int start = readInt();
         int count = readInt();
 
-        // Add missing PDFXEntrys
-        _pfile.getXRefTable().setXRefMax(start + count);
+        // Add missing XRefs
+        PDFXTable xtable = _pfile.getXRefTable();
+        xtable.setXRefMax(start + count);
 
-        // Iterate over subsection entries
+        // Iterate over subsection entries (entries already set by a newer section are kept)
         for (int i = 0; i < count; i++) {
-            PDFXEntry xref = getXRef(start + i);
-            xref.fileOffset = readInt();
-            xref.generation = readInt();
-            String str = readString();
-            xref.state = str.equals("n") ? PDFXEntry.EntryNotYetRead : str.equals("f") ? PDFXEntry.EntryDeleted :
+            long offset = readLong();
+            int gen = readInt();
+            skipWhiteSpace();
+            int type = _pos < _length ? _source.getByte(_pos++) : -1;
+            int state = type == 'n' ? PDFXEntry.EntryNotYetRead : type == 'f' ? PDFXEntry.EntryDeleted :
                     PDFXEntry.EntryUnknown;
+            xtable.setXRef(start + i, state, offset, gen);
         }
 
         // If next string is "trailer", read trailer dict
-        ParseToken token = getToken();
-        if (token.getString().equals("trailer")) {
-            String tstr = readString();
+        if (readKeyword("trailer"))
             return (Map) readObject();
-        }
 
         // Otherwise read next subsection
         return readXRefTable();
@@ -201,7 +364,7 @@ public class PDFReader extends Parser {
 
         int maxObjPlusOne = ((Number) xmap.get("Size")).intValue();
         int fieldWidths[] = PDFDictUtils.getIntArray(xmap, null, "W");
-        int fields[] = new int[fieldWidths.length];
+        long fields[] = new long[fieldWidths.length];
         int indices[] = PDFDictUtils.getIntArray(xmap, null, "Index");
         if (indices == null)
             indices = new int[]{0, maxObjPlusOne};
@@ -209,7 +372,8 @@ public class PDFReader extends Parser {
         int xrefdatapos = 0;
 
         // Allocate space for all xrefs to come
-        _pfile.getXRefTable().setXRefMax(maxObjPlusOne - 1);
+        PDFXTable xtable = _pfile.getXRefTable();
+        xtable.setXRefMax(maxObjPlusOne);
 
         // Read in each subsection
         int nsubsections = indices.length / 2;
@@ -223,26 +387,20 @@ public class PDFReader extends Parser {
                     for (int l = 0; l < fieldWidths[k]; ++l)
                         fields[k] = (fields[k]) << 8 | (xrefdata[xrefdatapos++] & 0xff);
                 }
-                // Get the xref and set the values if not already set
-                PDFXEntry anEntry = getXRef(subStart + j);
-                if (anEntry.state == PDFXEntry.EntryUnknown) {
-                    switch (fields[0]) {
-                        case 0:
-                            anEntry.state = PDFXEntry.EntryDeleted;
-                            break;
-                        case 1:
-                            anEntry.state = PDFXEntry.EntryNotYetRead;
-                            anEntry.fileOffset = fields[1];
-                            anEntry.generation = fieldWidths[2] > 0 ? fields[2] : 0;
-                            break;
-                        case 2:
-                            anEntry.state = PDFXEntry.EntryCompressed;
-                            anEntry.fileOffset = fields[1]; //really the object number of object stream
-                            anEntry.generation = fields[2]; //and index of object within object stream
-                            break;
-                        default:
-                            throw new RuntimeException("PDFReader.readXRefStream: Unknown state: " + fields[0]);
-                    }
+                // Set the xref values if not already set
+                switch ((int) fields[0]) {
+                    case 0:
+                        xtable.setXRef(subStart + j, PDFXEntry.EntryDeleted, 0, 0);
+                        break;
+                    case 1:
+                        int gen = fieldWidths[2] > 0 ? (int) fields[2] : 0;
+                        xtable.setXRef(subStart + j, PDFXEntry.EntryNotYetRead, fields[1], gen);
+                        break;
+                    case 2: // Offset is really object number of object stream and gen is index in object stream
+                        xtable.setXRef(subStart + j, PDFXEntry.EntryCompressed, fields[1], (int) fields[2]);
+                        break;
+                    default:
+                        throw new RuntimeException("PDFReader.readXRefStream: Unknown state: " + fields[0]);
                 }
             }
         }
@@ -256,28 +414,44 @@ public class PDFReader extends Parser {
     public String getXRefString()
     {
         if (_xrefStart < 0) return "XRef start not found";
-        String str = new String(_bytes, _xrefStart, _bytes.length - _xrefStart);
-        int end = str.indexOf("trailer");
-        str = str.substring(0, end);
-        return str;
+        long end = _source.indexOf("trailer", _xrefStart);
+        if (end < 0) end = _source.length();
+        return new String(_source.getBytes(_xrefStart, end));
     }
 
+
     /**
      * Reads next int.
      */
     public int readInt()
     {
-        return parseCustom(getIntegerRule(), Integer.class);
+        long value = readLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+            throw new PDFException("PDFReader.readInt: Value out of range: " + value);
+        return (int) value;
     }
 
     /**
-     * Reads next String.
+     * Reads next long.
+     * Integer { "[\+\-]?[0-9]+" }
      */
-    protected String readString()
+    public long readLong()
     {
-        ParseToken token = getToken();
-        setCharIndex(token.getEndCharIndex());
-        return token.getString();
+        // Skip whitespace and read optional sign
+        skipWhiteSpace();
+        int c = _pos < _length ? _source.getByte(_pos) : -1;
+        boolean negative = c == '-';
+        if (c == '-' || c == '+') c = ++_pos < _length ? _source.getByte(_pos) : -1;
+
+        // Read digits
+        if (!isDigit(c))
+            throw new PDFException("PDFReader.readLong: Expected integer at " + _pos);
+        long value = 0;
+        while (isDigit(c)) {
+            value = value * 10 + (c - '0');
+            c = ++_pos < _length ? _source.getByte(_pos) : -1;
+        }
+        return negative ? -value : value;
     }
 
     /**
@@ -285,7 +459,12 @@ public class PDFReader extends Parser {
      */
     public Object readObject()
     {
-        return parseCustom(getObjectRule(), Object.class);
+        long start = _pos;
+        try { return parseObject(); }
+        catch (PDFException e) {
+            System.err.println("PDFReader: Failed to parse Object at " + start + ": " + e.getMessage());
+            return null;
+        }
     }
 
     /**
@@ -293,431 +472,582 @@ public class PDFReader extends Parser {
      */
     protected Object readObjectDef()
     {
-        return parseCustom(getObjectDefRule(), Object.class);
+        long start = _pos;
+        try { return parseObjectDef(); }
+        catch (PDFException e) {
+            System.err.println("PDFReader: Failed to parse ObjectDef at " + start + ": " + e.getMessage());
+            return null;
+        }
     }
 
     /**
-     * Reads an int at given position.
+     * Returns whether an object definition for given object number starts at given position (after any whitespace).
      */
-    protected int readIntAt(int aPos)
+    public boolean isObjectDefAt(long aPos, int anObjNum)
     {
-        int opos = getCharIndex();
-        setCharIndex(aPos);
-        int value = readInt();
-        setCharIndex(opos);
-        return value;
+        if (aPos < 0 || aPos >= _length) return false;
+        long opos = _pos;
+        _pos = aPos;
+        try { return readLong() == anObjNum; }
+        catch (PDFException e) { return false; }
+        finally { _pos = opos; }
     }
 
     /**
      * Reads a PDF object at given position.
      */
-    public Object readObjectDefAt(int aPos)
+    public Object readObjectDefAt(long aPos)
     {
-        int opos = getCharIndex();
-        setCharIndex(aPos);
+        long opos = _pos;
+        _pos = aPos;
         Object obj = readObjectDef();
-        setCharIndex(opos);
+        _pos = opos;
         return obj;
     }
 
     /**
-     * Returns the Integer rule and ObjectDef rules.
+     * Reads a PDF object at given position, decrypting strings with given decryptor and marking streams to be decrypted
+     * when decoded.
      */
-    protected ParseRule getIntegerRule()
-    {
-        return _ir != null ? _ir : (_ir = getRuleForName("Integer"));
-    }
-
-    ParseRule _ir;
-
-    protected ParseRule getObjectRule()
+    public Object readObjectDefAt(long aPos, PDFCodec aDecryptor, int objNum, int genNum)
     {
-        return _or != null ? _or : (_or = getRuleForName("Object"));
+        // Set decryptor (saving current one, since reading can recurse into another object, like stream Length)
+        PDFCodec odecryptor = _decryptor;
+        int oObjNum = _decryptObjNum, oGenNum = _decryptGenNum;
+        _decryptor = aDecryptor;
+        _decryptObjNum = objNum;
+        _decryptGenNum = genNum;
+
+        // Read object and restore decryptor
+        try { return readObjectDefAt(aPos); }
+        finally {
+            _decryptor = odecryptor;
+            _decryptObjNum = oObjNum;
+            _decryptGenNum = oGenNum;
+        }
     }
 
-    ParseRule _or;
-
-    protected ParseRule getObjectDefRule()
+    /**
+     * Parses an object definition.
+     * ObjectDef { Integer Integer "obj" Object "endobj" }
+     */
+    protected Object parseObjectDef()
     {
-        return _odr != null ? _odr : (_odr = getRuleForName("ObjectDef"));
+        // Read object number, generation and "obj" keyword
+        readInt();
+        readInt();
+        if (!readKeyword("obj"))
+            throw new PDFException("Expected obj keyword at " + _pos);
+
+        // Read object and eat optional endobj
+        Object obj = parseObject();
+        readKeyword("endobj");
+        return obj;
     }
 
-    ParseRule _odr;
-
     /**
-     * A simple class to vend a byte array as a CharSequence.
+     * Parses an object.
+     * Object { Array | (Dictionary ("stream" "endstream")?) | LookAhead(3) ObjectRef | Leaf }
+     * Leaf { "true" | "false" | "null" | Integer | Real | Name | String | HexString }
      */
-    private class ByteCharSequence implements CharSequence {
-        public char charAt(int anIndex)
-        {
-            return (char) _bytes[anIndex];
-        }
+    protected Object parseObject()
+    {
+        // Skip whitespace and get next char
+        skipWhiteSpace();
+        if (_pos >= _length)
+            throw new PDFException("Unexpected end of input");
+        int c = _source.getByte(_pos);
 
-        public int length()
-        {
-            return _bytes.length;
-        }
+        // Handle by first char
+        switch (c) {
 
-        public CharSequence subSequence(int s, int e)
-        {
-            return new String(Arrays.copyOfRange(_bytes, s, e));
+            // Handle Name
+            case '/': return parseName();
+
+            // Handle String
+            case '(': return parseString();
+
+            // Handle Array
+            case '[': return parseArray();
+
+            // Handle Dictionary (with optional stream) or HexString
+            case '<': {
+                if (_pos + 1 >= _length || _source.getByte(_pos + 1) != '<')
+                    return parseHexString();
+                Map dict = parseDictionary();
+                if (readKeyword("stream"))
+                    return parseStream(dict);
+                return dict;
+            }
+
+            // Handle Number or ObjectRef
+            case '+': case '-': case '.':
+            case '0': case '1': case '2': case '3': case '4': case '5': case '6': case '7': case '8': case '9':
+                return parseNumberOrRef();
+
+            // Handle keywords
+            default:
+                if (readKeyword("true")) return Boolean.TRUE;
+                if (readKeyword("false")) return Boolean.FALSE;
+                if (readKeyword("null")) return "null";
+                throw new PDFException("Unexpected char '" + (char) c + "' at " + _pos);
         }
     }
 
     /**
-     * Creates the grammar.
+     * Parses a dictionary.
+     * Dictionary { "<<" (Name Object)* ">>" }
      */
-    @Override
-    protected Grammar createGrammar()
+    protected Map parseDictionary()
     {
-        if (_sharedGrammar != null) return _sharedGrammar;
-        return _sharedGrammar = super.createGrammar();
+        // Eat "<<" and create map (values are parsed lazily if from file and file isn't encrypted)
+        _pos += 2;
+        Map map = new PDFDict();
+        boolean lazy = _lazy && _pfile._securityHandler == null;
+
+        // Read key/value pairs until ">>"
+        while (true) {
+            skipWhiteSpace();
+            if (_pos >= _length)
+                throw new PDFException("Unterminated dictionary");
+            int c = _source.getByte(_pos);
+            if (c == '>') {
+                if (_pos + 1 < _length && _source.getByte(_pos + 1) == '>') {
+                    _pos += 2;
+                    return map;
+                }
+                throw new PDFException("Bogus dictionary end at " + _pos);
+            }
+            if (c != '/')
+                throw new PDFException("Expected dictionary key at " + _pos);
+
+            // Read key (without slash) and value
+            long start = ++_pos;
+            long end = getNameEnd(start);
+            String key = getName(start, end);
+            _pos = end;
+            Object value = lazy ? parseLazyValue() : parseObject();
+            map.put(key, value);
+        }
     }
 
-    static Grammar _sharedGrammar;
-
     /**
-     * Install handlers.
+     * Parses a dictionary value, returning a PDFLazy instead if value is a large array or dictionary.
      */
-    protected void initGrammar()
+    protected Object parseLazyValue()
     {
-        getRuleForName("Dictionary").setHandler(new DictionaryHandler());
-        getRuleForName("Array").setHandler(new ArrayHandler());
-        getRuleForName("Object").setHandler(new ObjectHandler());
-        getRuleForName("ObjectRef").setHandler(new ObjectRefHandler());
-        getRuleForName("ObjectDef").setHandler(new ObjectDefHandler());
-        getRuleForName("Leaf").setHandler(new LeafHandler());
-        getRuleForName("Integer").setHandler(new IntegerHandler());
-        getRuleForName("Real").setHandler(new RealHandler());
-        getRuleForName("Name").setHandler(new NameHandler());
-        getRuleForName("String").setHandler(new StringHandler());
-        getRuleForName("HexString").setHandler(new HexStringHandler());
-    }
+        // If value is array or dictionary and large, skip it and return lazy value
+        skipWhiteSpace();
+        int c = _pos < _length ? _source.getByte(_pos) : -1;
+        if (c == '[' || c == '<' && _pos + 1 < _length && _source.getByte(_pos + 1) == '<') {
+            long end = getValueEnd(_pos);
+            if (end - _pos >= LAZY_MIN_LENGTH) {
+                PDFLazy value = new PDFLazy(_pfile, _pos);
+                _pos = end;
+                return value;
+            }
+        }
 
-    /**
-     * Override to suppress Parse exception.
-     */
-    protected void parseFailed(ParseRule aRule, ParseHandler<?> aHandler)
-    {
-        if (aHandler != null) aHandler.reset();
-        //throw new ParseException(this, aRule);
-        System.err.println("Failed to parse " + aRule);
+        // Otherwise, parse value
+        return parseObject();
     }
 
     /**
-     * Dictionary Handler: { "<<" (Name Object)* ">>" }
+     * Returns the end of the array or dictionary at given position by matching brackets (skipping strings and
+     * comments) without parsing values. Returns -1 if unterminated.
      */
-    public static class DictionaryHandler extends ParseHandler<HashMap> {
-
-        Object key;
-
-        /**
-         * ParseHandler method.
-         */
-        protected void parsedOne(ParseNode aNode, String anId)
-        {
-            // Handle Name
-            if (anId == "Name")
-                key = aNode.getCustomNode(String.class).substring(1);
+    private long getValueEnd(long aPos)
+    {
+        int depth = 0;
+        for (long i = aPos; i < _length; ) {
+            int c = _source.getByte(i++);
+            switch (c) {
+
+                // Handle array start/end
+                case '[': depth++; break;
+                case ']': if (--depth == 0) return i; break;
+
+                // Handle dictionary start or hex string
+                case '<':
+                    if (i < _length && _source.getByte(i) == '<') { i++; depth++; }
+                    else {
+                        while (i < _length && _source.getByte(i) != '>') i++;
+                        i++;
+                    }
+                    break;
 
-                // Handle Object
-            else if (anId == "Object")
-                getPart().put(key, aNode.getCustomNode());
+                // Handle dictionary end
+                case '>':
+                    if (i < _length && _source.getByte(i) == '>') {
+                        i++;
+                        if (--depth == 0) return i;
+                    }
+                    break;
+
+                // Handle string (with nested parens and escaped chars)
+                case '(':
+                    for (int nested = 1; i < _length && nested > 0; ) {
+                        c = _source.getByte(i++);
+                        if (c == '\\') i++;
+                        else if (c == '(') nested++;
+                        else if (c == ')') nested--;
+                    }
+                    break;
 
-                // Handle anything else ("<<", ">>"): Make sure map gets created in case of empty dict
-            else getPart();
+                // Handle comment
+                case '%':
+                    while (i < _length && (c = _source.getByte(i)) != '\n' && c != '\r') i++;
+                    break;
+            }
         }
+        return -1;
+    }
 
-        /**
-         * Returns the part class.
-         */
-        protected Class<HashMap> getPartClass()
-        {
-            return HashMap.class;
+    /**
+     * Parses an array.
+     * Array { "[" Object* "]" }
+     */
+    protected List parseArray()
+    {
+        // Eat "[" and create list
+        _pos++;
+        PDFArray list = new PDFArray();
+
+        // Read objects until "]"
+        while (true) {
+            skipWhiteSpace();
+            if (_pos >= _length)
+                throw new PDFException("Unterminated array");
+            if (_source.getByte(_pos) == ']') {
+                _pos++;
+                list.trimToSize();
+                return list;
+            }
+            list.add(parseObject());
         }
     }
 
     /**
-     * Array Handler: { "[" Object* "]" }
+     * Parses a stream for given dictionary (stream keyword has been read).
      */
-    public static class ArrayHandler extends ParseHandler<ArrayList> {
-
-        /**
-         * ParseHandler method.
-         */
-        protected void parsedOne(ParseNode aNode, String anId)
-        {
-            // Handle Object
-            if (anId == "Object")
-                getPart().add(aNode.getCustomNode());
-
-                // Handle anything else ("[", "]"): Make sure list gets created in case of empty array
-            else getPart();
+    protected PDFStream parseStream(Map aDict)
+    {
+        // Get stream length
+        Object lenObj = getXRefObj(aDict.get("Length"));
+        long streamLength = Convert.intValue(lenObj);
+
+        // Get stream start index (eat optional newline after 'stream')
+        if (_pos < _length && _source.getByte(_pos) == '\r') _pos++;
+        if (_pos < _length && _source.getByte(_pos) == '\n') _pos++;
+        long streamStart = _pos;
+
+        // If Length is bogus, find the endstream keyword and use that instead
+        long streamEnd = streamStart + streamLength;
+        _pos = streamEnd;
+        if (streamEnd > _length || !readKeyword("endstream")) {
+            long endstream = _source.indexOf("endstream", streamStart);
+            if (endstream < 0)
+                throw new PDFException("Couldn't find endstream for stream at " + streamStart);
+            streamEnd = endstream;
+            if (streamEnd > streamStart && _source.getByte(streamEnd - 1) == '\n') streamEnd--;
+            if (streamEnd > streamStart && _source.getByte(streamEnd - 1) == '\r') streamEnd--;
+            _pos = endstream + "endstream".length();
         }
 
-        /**
-         * Returns the part class.
-         */
-        protected Class<ArrayList> getPartClass()
-        {
-            return ArrayList.class;
-        }
+        // Return stream for slice of source (bytes are copied and decrypted only when needed)
+        PDFStream stream = new PDFStream(_source, streamStart, (int) (streamEnd - streamStart), aDict);
+        if (_decryptor != null && _decryptor.isStreamEncrypted(aDict))
+            stream.setDecryptor(_decryptor, _decryptObjNum, _decryptGenNum);
+        return stream;
     }
 
     /**
-     * Object Handler: { Array | (Dictionary ("stream" "endstream")?) | LookAhead(3) ObjectRef | Leaf }
+     * Parses a number or an object reference.
+     * ObjectRef { Integer Integer "R" }
+     * Integer { "[\+\-]?[0-9]+" }
+     * Real { "[\+\-]?[0-9]*\.[0-9]+" }
      */
-    public static class ObjectHandler extends ParseHandler<Object> {
+    protected Object parseNumberOrRef()
+    {
+        // Read optional sign
+        long start = _pos;
+        int c = _source.getByte(_pos);
+        boolean negative = c == '-', signed = c == '-' || c == '+';
+        if (signed) c = ++_pos < _length ? _source.getByte(_pos) : -1;
+
+        // Read integer digits
+        long value = 0;
+        int digits = 0;
+        while (isDigit(c)) {
+            value = value * 10 + (c - '0');
+            digits++;
+            c = ++_pos < _length ? _source.getByte(_pos) : -1;
+        }
 
-        /**
-         * ParseHandler method.
-         */
-        protected void parsedOne(ParseNode aNode, String anId)
-        {
-            // Handle Stream
-            if (anId == "stream") {
-
-                // Get stream length
-                PDFReader parser = (PDFReader) aNode.getParser();
-                Map<?,?> dict = (Map<?,?>) getPart();
-                Object lenObj = parser.getXRefObj(dict.get("Length"));
-                int streamLength = Convert.intValue(lenObj);
-
-                // Get stream start index (eat optional newline after 'stream')
-                Tokenizer tokenizer = parser.getTokenizer();
-                if (tokenizer.nextChar() == '\r') tokenizer.eatChar();
-                if (tokenizer.nextChar() == '\n') tokenizer.eatChar();
-                int streamStartIndex = parser.getCharIndex();
-
-                // Get stream bytes and stream and reset parser char index
-                byte[] streamBytes = parser.getBytes(streamStartIndex, streamStartIndex + streamLength);
-                _part = new PDFStream(streamBytes, dict);
-                parser.setCharIndex(streamStartIndex + streamLength);
+        // Handle Real: read fraction digits and divide by scale
+        if (c == '.') {
+            int scale = 0;
+            c = ++_pos < _length ? _source.getByte(_pos) : -1;
+            while (isDigit(c)) {
+                value = value * 10 + (c - '0');
+                digits++;
+                scale++;
+                c = ++_pos < _length ? _source.getByte(_pos) : -1;
             }
 
-            // Handle endstream
-            else if (anId == "endstream") ;
-
-            // Handle anything else
-            else _part = aNode.getCustomNode();
-        }
-
-        /**
-         * Returns the part class.
-         */
-        protected Class<Object> getPartClass()
-        {
-            return Object.class;
+            // If more digits than a double holds exactly (15), the division can round differently, so parse string
+            double dval;
+            if (digits > 15 || scale >= POWERS_OF_TEN.length)
+                dval = Double.parseDouble(new String(_source.getBytes(start, _pos), StandardCharsets.ISO_8859_1));
+            else dval = value / POWERS_OF_TEN[scale];
+            return negative ? -dval : dval;
         }
-    }
 
-    /**
-     * ObjectRef Handler: { Integer Integer "R" }
-     */
-    public static class ObjectRefHandler extends ParseHandler<PDFXEntry> {
+        // Complain if no digits
+        if (digits == 0)
+            throw new PDFException("Bogus number at " + start);
 
-        /**
-         * ParseHandler method.
-         */
-        protected void parsedOne(ParseNode aNode, String anId)
-        {
-            // Handle Integer
-            if (anId == "Integer" && _part == null) {
-                int index = aNode.getCustomNode(Integer.class);
-                PDFReader reader = (PDFReader) aNode.getParser();
-                _part = reader.getXRef(index);
+        // If unsigned integer, check for ObjectRef
+        if (!signed && digits < 10) {
+            long refEnd = getObjectRefEnd(_pos);
+            if (refEnd > 0) {
+                _pos = refEnd;
+                return getXRef((int) value);
             }
         }
 
-        /**
-         * Returns the part class.
-         */
-        protected Class<PDFXEntry> getPartClass()
-        {
-            return PDFXEntry.class;
-        }
+        // Return Integer (or Long if out of range)
+        if (negative) value = -value;
+        if (digits > 18)
+            return Double.parseDouble(new String(_source.getBytes(start, _pos), StandardCharsets.ISO_8859_1));
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+            return (int) value;
+        return value;
     }
 
     /**
-     * ObjectDef Handler: { Integer Integer "obj" Object "endobj" }
+     * Returns the end of an object ref tail (" Integer R") at given position, or -1 if not there.
      */
-    public static class ObjectDefHandler extends ParseHandler<Object> {
+    private long getObjectRefEnd(long aPos)
+    {
+        // Check for whitespace, generation digits, whitespace
+        long pos = aPos;
+        if (pos >= _length || !isWhiteSpace(_source.getByte(pos))) return -1;
+        while (pos < _length && isWhiteSpace(_source.getByte(pos))) pos++;
+        if (pos >= _length || !isDigit(_source.getByte(pos))) return -1;
+        while (pos < _length && isDigit(_source.getByte(pos))) pos++;
+        if (pos >= _length || !isWhiteSpace(_source.getByte(pos))) return -1;
+        while (pos < _length && isWhiteSpace(_source.getByte(pos))) pos++;
+
+        // Check for "R" followed by delimiter
+        if (pos >= _length || _source.getByte(pos) != 'R') return -1;
+        pos++;
+        if (pos < _length && isRegular(_source.getByte(pos))) return -1;
+        return pos;
+    }
 
-        /**
-         * ParseHandler method.
-         */
-        protected void parsedOne(ParseNode aNode, String anId)
-        {
-            // Handle Object
-            if (anId == "Object")
-                _part = aNode.getCustomNode();
-        }
+    /**
+     * Parses a name (with leading slash).
+     * Name { "/[^\s\<\>\(\)\[\]\{\}%/]+" }
+     */
+    protected String parseName()
+    {
+        long start = _pos;
+        long end = getNameEnd(start + 1);
+        _pos = end;
+        return getName(start, end);
+    }
 
-        /**
-         * Returns the part class.
-         */
-        protected Class<Object> getPartClass()
-        {
-            return Object.class;
-        }
+    /**
+     * Returns the canonical (interned) string for the name chars in given range, from this thread's name table.
+     */
+    protected String getName(long aStart, long anEnd)
+    {
+        return _names.get().getName(_source, aStart, anEnd);
     }
 
     /**
-     * Leaf Handler: { "true" | "false" | "null" | Integer | Real | Name | String | HexString }
+     * Returns the end of a name whose chars start at given position.
      */
-    public static class LeafHandler extends ParseHandler<Object> {
+    private long getNameEnd(long aStart)
+    {
+        long end = aStart;
+        while (end < _length && isRegular(_source.getByte(end))) end++;
+        return end;
+    }
 
-        /**
-         * ParseHandler method.
-         */
-        protected void parsedOne(ParseNode aNode, String anId)
-        {
-            _part = aNode.getCustomNode();
-            if (_part == null) {
-                _part = aNode.getString();
-                if (_part.equals("true")) _part = Boolean.TRUE;
-                else if (_part.equals("false")) _part = Boolean.FALSE;
+    /**
+     * Parses a literal string (with parens), which can contain nested parens and escaped chars.
+     * String { "(" }
+     */
+    protected String parseString()
+    {
+        // Get start/end of string - increment end util final close paren
+        long start = _pos, end = start + 1;
+        int nested = 1;
+        while (true) {
+            if (end >= _length)
+                throw new PDFException("Unterminated string at " + start);
+            int c = _source.getByte(end++);
+            if (c == '(') nested++;
+            else if (c == ')') {
+                nested--;
+                if (nested == 0) break;
             }
+            else if (c == '\\') end++;
         }
 
-        /**
-         * Returns the part class.
-         */
-        protected Class<Object> getPartClass()
-        {
-            return Object.class;
-        }
+        // Create string (decrypted, if needed) and reset position
+        _pos = end;
+        String str = new String(_source.getBytes(start, end), StandardCharsets.ISO_8859_1);
+        return _decryptor != null ? decryptString(str) : str;
     }
 
     /**
-     * Integer Handler: { "[\+\-]?[0-9]+" }
+     * Parses a hex string (with angle brackets).
+     * HexString { "<[\s0-9a-fA-F]*>" }
      */
-    public static class IntegerHandler extends ParseHandler<Integer> {
-
-        /**
-         * ParseHandler method.
-         */
-        protected void parsedOne(ParseNode aNode, String anId)
-        {
-            // Get node string
-            String s = aNode.getString();
-            _part = Integer.valueOf(s);
-        }
-
-        /**
-         * Returns the part class.
-         */
-        protected Class<Integer> getPartClass()
-        {
-            return Integer.class;
-        }
+    protected String parseHexString()
+    {
+        long start = _pos, end = start + 1;
+        while (end < _length && _source.getByte(end) != '>') end++;
+        if (end >= _length)
+            throw new PDFException("Unterminated hex string at " + start);
+        _pos = ++end;
+        String str = new String(_source.getBytes(start, end), StandardCharsets.ISO_8859_1);
+        return _decryptor != null ? decryptString(str) : str;
     }
 
     /**
-     * Real Handler: { "[\+\-]?[0-9]*\.[0-9]+" }
+     * Returns the given string decrypted with current decryptor (as hex string).
      */
-    public static class RealHandler extends ParseHandler<Double> {
+    private String decryptString(String aStr)
+    {
+        byte bytes[] = aStr.charAt(0) == '<' ? PDFUtils.bytesForASCIIHex(aStr) :
+            PDFSecurityHandler.getBytesForLiteralString(aStr);
+        bytes = _decryptor.decryptBytes(bytes, _decryptObjNum, _decryptGenNum);
+        return PDFSecurityHandler.getPDFStringForBytes(bytes);
+    }
 
-        /**
-         * ParseHandler method.
-         */
-        protected void parsedOne(ParseNode aNode, String anId)
-        {
-            // Get node string
-            String s = aNode.getString();
-            _part = Double.valueOf(s);
-        }
+    /**
+     * Reads given keyword if it's next (followed by a delimiter) and returns whether it was found.
+     */
+    protected boolean readKeyword(String aKeyword)
+    {
+        skipWhiteSpace();
+        long end = _pos + aKeyword.length();
+        if (!_source.matches(aKeyword, _pos) || end < _length && isRegular(_source.getByte(end)))
+            return false;
+        _pos = end;
+        return true;
+    }
 
-        /**
-         * Returns the part class.
-         */
-        protected Class<Double> getPartClass()
-        {
-            return Double.class;
+    /**
+     * Skips whitespace and comments.
+     */
+    protected void skipWhiteSpace()
+    {
+        while (_pos < _length) {
+            int c = _source.getByte(_pos);
+            if (isWhiteSpace(c))
+                _pos++;
+            else if (c == '%') {
+                while (_pos < _length && (c = _source.getByte(_pos)) != '\n' && c != '\r') _pos++;
+            }
+            else break;
         }
     }
 
     /**
-     * Name Handler: { "/[0-9a-zA-Z]+" }
+     * Returns whether given char is PDF whitespace.
      */
-    public static class NameHandler extends ParseHandler<String> {
-
-        /**
-         * ParseHandler method.
-         */
-        protected void parsedOne(ParseNode aNode, String anId)
-        {
-            _part = aNode.getString();
-        }
+    static boolean isWhiteSpace(int c)
+    {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f' || c == 0;
+    }
 
-        /**
-         * Returns the part class.
-         */
-        protected Class<String> getPartClass()
-        {
-            return String.class;
-        }
+    /**
+     * Returns whether given char is a PDF delimiter.
+     */
+    private static boolean isDelimiter(int c)
+    {
+        return c == '(' || c == ')' || c == '<' || c == '>' || c == '[' || c == ']' || c == '{' || c == '}' ||
+                c == '/' || c == '%';
     }
 
     /**
-     * String Handler: { "(" }
+     * Returns whether given char is a regular char (not whitespace or delimiter).
      */
-    public static class StringHandler extends ParseHandler<String> {
+    static boolean isRegular(int c)
+    {
+        return !isWhiteSpace(c) && !isDelimiter(c);
+    }
 
-        /**
-         * ParseHandler method.
-         */
-        protected void parsedOne(ParseNode aNode, String anId)
-        {
-            // Get parser and parser bytes
-            PDFReader parser = (PDFReader) aNode.getParser();
-            byte[] bytes = parser.getBytes();
-
-            // Get start/end of string - increment end util final close paren
-            int start = parser.getCharIndex() - 1, end = start + 1, nested = 1;
-            while (true) {
-                char c = (char) bytes[end++];
-                if (c == '(') nested++;
-                else if (c == ')') {
-                    nested--;
-                    if (nested == 0) break;
-                }
-                else if (c == '\\') end++;
-            }
+    /**
+     * Returns whether given char is a digit.
+     */
+    static boolean isDigit(int c)
+    {
+        return c >= '0' && c <= '9';
+    }
 
-            // Create string and reset Parser.CharIndex
-            _part = new String(bytes, start, end - start);
-            parser.setCharIndex(end);
-        }
+    // The name table for each thread (names are interned, so table just saves lookups and is safe to share by thread)
+    private static ThreadLocal<NameTable> _names = ThreadLocal.withInitial(NameTable::new);
 
-        /**
-         * Returns the part class.
-         */
-        protected Class<String> getPartClass()
-        {
-            return String.class;
-        }
-    }
+    // Powers of ten for exact conversion of reals with few digits
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
 
     /**
-     * HexString Handler: { "<" "[0-9a-fA-F]*" ">" }
+     * A table to map name bytes to canonical strings, so the same name read many times (like "Type", "Length" or
+     * "Filter") is a single instance. The table is a direct-mapped cache of interned strings: a name is found by hashing
+     * its bytes, so no String is created unless the name is new to the slot.
      */
-    public static class HexStringHandler extends ParseHandler<String> {
+    private static class NameTable {
+
+        // The canonical names
+        private String _names[] = new String[TABLE_SIZE];
+
+        // Constants for table size and the max length of a name to cache
+        private static final int TABLE_SIZE = 1024;
+        private static final int MAX_LENGTH = 64;
 
         /**
-         * ParseHandler method.
+         * Returns the canonical string for the name chars in given range of source.
          */
-        protected void parsedOne(ParseNode aNode, String anId)
+        public String getName(PDFByteSource aSource, long aStart, long anEnd)
         {
-            _part = aNode.getString();
+            // If name is long, just return new string
+            int len = (int) (anEnd - aStart);
+            if (len > MAX_LENGTH)
+                return new String(aSource.getBytes(aStart, anEnd), StandardCharsets.ISO_8859_1);
+
+            // Get hash of name chars (same as String.hashCode()) and slot
+            int hash = 0;
+            for (long i = aStart; i < anEnd; i++)
+                hash = 31 * hash + aSource.getByte(i);
+            int slot = (hash ^ hash >>> 16) & (TABLE_SIZE - 1);
+
+            // If slot has name, return it
+            String name = _names[slot];
+            if (name != null && name.hashCode() == hash && name.length() == len && matches(name, aSource, aStart))
+                return name;
+
+            // Create, intern and add name
+            name = new String(aSource.getBytes(aStart, anEnd), StandardCharsets.ISO_8859_1).intern();
+            return _names[slot] = name;
         }
 
         /**
-         * Returns the part class.
+         * Returns whether given name matches the chars in source at given index.
          */
-        protected Class<String> getPartClass()
+        private static boolean matches(String aName, PDFByteSource aSource, long aStart)
         {
-            return String.class;
+            for (int i = 0, iMax = aName.length(); i < iMax; i++)
+                if (aName.charAt(i) != aSource.getByte(aStart + i))
+                    return false;
+            return true;
         }
     }
-}
\ No newline at end of file
+}
@@ -4,8 +4,11 @@
 package snappdf;
 import java.util.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import javax.crypto.*;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import snap.util.ASCIICodec;
 
@@ -17,12 +20,23 @@ public class PDFSecurityHandler implements PDFCodec {
     // The encryption key, calculated once per file
     byte _encryption_key[];
 
-    // The RC4 or AES decryption cipher
-    Cipher _decrypter;
+    // The crypt methods for strings and streams (from the crypt filters for V4 and V5)
+    int _stringMethod = CRYPT_RC4, _streamMethod = CRYPT_RC4;
+
+    // An AES cipher for each thread, to decrypt strings and whole streams
+    private ThreadLocal<Cipher> _aesCipher = ThreadLocal.withInitial(() -> newAESCipher());
 
     // A subclass of the Key interface that holds a buffer for the per-object keys
     PDFKey _decrypter_key;
 
+    // Recently used per-object keys by object number, generation and method (objNum << 24 | gen << 8 | method)
+    private Map<Long, byte[]> _objectKeys = new LinkedHashMap<Long, byte[]>(16, .75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> anEntry)  { return size() > OBJECT_KEYS_MAX; }
+    };
+
+    // Constant for max number of per-object keys to cache
+    private static final int OBJECT_KEYS_MAX = 256;
+
     // Standard security algorithm revision number
     int _revision;
 
@@ -42,6 +56,12 @@ public class PDFSecurityHandler implements PDFCodec {
             0x2e, 0x2e, 0x00, 0xb6, 0xd0, 0x68, 0x3e, 0x80, 0x2f, 0x0c, 0xa9, 0xfe, 0x64, 0x53, 0x69, 0x7a
     };
 
+    // Constants for crypt methods
+    public static final int CRYPT_NONE = 0;
+    public static final int CRYPT_RC4 = 1;
+    public static final int CRYPT_AESV2 = 2;
+    public static final int CRYPT_AESV3 = 3;
+
     // bit positions for the user access permissions
     public static final int PRINTING_ALLOWED = 4;
     public static final int MODIFICATIONS_ALLOWED = 8;
@@ -91,37 +111,46 @@ public class PDFSecurityHandler implements PDFCodec {
      */
     public void init(Map encryptDict, List<String> fileID, double pdfversion, String uPass) throws PDFBadPasswordException
     {
-        // Initialize the security handler by calculating the encryption key
+        // Initialize the security handler by calculating the encryption key (R5+ authenticates user password here)
         _encryption_key = getEncryptionKey(encryptDict, fileID, uPass);
 
         // Intialize a Key buffer
         _decrypter_key = new PDFKey(_encryption_key.length);
 
-        // Get the stream cipher (pre 1.6 files used RC4, 1.6 uses AES)
-        try {
-
-            // RC4 is implemented as ARCFOUR, but isn't included until SunJCE 1.5, in J2SE5.0
-            if (pdfversion < 1.6)
-                _decrypter = null;  // use our own arcfour implementation instead of Cipher.getInstance("ARCFOUR");
-
-                // "CBC" specifies cipher block chaining. decrypter will need to be initialized with
-                // an IvParameterSpec and an initialization vector from the first 16 bytes of the stream.
-            else _decrypter = Cipher.getInstance("AES/CBC");
-        }
-
-        // Catch excpetions
-        catch (NumberFormatException nfe) {
-            throw new PDFException("Error getting pdf file version");
-        }
-        catch (NoSuchAlgorithmException nsae) {
-            throw new PDFException(nsae);
-        }
-        catch (NoSuchPaddingException nspe) {
-            throw new PDFException(nspe);
-        }
+        // Get the crypt methods for strings and streams (V4+ files name crypt filters, which can be AES)
+        _stringMethod = getCryptMethod(encryptDict, "StrF");
+        _streamMethod = getCryptMethod(encryptDict, "StmF");
 
         // Will throw an exception if can't authenticate
-        authenticateUserPassword(PDFSecurityHandler.getBytesForEncryptionEntry(encryptDict, "U"));
+        if (_revision <= 4)
+            authenticateUserPassword(PDFSecurityHandler.getBytesForEncryptionEntry(encryptDict, "U"));
+    }
+
+    /**
+     * Returns the crypt method for given crypt filter key (StrF or StmF) in encryption dictionary.
+     */
+    int getCryptMethod(Map encryptDict, String aKey)
+    {
+        // Before V4, everything is RC4
+        Object obj = encryptDict.get("V");
+        int vers = obj instanceof Number ? ((Number) obj).intValue() : 0;
+        if (vers < 4)
+            return CRYPT_RC4;
+
+        // Get crypt filter name (Identity means no encryption)
+        Object filterName = encryptDict.get(aKey);
+        if (filterName == null || filterName.equals("/Identity"))
+            return CRYPT_NONE;
+
+        // Get crypt filter method from crypt filter dict
+        Object cfDict = encryptDict.get("CF");
+        Object filter = cfDict instanceof Map ? ((Map) cfDict).get(((String) filterName).substring(1)) : null;
+        Object cfm = filter instanceof Map ? ((Map) filter).get("CFM") : null;
+        if ("/AESV2".equals(cfm)) return CRYPT_AESV2;
+        if ("/AESV3".equals(cfm)) return CRYPT_AESV3;
+        if ("/V2".equals(cfm)) return CRYPT_RC4;
+        if (cfm == null || "/None".equals(cfm)) return CRYPT_NONE;
+        throw new PDFException("Unhandled crypt filter method: " + cfm);
     }
 
     /**
@@ -174,12 +203,18 @@ public class PDFSecurityHandler implements PDFCodec {
         int vers = obj == null ? 0 : ((Number) obj).intValue();
         int keybytes = 0;
 
-        // only handle V==1 or V==2
+        // Handle V1 (40 bit), V2 (40-128 bit), V4 (crypt filters with 128 bit keys) or V5 (256 bit AES keys)
         if (vers == 1) keybytes = 5;
         else if (vers == 2) {
             int keybits = ((Number) encrypt.get("Length")).intValue();
             if (keybits % 8 == 0) keybytes = keybits / 8;
         }
+        else if (vers == 4) {
+            obj = encrypt.get("Length");
+            int keybits = obj instanceof Number ? ((Number) obj).intValue() : 128;
+            if (keybits % 8 == 0) keybytes = keybits / 8;
+        }
+        else if (vers == 5) keybytes = 32;
 
         // Get/set Revision
         obj = encrypt.get("R");
@@ -199,11 +234,15 @@ public class PDFSecurityHandler implements PDFCodec {
         if (fileID.size() > 0)
             _fileID = PDFUtils.bytesForASCIIHex(fileID.get(0));
 
+        // Handle revision 5 & 6 (AES-256): Key is decrypted from /UE entry
+        if (keybytes == 32 && (_revision == 5 || _revision == 6))
+            return getEncryptionKeyAES256(encrypt, uPass);
+
         // Pull the /O entry out of the dictionary as an array of bytes
         byte oEntry[] = PDFSecurityHandler.getBytesForEncryptionEntry(encrypt, "O");
 
         // supports 40-128 bit keys
-        if (keybytes >= 5 && keybytes <= 16 && (_revision == 2 || _revision == 3))
+        if (keybytes >= 5 && keybytes <= 16 && _revision >= 2 && _revision <= 4)
             return getEncryptionKey(oEntry, uPass, keybytes);
 
         throw new PDFException("Unhandled encryption method : " + encrypt);
@@ -239,7 +278,7 @@ public class PDFSecurityHandler implements PDFCodec {
         if (_fileID != null)
             md5.update(_fileID);
 
-        // Step 6: revision 3 only
+        // Step 6: revision 4 or greater (EncryptMetadata is only given in revision 4 or greater)
         if (_revision >= 3 && !_encrypt_metadata)
             for (int i = 0; i < 4; ++i)
                 md5.update((byte) 0xff);
@@ -259,6 +298,83 @@ public class PDFSecurityHandler implements PDFCodec {
         return ekey;
     }
 
+    /**
+     * Uses algorithm 2.A from ISO 32000-2 to authenticate user password and get the file key (revision 5 & 6).
+     */
+    byte[] getEncryptionKeyAES256(Map encrypt, String uPass)
+    {
+        // Get /U and /UE entries: U is 32 byte hash, 8 byte validation salt and 8 byte key salt
+        byte uEntry[] = getBytesForEncryptionEntry(encrypt, "U");
+        byte ueEntry[] = getBytesForEncryptionEntry(encrypt, "UE");
+        if (uEntry.length < 48 || ueEntry.length < 32)
+            throw new PDFException("Illegal value in encryption dictionary");
+
+        // Get password bytes (UTF-8, up to 127 bytes)
+        byte pwd[] = (uPass != null ? uPass : "").getBytes(StandardCharsets.UTF_8);
+        if (pwd.length > 127)
+            pwd = copyOf(pwd, 127);
+
+        // Authenticate user password: hash of password and validation salt must match start of /U
+        byte hash[] = getHashAES256(pwd, Arrays.copyOfRange(uEntry, 32, 40));
+        if (!Arrays.equals(hash, Arrays.copyOf(uEntry, 32)))
+            throw new PDFBadPasswordException("User password incorrect");
+
+        // Get file key by decrypting /UE with hash of password and key salt (AES-256, no padding, zero IV)
+        byte ikey[] = getHashAES256(pwd, Arrays.copyOfRange(uEntry, 40, 48));
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(ikey, "AES"), new IvParameterSpec(new byte[16]));
+            return cipher.doFinal(ueEntry, 0, 32);
+        }
+        catch (GeneralSecurityException e) {
+            throw new PDFException(e);
+        }
+    }
+
+    /**
+     * Returns the hash of given password and salt: SHA-256 for revision 5 or algorithm 2.B of ISO 32000-2 for 6.
+     */
+    byte[] getHashAES256(byte pwd[], byte salt[])
+    {
+        try {
+            // Get initial hash: SHA-256 of password and salt (revision 5 stops here)
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(pwd);
+            sha256.update(salt);
+            byte k[] = sha256.digest();
+            if (_revision == 5)
+                return k;
+
+            // Revision 6: Rehash at least 64 rounds, using AES encryption of 64 copies of password and hash
+            Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            byte k1[] = new byte[64 * (pwd.length + 64)], e[] = null;
+            for (int round = 0; round < 64 || (e[e.length - 1] & 0xff) > round - 32; round++) {
+
+                // Fill K1 with 64 copies of password and hash (user key data is empty) and encrypt with hash
+                int k1len = 64 * (pwd.length + k.length);
+                for (int i = 0, pos = 0; i < 64; i++) {
+                    System.arraycopy(pwd, 0, k1, pos, pwd.length);
+                    System.arraycopy(k, 0, k1, pos + pwd.length, k.length);
+                    pos += pwd.length + k.length;
+                }
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(k, 0, 16, "AES"), new IvParameterSpec(k, 16, 16));
+                e = cipher.doFinal(k1, 0, k1len);
+
+                // Get next hash with SHA-256, 384 or 512, depending on first 16 bytes of encrypted mod 3
+                int sum = 0;
+                for (int i = 0; i < 16; i++) sum += e[i] & 0xff;
+                String alg = sum % 3 == 0 ? "SHA-256" : sum % 3 == 1 ? "SHA-384" : "SHA-512";
+                k = MessageDigest.getInstance(alg).digest(e);
+            }
+
+            // Return first 32 bytes of hash
+            return copyOf(k, 32);
+        }
+        catch (GeneralSecurityException e) {
+            throw new PDFException(e);
+        }
+    }
+
     /**
      * Returns the string corresponding to the /U entry. The encryption key is assumed to be calculated already.
      */
@@ -386,67 +502,180 @@ public class PDFSecurityHandler implements PDFCodec {
     }
 
     /**
-     * Decrypt strings & streams using the algorithm from the encryption dictionary.
+     * Decrypt strings & streams using the algorithm from the encryption dictionary. Streams are only marked to be
+     * decrypted when decoded (see PDFStream.setDecryptor()).
      */
     public Object decryptObject(Object o, int objNum, int generationNum)
     {
-        startDecrypt(objNum, generationNum);
-        return decryptDeep(o);
+        return decryptDeep(o, objNum, generationNum);
     }
 
     /**
      * Decrypt.
      */
-    public Object decryptDeep(Object o)
+    public Object decryptDeep(Object o, int objNum, int generationNum)
     {
-        // Handle PDFStream
+        // Handle PDFStream: decrypt stream dictionary (recursive) and have stream decrypt bytes when needed
         if (o instanceof PDFStream) {
             PDFStream oStream = (PDFStream) o;
-            oStream._dict = (Map) decryptDeep(oStream._dict);  // decrypt stream dictionary (recursive)
-            if (_decrypter == null) arcfour_decrypt(oStream.getBytes());  // decrypt stream in place
-            else {
-            }  // Use cipher for AES
+            oStream._dict = (Map) decryptDeep(oStream._dict, objNum, generationNum);
+            if (isStreamEncrypted(oStream._dict))
+                oStream.setDecryptor(this, objNum, generationNum);
         }
 
         // Handle Map: decrypt the keys and other crap (recursive)
         else if (o instanceof Map) {
             Map map = (Map) o;
-            Map newMap = new Hashtable(map.size());
+            Map newMap = new PDFDict();
             o = newMap;
             for (Map.Entry entry : (Set<Map.Entry>) map.entrySet())
-                newMap.put(entry.getKey(), decryptDeep(entry.getValue()));
+                newMap.put(entry.getKey(), decryptDeep(entry.getValue(), objNum, generationNum));
         }
 
         // Handle List: decrypt list members
         else if (o instanceof List) {
             List list = (List) o;
             for (int i = 0, n = list.size(); i < n; ++i)
-                list.set(i, decryptDeep(list.get(i)));
+                list.set(i, decryptDeep(list.get(i), objNum, generationNum));
         }
 
-        // Handle String: See comment above about PDFCharStream. will strings have () and <>?  probably
+        // Handle String (literal or hex, names aren't encrypted)
         else if (o instanceof String) {
             String str = (String) o;
-            if (str.charAt(0) != '/') {
-                int buflen = str.length();
-                byte stbuf[] = new byte[buflen];
-                for (int i = 0; i < buflen; ++i) stbuf[i] = (byte) (str.charAt(i) & 0xff);
-                if (_decrypter == null) arcfour_decrypt(stbuf);
-                else {
-                } // use cipher for AES
-                try {
-                    o = new String(stbuf, "US-ASCII");
-                }  // once it's decrypted, it should be in ascii
-                catch (UnsupportedEncodingException uee) {
-                    throw new PDFException(uee);
-                }
-            }
+            if (str.length() > 0 && (str.charAt(0) == '(' || str.charAt(0) == '<'))
+                o = decryptString(str, objNum, generationNum);
         }
 
         // Return decrypted object
         return o;
     }
 
+    /**
+     * Returns the given PDF string (literal or hex, with delimiters) of given object decrypted, as a hex string.
+     */
+    public String decryptString(String aStr, int objNum, int generationNum)
+    {
+        byte bytes[] = aStr.charAt(0) == '<' ? PDFUtils.bytesForASCIIHex(aStr) : getBytesForLiteralString(aStr);
+        bytes = decryptBytes(bytes, objNum, generationNum);
+        return getPDFStringForBytes(bytes);
+    }
+
+    /**
+     * Returns the given bytes of a string of given object decrypted (in place, if possible).
+     */
+    public byte[] decryptBytes(byte theBytes[], int objNum, int generationNum)
+    {
+        return decryptBytes(theBytes, objNum, generationNum, _stringMethod);
+    }
+
+    /**
+     * Returns the given bytes of a stream of given object decrypted (in place, if possible).
+     */
+    public byte[] decryptStreamBytes(byte theBytes[], int objNum, int generationNum)
+    {
+        return decryptBytes(theBytes, objNum, generationNum, _streamMethod);
+    }
+
+    /**
+     * Returns the given bytes of given object decrypted with given crypt method (in place, if possible).
+     */
+    byte[] decryptBytes(byte theBytes[], int objNum, int generationNum, int aMethod)
+    {
+        // Handle RC4
+        if (aMethod == CRYPT_RC4) {
+            new ARCFour(getObjectKey(objNum, generationNum, aMethod)).process(theBytes, 0, theBytes.length);
+            return theBytes;
+        }
+
+        // Handle AES: First 16 bytes are initialization vector, rest are CBC blocks (with padding)
+        if (aMethod == CRYPT_AESV2 || aMethod == CRYPT_AESV3) {
+            int length = (theBytes.length - 16) & ~15;
+            if (length <= 0)
+                return new byte[0];
+            try {
+                Cipher cipher = _aesCipher.get();
+                byte key[] = getObjectKey(objNum, generationNum, aMethod);
+                cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(theBytes, 0, 16));
+                int count = cipher.doFinal(theBytes, 16, length, theBytes, 0);
+                return copyOf(theBytes, getUnpaddedLength(theBytes, count));
+            }
+            catch (GeneralSecurityException e) {
+                throw new PDFException("Error decrypting file: " + e);
+            }
+        }
+
+        // Handle none
+        return theBytes;
+    }
+
+    /**
+     * Returns an input stream that decrypts the given input stream of a stream of given object.
+     */
+    public InputStream getDecryptStream(InputStream anInput, int objNum, int generationNum)
+    {
+        // Handle RC4
+        if (_streamMethod == CRYPT_RC4)
+            return new ARCFourInputStream(anInput, new ARCFour(getObjectKey(objNum, generationNum, _streamMethod)));
+
+        // Handle AES
+        if (_streamMethod == CRYPT_AESV2 || _streamMethod == CRYPT_AESV3)
+            return new AESInputStream(anInput, getObjectKey(objNum, generationNum, _streamMethod));
+
+        // Handle none
+        return anInput;
+    }
+
+    /**
+     * Returns whether stream with given dict is encrypted. XRef streams aren't, Metadata streams may not be, and a
+     * stream can opt out with an Identity Crypt filter.
+     */
+    public boolean isStreamEncrypted(Map aDict)
+    {
+        // If no stream encryption, XRef stream or unencrypted Metadata, return false
+        if (_streamMethod == CRYPT_NONE) return false;
+        Object type = aDict.get("Type");
+        if ("/XRef".equals(type)) return false;
+        if ("/Metadata".equals(type) && !_encrypt_metadata) return false;
+
+        // If Crypt filter, return false if Identity (no name means Identity)
+        Object filter = aDict.get("Filter");
+        List filters = filter instanceof List ? (List) filter : Collections.singletonList(filter);
+        int index = filters.indexOf("/Crypt");
+        if (index >= 0) {
+            Object parms = aDict.get("DecodeParms");
+            if (parms instanceof List)
+                parms = index < ((List) parms).size() ? ((List) parms).get(index) : null;
+            Object name = parms instanceof Map ? ((Map) parms).get("Name") : null;
+            return name != null && !name.equals("/Identity");
+        }
+
+        // Return true
+        return true;
+    }
+
+    /**
+     * Returns the length of given decrypted AES bytes without PKCS#5 padding (if padding is valid).
+     */
+    static int getUnpaddedLength(byte theBytes[], int aLength)
+    {
+        int pad = aLength > 0 ? theBytes[aLength - 1] & 0xff : 0;
+        if (pad < 1 || pad > 16 || pad > aLength)
+            return aLength;
+        for (int i = aLength - pad; i < aLength; i++)
+            if ((theBytes[i] & 0xff) != pad)
+                return aLength;
+        return aLength - pad;
+    }
+
+    /**
+     * Returns a new AES cipher for decrypting (padding is removed separately, so bad padding isn't fatal).
+     */
+    static Cipher newAESCipher()
+    {
+        try { return Cipher.getInstance("AES/CBC/NoPadding"); }
+        catch (GeneralSecurityException e) { throw new PDFException(e); }
+    }
+
     /**
      * Create encryption key for given object numbers and cache it for recursive invocations of decryptDeep().
      */
@@ -455,10 +684,7 @@ public class PDFSecurityHandler implements PDFCodec {
         try {
             startDecryptImpl(objNum, generationNum);
         }
-        catch (NoSuchAlgorithmException e) {
-            throw new PDFException("Error decrypting file" + e);
-        }
-        catch (InvalidKeyException e) {
+        catch (GeneralSecurityException e) {
             throw new PDFException("Error decrypting file" + e);
         }
     }
@@ -466,10 +692,38 @@ public class PDFSecurityHandler implements PDFCodec {
     /**
      * Create encryption key for given object numbers and cache it for recursive invocations of decryptDeep().
      */
-    void startDecryptImpl(int objNum, int generationNum) throws NoSuchAlgorithmException, InvalidKeyException
+    void startDecryptImpl(int objNum, int generationNum) throws GeneralSecurityException
     {
+        // Read the object key into our pre-allocated buffer
+        byte objKey[] = getObjectKey(objNum, generationNum, CRYPT_RC4), keybuf[] = _decrypter_key.getKeyBuffer();
+        System.arraycopy(objKey, 0, keybuf, 0, keybuf.length);
+    }
+
+    /**
+     * Returns the key for given object numbers and crypt method (from cache, if recently used).
+     */
+    public byte[] getObjectKey(int objNum, int generationNum, int aMethod)
+    {
+        // AESV3 uses file key for all objects
+        if (aMethod == CRYPT_AESV3)
+            return _encryption_key;
+
+        // Get cached key
+        Long keyNum = (long) objNum << 24 | (generationNum & 0xffff) << 8 | aMethod;
+        synchronized (_objectKeys) {
+            byte objKey[] = _objectKeys.get(keyNum);
+            if (objKey != null)
+                return objKey;
+        }
+
         // Get md
-        MessageDigest md = MessageDigest.getInstance("MD5");
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new PDFException(e);
+        }
         md.update(_encryption_key);
 
         // Append low->high 3 bytes of objNum, 2 bytes of generationNum
@@ -484,14 +738,18 @@ public class PDFSecurityHandler implements PDFCodec {
             p >>= 8;
         }
 
-        // Read the new object key into our pre-allocated buffer (with potential zero pad)
-        byte md_digest[] = md.digest(), keybuf[] = _decrypter_key.getKeyBuffer();
-        for (int i = 0; i < keybuf.length; ++i)
-            keybuf[i] = i < md_digest.length ? md_digest[i] : 0;
+        // AESV2 appends "sAlT"
+        if (aMethod == CRYPT_AESV2)
+            md.update(new byte[] { 0x73, 0x41, 0x6C, 0x54 });
 
-        // Initialize the cipher. AES will need to get the Initialization vector
-        if (_decrypter != null)
-            _decrypter.init(Cipher.DECRYPT_MODE, _decrypter_key);
+        // Get the new object key: the first (key length + 5) bytes of digest, up to 16
+        byte objKey[] = copyOf(md.digest(), Math.min(_encryption_key.length + 5, 16));
+
+        // Cache key and return
+        synchronized (_objectKeys) {
+            _objectKeys.put(keyNum, objKey);
+        }
+        return objKey;
     }
 
     /**
@@ -503,31 +761,55 @@ public class PDFSecurityHandler implements PDFCodec {
         String s = (String) encDict.get(key);
         if (s == null) throw new PDFException("Missing /" + key + " entry in encryption dictionary");
 
-        // Strings are enclosed in (), with escapes on parens and single slashes.
-        // chars are all binary, with no octal escapes. Hex strings work too, but Acrobat doesn't create them this way.
+        // Strings are enclosed in () with escapes, or <> for hex strings
         int slen = s.length();
         if ((s.charAt(0) == '<') && (s.charAt(slen - 1) == '>'))
             return PDFUtils.bytesForASCIIHex(s);
         if ((s.charAt(0) != '(') || (slen < 2) || (s.charAt(slen - 1) != ')'))
             throw new PDFException("Illegal value in encryption dictionary");
+        return getBytesForLiteralString(s);
+    }
 
-        // Get converted bytes
-        byte conversionbytes[] = new byte[slen - 2];
-        int blen = 0;
-        for (int i = 1; i < slen - 1; ++i) {
-            char c = s.charAt(i);
-            if (c == '\\') { // if it's an escape, get next char
-                if (i < slen - 2) c = s.charAt(++i);
-                else throw new PDFException("Illegal value in encryption dictionary");
+    /**
+     * Returns the bytes for a PDF literal string (with parens), with escapes resolved.
+     */
+    public static byte[] getBytesForLiteralString(String aStr)
+    {
+        int len = aStr.length() - 1, blen = 0;
+        byte bytes[] = new byte[Math.max(len - 1, 0)];
+        for (int i = 1; i < len; i++) {
+            char c = aStr.charAt(i);
+
+            // Handle escape: octal, named escape, line continuation or literal char
+            if (c == '\\' && i + 1 < len) {
+                c = aStr.charAt(++i);
+                if (c >= '0' && c <= '7') {
+                    int oval = c - '0';
+                    for (int j = 0; j < 2 && i + 1 < len && aStr.charAt(i + 1) >= '0' && aStr.charAt(i + 1) <= '7'; j++)
+                        oval = oval * 8 + aStr.charAt(++i) - '0';
+                    c = (char) (oval & 0xff);
+                }
+                else if (c == 'n') c = '\n';
+                else if (c == 'r') c = '\r';
+                else if (c == 't') c = '\t';
+                else if (c == 'b') c = '\b';
+                else if (c == 'f') c = '\f';
+                else if (c == '\r' || c == '\n') {
+                    if (c == '\r' && i + 1 < len && aStr.charAt(i + 1) == '\n') i++;
+                    continue;
+                }
             }
-            conversionbytes[blen++] = (byte) c;
+
+            // Handle end of line (any end of line is read as single newline)
+            else if (c == '\r') {
+                if (i + 1 < len && aStr.charAt(i + 1) == '\n') i++;
+                c = '\n';
+            }
+            bytes[blen++] = (byte) c;
         }
 
         // Return truncated array (unless already right size)
-        if (blen == slen - 2) return conversionbytes;
-        byte finalbytes[] = new byte[blen];
-        System.arraycopy(conversionbytes, 0, finalbytes, 0, blen);
-        return finalbytes;
+        return blen == bytes.length ? bytes : copyOf(bytes, blen);
     }
 
     /**
@@ -579,30 +861,7 @@ public class PDFSecurityHandler implements PDFCodec {
      */
     static void _arcfour_decrypt(byte inout[], byte key[])
     {
-        // initialize sbox & s2
-        int sbox[] = new int[256], s2[] = new int[256];
-        for (int i = 0; i < 256; ++i) {
-            sbox[i] = i;
-            s2[i] = key[i % key.length] & 0xff;
-        }
-        for (int i = 0, j = 0; i < 256; ++i) {
-            j = (j + sbox[i] + s2[i]) % 256;
-            int tmp = sbox[i];
-            sbox[i] = sbox[j];
-            sbox[j] = tmp;
-        }
-
-        // decrypt in place
-        for (int i = 0, j = 0, buffindex = 0, buffmax = inout.length; buffindex < buffmax; ++buffindex) {
-            i = (i + 1) % 256;
-            j = (j + sbox[i]) % 256;  // Generate pseudo-random K
-            int temp = sbox[i];
-            sbox[i] = sbox[j];
-            sbox[j] = temp;
-            int t = (sbox[i] + sbox[j]) % 256;
-            int K = sbox[t];
-            inout[buffindex] ^= K; // xor and hope for the best
-        }
+        new ARCFour(key).process(inout, 0, inout.length);
     }
 
     /**
@@ -615,6 +874,240 @@ public class PDFSecurityHandler implements PDFCodec {
         return cpy;
     }
 
+    /**
+     * The state of an Arcfour (RC4) cipher, so bytes can be decrypted in pieces.
+     */
+    static class ARCFour {
+
+        // The sbox and indexes
+        private int _sbox[] = new int[256];
+        private int _i, _j;
+
+        /**
+         * Creates a new ARCFour for given key.
+         */
+        ARCFour(byte key[])
+        {
+            for (int i = 0; i < 256; ++i)
+                _sbox[i] = i;
+            for (int i = 0, j = 0; i < 256; ++i) {
+                j = (j + _sbox[i] + (key[i % key.length] & 0xff)) & 0xff;
+                int tmp = _sbox[i];
+                _sbox[i] = _sbox[j];
+                _sbox[j] = tmp;
+            }
+        }
+
+        /**
+         * Decrypts (or encrypts) given bytes in place.
+         */
+        void process(byte inout[], int offset, int length)
+        {
+            int sbox[] = _sbox, i = _i, j = _j;
+            for (int k = offset, kMax = offset + length; k < kMax; k++) {
+                i = (i + 1) & 0xff;
+                j = (j + sbox[i]) & 0xff;  // Generate pseudo-random K
+                int temp = sbox[i];
+                sbox[i] = sbox[j];
+                sbox[j] = temp;
+                inout[k] ^= sbox[(sbox[i] + sbox[j]) & 0xff]; // xor and hope for the best
+            }
+            _i = i;
+            _j = j;
+        }
+    }
+
+    /**
+     * An input stream that decrypts an Arcfour encrypted input stream.
+     */
+    static class ARCFourInputStream extends FilterInputStream {
+
+        // The cipher state
+        private ARCFour _arcfour;
+
+        /**
+         * Creates a new ARCFourInputStream.
+         */
+        ARCFourInputStream(InputStream anInput, ARCFour anARCFour)
+        {
+            super(anInput);
+            _arcfour = anARCFour;
+        }
+
+        /**
+         * Override to decrypt byte.
+         */
+        public int read() throws IOException
+        {
+            byte buf[] = new byte[1];
+            int count = read(buf, 0, 1);
+            return count == 1 ? buf[0] & 0xff : -1;
+        }
+
+        /**
+         * Override to decrypt bytes.
+         */
+        public int read(byte buf[], int offset, int length) throws IOException
+        {
+            int count = in.read(buf, offset, length);
+            if (count > 0)
+                _arcfour.process(buf, offset, count);
+            return count;
+        }
+
+        /**
+         * Override to read (and decrypt) skipped bytes, since cipher state depends on them.
+         */
+        public long skip(long aCount) throws IOException
+        {
+            byte buf[] = new byte[(int) Math.min(aCount, 4096)];
+            long skipped = 0;
+            while (skipped < aCount) {
+                int count = read(buf, 0, (int) Math.min(aCount - skipped, buf.length));
+                if (count <= 0) break;
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        /**
+         * Override, since cipher state can't be reset.
+         */
+        public boolean markSupported()  { return false; }
+    }
+
+    /**
+     * An input stream that decrypts an AES (CBC with PKCS#5 padding) encrypted input stream. Blocks are decrypted with
+     * Cipher.update() between two reused buffers, so any size stream decrypts in constant memory. The last block is
+     * held back until end of input, so padding can be removed.
+     */
+    static class AESInputStream extends FilterInputStream {
+
+        // The key and cipher (initialized when IV is read)
+        private byte _key[];
+        private Cipher _cipher;
+
+        // The buffers of encrypted input and decrypted output
+        private byte _inBuf[] = new byte[8192];
+        private byte _outBuf[] = new byte[8192 + 64];
+
+        // The position and length of decrypted output
+        private int _outPos, _outLen;
+
+        // Whether end of input was reached
+        private boolean _eof;
+
+        /**
+         * Creates a new AESInputStream.
+         */
+        AESInputStream(InputStream anInput, byte aKey[])
+        {
+            super(anInput);
+            _key = aKey;
+        }
+
+        /**
+         * Override to decrypt byte.
+         */
+        public int read() throws IOException
+        {
+            byte buf[] = new byte[1];
+            int count = read(buf, 0, 1);
+            return count == 1 ? buf[0] & 0xff : -1;
+        }
+
+        /**
+         * Override to decrypt bytes.
+         */
+        public int read(byte buf[], int offset, int length) throws IOException
+        {
+            if (length == 0) return 0;
+
+            // Fill output until some available (not counting held back block) or end of input
+            while (getAvailable() == 0 && !_eof)
+                fill();
+
+            // Copy available output
+            int count = Math.min(getAvailable(), length);
+            if (count == 0)
+                return -1;
+            System.arraycopy(_outBuf, _outPos, buf, offset, count);
+            _outPos += count;
+            return count;
+        }
+
+        /**
+         * Returns the number of decrypted bytes available (holding back last block until end of input).
+         */
+        private int getAvailable()
+        {
+            return _eof ? _outLen - _outPos : Math.max(_outLen - _outPos - 16, 0);
+        }
+
+        /**
+         * Reads and decrypts more input.
+         */
+        private void fill() throws IOException
+        {
+            // Move unread output to start of buffer
+            System.arraycopy(_outBuf, _outPos, _outBuf, 0, _outLen - _outPos);
+            _outLen -= _outPos;
+            _outPos = 0;
+
+            try {
+                // If cipher not initialized, read IV and init (if no IV, just mark eof)
+                if (_cipher == null) {
+                    byte iv[] = new byte[16];
+                    int count = in.readNBytes(iv, 0, 16);
+                    if (count < 16) { _eof = true; return; }
+                    _cipher = newAESCipher();
+                    _cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(_key, "AES"), new IvParameterSpec(iv));
+                }
+
+                // Read input and decrypt into output buffer
+                int count = in.read(_inBuf, 0, _inBuf.length);
+                if (count > 0)
+                    _outLen += _cipher.update(_inBuf, 0, count, _outBuf, _outLen);
+
+                // If end of input, finish and remove padding (cipher drops any partial block)
+                else if (count < 0) {
+                    _eof = true;
+                    try { _outLen += _cipher.doFinal(_outBuf, _outLen); }
+                    catch (IllegalBlockSizeException e) { }
+                    _outLen = getUnpaddedLength(_outBuf, _outLen);
+                }
+            }
+            catch (GeneralSecurityException e) {
+                throw new IOException("Error decrypting stream: " + e);
+            }
+        }
+
+        /**
+         * Override to read (and decrypt) skipped bytes, since cipher state depends on them.
+         */
+        public long skip(long aCount) throws IOException
+        {
+            byte buf[] = new byte[(int) Math.min(aCount, 4096)];
+            long skipped = 0;
+            while (skipped < aCount) {
+                int count = read(buf, 0, (int) Math.min(aCount - skipped, buf.length));
+                if (count <= 0) break;
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        /**
+         * Override to return decrypted bytes available.
+         */
+        public int available()  { return getAvailable(); }
+
+        /**
+         * Override, since cipher state can't be reset.
+         */
+        public boolean markSupported()  { return false; }
+    }
+
     /**
      * An exception class that's thrown if authentication fails
      */
@@ -641,7 +1134,7 @@ public class PDFSecurityHandler implements PDFCodec {
         public String getAlgorithm()
         {
             return "RC4";
-        } //If this works, add AES
+        } // Only used for RC4 (AES keys are SecretKeySpecs)
 
         public String getFormat()
         {
@@ -2,26 +2,42 @@
  * Copyright (c) 2010, ReportMill Software. All rights reserved.
  */
 package snappdf;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.*;
 
+import snappdf.read.DecodeStreams;
+
 /**
  * This class represents a PDF stream object.
  */
 public class PDFStream implements Cloneable {
 
-    // Stream bytes
+    // Stream bytes (null if stream is still a slice of source)
     public byte _bytes[];
 
     // Stream dictionary
     public Map _dict;
 
+    // The source, start and length of stream bytes for a stream that is a slice of source
+    private PDFByteSource _source;
+    private long _start;
+    private int _length;
+
+    // The decryptor (and object and generation number) for stream bytes that are still encrypted
+    private PDFCodec _decryptor;
+    private int _objNum, _genNum;
+
+    // The number of the indirect object this stream is the value of (or 0)
+    private int _objectNumber;
+
     /**
      * Creates a new PDFStream from the byte array and map.
      */
     public PDFStream(byte bytes[], Map aMap)
     {
         _bytes = bytes; // no copy
-        _dict = aMap == null ? new Hashtable() : new Hashtable(aMap);
+        _dict = getDict(aMap);
     }
 
     /**
@@ -31,17 +47,117 @@ public class PDFStream implements Cloneable {
     {
         _bytes = new byte[len]; // Make local copy of data
         System.arraycopy(bytes, offset, _bytes, 0, len);
-        _dict = aMap == null ? new Hashtable() : new Hashtable(aMap); // and hashtable
+        _dict = getDict(aMap);
+    }
+
+    /**
+     * Creates a new PDFStream for a slice of given source. The bytes are only copied from source when needed.
+     */
+    public PDFStream(PDFByteSource aSource, long aStart, int aLength, Map aMap)
+    {
+        _source = aSource;
+        _start = aStart;
+        _length = aLength;
+        _dict = getDict(aMap);
+    }
+
+    /**
+     * Creates a new PDFStream with the bytes of given stream and given map. The bytes are shared, not copied (so a
+     * slice of source stays a slice, and is only read when written or decoded).
+     */
+    public PDFStream(PDFStream aStream, Map aMap)
+    {
+        _bytes = aStream._bytes;
+        _source = aStream._source;
+        _start = aStream._start;
+        _length = aStream._length;
+        _decryptor = aStream._decryptor;
+        _objNum = aStream._objNum;
+        _genNum = aStream._genNum;
+        _dict = getDict(aMap);
+    }
+
+    /**
+     * Returns a PDFDict for given stream map: the map itself if already a PDFDict (like a parsed dict), else a copy.
+     */
+    private static Map getDict(Map aMap)
+    {
+        if (aMap instanceof PDFDict) return aMap;
+        return aMap == null ? new PDFDict() : new PDFDict(aMap);
     }
 
     /**
-     * Returns the stream bytes.
+     * Returns the stream bytes. If stream is a slice of source, this returns a new (decrypted) copy of the bytes each
+     * time instead of keeping it in stream, so the stream stays as light as it was weighed in file cache.
      */
     public byte[] getBytes()
     {
-        return _bytes;
+        if (_bytes != null || _source == null) return _bytes;
+        return getSourceBytes();
+    }
+
+    /**
+     * Returns a new copy of the stream bytes from source, decrypted (if needed).
+     */
+    private byte[] getSourceBytes()
+    {
+        byte bytes[] = _source.getBytes(_start, _start + _length);
+        return _decryptor != null ? _decryptor.decryptStreamBytes(bytes, _objNum, _genNum) : bytes;
     }
 
+    /**
+     * Sets the decryptor for stream bytes of given object. Decryption is the first stage of decoding, so the bytes are
+     * only decrypted when the stream is decoded.
+     */
+    public void setDecryptor(PDFCodec aDecryptor, int objNum, int genNum)
+    {
+        // If bytes already in stream, decrypt now
+        if (_bytes != null || _source == null) {
+            if (_bytes != null)
+                _bytes = aDecryptor.decryptStreamBytes(_bytes, objNum, genNum);
+            return;
+        }
+
+        // Set decryptor
+        _decryptor = aDecryptor;
+        _objNum = objNum;
+        _genNum = genNum;
+    }
+
+    /**
+     * Returns whether stream bytes are still encrypted in source (and will be decrypted when read).
+     */
+    public boolean isEncrypted()
+    {
+        return _decryptor != null && _bytes == null;
+    }
+
+    /**
+     * Returns the length of the stream bytes.
+     */
+    public int getLength()
+    {
+        return _bytes != null ? _bytes.length : _length;
+    }
+
+    /**
+     * Returns whether stream bytes have been copied into stream (false if stream is still a slice of source).
+     */
+    public boolean isBytesSet()
+    {
+        return _bytes != null;
+    }
+
+    /**
+     * Returns the number of the indirect object this stream is the value of (or 0 if direct or not read from file).
+     */
+    public int getObjectNumber()  { return _objectNumber; }
+
+    /**
+     * Sets the number of the indirect object this stream is the value of.
+     */
+    void setObjectNumber(int aNum)  { _objectNumber = aNum; }
+
     /**
      * Returns the stream bytes as a text string.
      */
@@ -158,33 +274,160 @@ public class PDFStream implements Cloneable {
         // Get filters for the stream (just return _data if none)
         Object filter = _dict.get("Filter");
         if (filter == null || nfilters == 0)
-            return _bytes;
+            return getBytes();
+
+        // Get raw bytes: the stream bytes or the source array (if available) or a temporary (decrypted) copy
+        byte bytes[] = _bytes;
+        int offset = 0, length = bytes != null ? bytes.length : 0;
+        if (bytes == null && _source != null) {
+            bytes = _decryptor == null ? _source.getArray() : null;
+            if (bytes != null) {
+                offset = (int) _start;
+                length = _length;
+            }
+            else {
+                bytes = getSourceBytes();
+                length = bytes.length;
+            }
+        }
 
         // Get the filter parameters
         Object parameters = _dict.get("DecodeParms"); // parms?  what's a parm?
 
+        // Get expected decoded length, if all filters are run
+        int sizeHint = nfilters >= numFilters() ? getDecodedLengthHint() : -1;
+
+        // If list of multiple filters, read through decode stream chain so intermediate results are not materialized
+        if (filter instanceof List && Math.min(((List) filter).size(), nfilters) > 1)
+            return DecodeStreams.readAllBytes(openDecodedStream(nfilters), sizeHint);
+
         // If list, run through all filters
         if (filter instanceof List) {
             List filters = (List) filter;
             List paramList = null;
-            int len = _bytes.length, iMax = filters.size();
+            int iMax = filters.size();
 
             if (iMax > nfilters)
                 iMax = nfilters;
             if (parameters instanceof List)
                 paramList = (List) parameters;
 
-            byte decoded[] = _bytes;
+            byte decoded[] = bytes;
             for (int i = 0; i < iMax; i++) {
                 String fname = (String) filters.get(i);
-                decoded = PDFUtils.getBytesDecoded(decoded, 0, len, fname, paramList != null ? (Map) paramList.get(i) : null);
-                len = decoded.length;
+                Map params = paramList != null ? (Map) paramList.get(i) : null;
+                int hint = i == iMax - 1 ? sizeHint : -1;
+                decoded = PDFUtils.getBytesDecoded(decoded, offset, length, fname, params, hint);
+                offset = 0;
+                length = decoded.length;
             }
+
+            // If no filters were run, return stream bytes
+            if (iMax == 0)
+                return getBytes();
             return decoded;
         }
 
         // If not list, just decode bytes and return
-        return PDFUtils.getBytesDecoded(_bytes, 0, _bytes.length, (String) filter, (Map) parameters);
+        return PDFUtils.getBytesDecoded(bytes, offset, length, (String) filter, (Map) parameters, sizeHint);
+    }
+
+    /**
+     * Returns the expected length of the fully decoded stream bytes, if known from the stream dict (or -1 if not).
+     * This comes from the DL entry, image Width x Height x bits per pixel or xref stream W x Size.
+     */
+    public int getDecodedLengthHint()
+    {
+        // If DL (decoded length) is given, just return it
+        Object dl = _dict.get("DL");
+        if (dl instanceof Number)
+            return ((Number) dl).intValue();
+
+        // If image, return bytes per row times rows (if colorspace is a simple device space or image is mask)
+        if ("/Image".equals(_dict.get("Subtype"))) {
+            Object w = _dict.get("Width"), h = _dict.get("Height"), bpc = _dict.get("BitsPerComponent");
+            Object cspace = _dict.get("ColorSpace");
+            boolean isMask = Boolean.TRUE.equals(_dict.get("ImageMask"));
+            int comps = isMask || "/DeviceGray".equals(cspace) ? 1 : "/DeviceRGB".equals(cspace) ? 3 :
+                "/DeviceCMYK".equals(cspace) ? 4 : 0;
+            if (isMask)
+                bpc = 1;
+            if (comps > 0 && w instanceof Number && h instanceof Number && bpc instanceof Number) {
+                long bytesPerRow = (((Number) w).longValue() * comps * ((Number) bpc).intValue() + 7) / 8;
+                long len = bytesPerRow * ((Number) h).longValue();
+                return len > 0 && len < Integer.MAX_VALUE ? (int) len : -1;
+            }
+        }
+
+        // If xref stream, return entry width times entry count
+        else if ("/XRef".equals(_dict.get("Type")) && _dict.get("W") instanceof List) {
+            int width = 0;
+            for (Object w : (List) _dict.get("W"))
+                if (w instanceof Number) width += ((Number) w).intValue();
+            Object index = _dict.get("Index"), size = _dict.get("Size");
+            long count = 0;
+            if (index instanceof List) {
+                List indexList = (List) index;
+                for (int i = 1; i < indexList.size(); i += 2)
+                    if (indexList.get(i) instanceof Number) count += ((Number) indexList.get(i)).intValue();
+            }
+            else if (size instanceof Number)
+                count = ((Number) size).intValue();
+            long len = width * count;
+            return len > 0 && len < Integer.MAX_VALUE ? (int) len : -1;
+        }
+
+        // Return unknown
+        return -1;
+    }
+
+    /**
+     * Returns an input stream of the stream bytes (before filters are applied, but decrypted).
+     */
+    public InputStream openRawStream()
+    {
+        if (_bytes != null) return new ByteArrayInputStream(_bytes);
+        if (_source != null) {
+            InputStream in = _source.getInputStream(_start, _length);
+            return _decryptor != null ? _decryptor.getDecryptStream(in, _objNum, _genNum) : in;
+        }
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    /**
+     * Returns an input stream of the stream bytes run through all the filters.
+     */
+    public InputStream openDecodedStream()
+    {
+        return openDecodedStream(numFilters());
+    }
+
+    /**
+     * Returns an input stream of the stream bytes run through the first n filters. Each filter decodes incrementally
+     * with small buffers, so the encoded and intermediate data are never held in memory all at once.
+     */
+    public InputStream openDecodedStream(int nfilters)
+    {
+        // Get filters for the stream (just return raw stream if none)
+        InputStream in = openRawStream();
+        Object filter = _dict.get("Filter");
+        if (filter == null || nfilters == 0)
+            return in;
+
+        // Get filters and parameters as lists
+        List filters = filter instanceof List ? (List) filter : Collections.singletonList(filter);
+        Object parameters = _dict.get("DecodeParms");
+        List paramList = parameters instanceof List ? (List) parameters : Collections.singletonList(parameters);
+
+        // Chain decode stream for each filter
+        for (int i = 0, iMax = Math.min(filters.size(), nfilters); i < iMax; i++) {
+            String fname = (String) filters.get(i);
+            Object params = i < paramList.size() ? paramList.get(i) : null;
+            in = DecodeStreams.getDecodeStream(in, fname, params instanceof Map ? (Map) params : null);
+        }
+
+        // Return stream
+        return in;
     }
 
     /**
@@ -199,7 +442,8 @@ public class PDFStream implements Cloneable {
         catch (CloneNotSupportedException e) {
             return null;
         }
-        copy._dict = new Hashtable(_dict);
+        copy._dict = new PDFDict(_dict);
+        copy._objectNumber = 0;
         return copy;
     }
 
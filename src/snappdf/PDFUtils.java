@@ -8,12 +8,22 @@ import java.util.zip.*;
 
 import snappdf.read.DecodeCCITTFax;
 import snappdf.read.DecodeLZW;
+import snappdf.read.DecodePredictor;
 
 /*
  * Implementations of pdf decode filters
  */
 public class PDFUtils {
 
+    // A pool of inflaters, so each Flate stream doesn't allocate (and leak until finalization) native zlib memory
+    private static final ArrayDeque<Inflater> _inflaters = new ArrayDeque<>();
+
+    // The max number of pooled inflaters
+    private static final int INFLATER_POOL_MAX = 8;
+
+    // The max number of bytes inflated in one call
+    private static final int FLATE_CHUNK_SIZE = 16 * 1024;
+
     /**
      * Returns a dictionary as a string.
      */
@@ -147,6 +157,16 @@ public class PDFUtils {
      * Returns the result of runnning the bytes through a particular filter (/FlateDecode, /LZW, /ASCII85Decode, etc.).
      */
     public static byte[] getBytesDecoded(byte bytes[], int offset, int length, String aFilter, Map params)
+    {
+        return getBytesDecoded(bytes, offset, length, aFilter, params, -1);
+    }
+
+    /**
+     * Returns the result of runnning the bytes through a particular filter, with the expected decoded length if known
+     * (or -1) so output can be allocated once at the right size.
+     */
+    public static byte[] getBytesDecoded(byte bytes[], int offset, int length, String aFilter, Map params,
+        int aSizeHint)
     {
         byte decoded[];
 
@@ -171,30 +191,17 @@ public class PDFUtils {
             }
         }
 
-        // Handle FlateDecode
-        if (aFilter.equals("/FlateDecode")) {
-
-            // Get input stream for compressed bytes, inflator stream for bytes and output stream for uncompressed bytes
-            ByteArrayInputStream byteInStream = new ByteArrayInputStream(bytes, offset, length);
-            InflaterInputStream inflaterInStream = new InflaterInputStream(byteInStream, new Inflater(false));
-            ByteArrayOutputStream byteOutStream = new ByteArrayOutputStream();
-
-            // Transfer from inflaterStream to byteOutStream
-            try {
-                byte chunk[] = new byte[1024];
-                for (int len = 0; len >= 0; len = inflaterInStream.read(chunk, 0, chunk.length))
-                    byteOutStream.write(chunk, 0, len);
-
-                // get the buffer
-                decoded = byteOutStream.toByteArray();
-            }
-
-            // Catch Exceptions
-            catch (IOException e) {
-                throw new PDFException(e);
-            }
+        // Get size hint for filter output (adjusted for PNG predictor tag bytes)
+        int sizeHint = aSizeHint;
+        if (sizeHint > 0 && DecodePredictor.isPNG(predictor)) {
+            int bytesPerRow = DecodePredictor.getBytesPerRow(colors, bits, columns);
+            sizeHint = bytesPerRow > 0 && sizeHint % bytesPerRow == 0 ? sizeHint / bytesPerRow * (bytesPerRow + 1) : -1;
         }
 
+        // Handle FlateDecode: Inflate directly into output array sized from hint
+        if (aFilter.equals("/FlateDecode"))
+            decoded = bytesForFlate(bytes, offset, length, sizeHint);
+
         // Handle LZW
         else if (aFilter.equals("/LZWDecode") || aFilter.equals("/LZW")) {
 
@@ -205,7 +212,7 @@ public class PDFUtils {
                 early = ((Number) obj).intValue();
 
             // LZW decode
-            decoded = DecodeLZW.decode(bytes, offset, length, early);
+            decoded = DecodeLZW.decode(bytes, offset, length, early, sizeHint);
         }
 
         // handle CCITTFaxDecode: Create decoder instance from parameters dictionary and decode stream
@@ -222,6 +229,10 @@ public class PDFUtils {
         else if (aFilter.equals("/ASCIIHexDecode"))
             decoded = PDFUtils.bytesForASCIIHex(bytes, offset, length);
 
+            // Handle Crypt (stream was already decrypted as first stage of decoding)
+        else if (aFilter.equals("/Crypt"))
+            return Arrays.copyOfRange(bytes, offset, offset + length);
+
             // Complain if unsupported Decode
         else {
             System.err.println("Decompression type " + aFilter + " not yet supported.");
@@ -229,120 +240,83 @@ public class PDFUtils {
         }
 
         // apply predictor
-        return postprocessBytesForPredictor(decoded, predictor, colors, bits, columns);
+        return DecodePredictor.decode(decoded, predictor, colors, bits, columns);
     }
 
     /**
-     * Flate & LZW predictor algorithms
-     * Predictors are simple algorithms performed on samples prior to compression in hopes of getting better
-     * compression ratios. This method is called after lzw or flate decompression in order to undo the predictor.
+     * Flate decoder. If given size hint is exact, bytes are inflated directly into the returned array with no copies.
+     * Truncated or damaged data is decoded leniently: the bytes inflated before the end or damage are returned (like
+     * with the Flate decode stream). Bytes are inflated in chunks, since a damaged chunk loses its output.
      */
-    private static byte[] postprocessBytesForPredictor(byte buffer[], int predictor, int colors, int bitspersample, int width)
+    public static byte[] bytesForFlate(byte bytes[], int offset, int length, int aSizeHint)
     {
-        if (predictor == 1) return buffer;  // No prediction
-        if (predictor == 2) { // TIFF Predictor 2
-            // Sample actually represents a distance from same sample of pixel to it's left.
-            // This makes rows of the same color collapse into zeros.
-            int bitsperpixel = colors * bitspersample;
-            int bytesperrow = (bitsperpixel * width + 7) / 8;
-            int height = buffer.length / bytesperrow;
-            int row, column, src = 0;
-            if (bitspersample == 8) {
-                for (row = 0; row < height; ++row) {
-                    for (column = colors; column < bytesperrow; ++column)
-                        buffer[src + column] += buffer[src + column - colors];
-                    src += bytesperrow;
+        Inflater inflater = getInflater();
+        byte out[] = new byte[aSizeHint > 0 ? aSizeHint : Math.max(length * 4, 1024)];
+        int count = 0;
+        try {
+            inflater.setInput(bytes, offset, length);
+
+            // Inflate into output array, growing it if needed
+            while (!inflater.finished()) {
+
+                // If output is full, probe for one more byte to see if hint was too small
+                if (count == out.length) {
+                    byte probe[] = new byte[1];
+                    if (inflater.inflate(probe) == 0)
+                        break;
+                    out = Arrays.copyOf(out, out.length * 2);
+                    out[count++] = probe[0];
+                    continue;
                 }
-            }
-            else {
-                System.err.println("Predictor not yet implemented for this image configuration");
-                System.err.println(" bitspersample=" + bitspersample + ", samples per pixel=" + colors);
+
+                // Inflate into rest of output array - if nothing inflated and input is exhausted, data is truncated
+                int len = inflater.inflate(out, count, Math.min(out.length - count, FLATE_CHUNK_SIZE));
+                count += len;
+                if (len == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
             }
         }
-        else if ((predictor >= 10) && (predictor <= 15)) {
-            /* PNG Predictors
-             * In images using PNG predictors, the predictor is selected on a per row basis.
-             * The first byte in the row is the predictor selector for that row.
-             * Also, unlike the TIFF predictor, which works on samples, PNG predictors always
-             * work on bytes, regardless of the size of the components.
-             * For a given byte, the algorithms select the 'corresponding' byte in the
-             * three neighboring pixels (left, above, above-left).
-             * Since PNG predictors include an extra tag byte for each row, conversion is
-             * done into a new buffer instead of in place.
-             */
-            /* The wierdest thing of all, however, is that the predictor's bitsPerSample/samplesPerPixel
-             * doesn't necessarily match that of the image.
-             * An 8 bit per sample rgb image can be compressed with a 4 bits per sample,
-             * 3 sample per pixel predictor.  Seems like that would be pointless, but Illustrator
-             * and Acrobat are happy to generate images like that.
-             */
-
-            int bitsperpixel = colors * bitspersample;
-            int bytesperpixel = (bitsperpixel + 7) / 8;
-            int dest_bytesperrow = (bitsperpixel * width + 7) / 8;
-            int src_bytesperrow = dest_bytesperrow + 1;  // +1 for tag byte
-            int height = buffer.length / (src_bytesperrow);
-            int row, column, src = 0, dest = 0;
-            byte x, left, above, aboveleft;
-            byte newbyte;
-
-            // Since predictor pixelsize may not match the pixelsize of the image, there may be a final incomplete scanline
-            if (buffer.length % src_bytesperrow != 0) {
-                ++height;
-            } //...
-
-            // The real image buffer size is the size of the post-predicted buffer
-            // minus one byte for each predicted scanline (the predictor tag byte)
-            byte newbuffer[] = new byte[buffer.length - height];
-
-            for (row = 0; row < height; ++row) {
-                predictor = buffer[src];
-                // last scanline may not be complete
-                if (row == height - 1)
-                    src_bytesperrow = buffer.length - src;
-                for (column = 1; column < src_bytesperrow; ++column) {
-                    x = buffer[src + column];
-                    left = column - 1 < bytesperpixel ? 0 : newbuffer[dest + column - 1 - bytesperpixel];
-                    if (predictor == 0) // None
-                        newbyte = x;
-                    else if (predictor == 1) // Sub
-                        newbyte = (byte) (x + left);
-                    else {
-                        above = row == 0 ? 0 : newbuffer[dest + column - 1 - dest_bytesperrow];
-                        if (predictor == 2) // Up
-                            newbyte = (byte) (x + above);
-                        else if (predictor == 3) // Average
-                            newbyte = (byte) (x + (left + above) / 2);
-                        else if (predictor == 4) { //Paeth
-                            int p, pa, pb, pc, pr;
-                            if ((row == 0) || (column < bytesperpixel))
-                                aboveleft = 0;
-                            else
-                                aboveleft = newbuffer[dest + column - 1 - dest_bytesperrow - bytesperpixel];
-                            //TODO : double check sign extension, since all java bytes are signed
-                            p = left + above - aboveleft;
-                            pa = Math.abs(p - left) & 255;
-                            pb = Math.abs(p - above) & 255;
-                            pc = Math.abs(p - aboveleft) & 255;
-                            if ((pa <= pb) && (pa <= pc))
-                                pr = left;
-                            else if (pb <= pc)
-                                pr = above;
-                            else pr = aboveleft;
-                            newbyte = (byte) (x + pr);
-                        }
-                        else throw new PDFException("Illegal value for PNG predictor tag");
-                    }
-                    newbuffer[dest + column - 1] = newbyte;
-                }
-                src += src_bytesperrow;
-                dest += dest_bytesperrow;
-            }
-            buffer = newbuffer;
+
+        // Catch damaged data: Complain and return bytes inflated so far
+        catch (DataFormatException e) {
+            System.err.println("PDFUtils.bytesForFlate: Damaged Flate data (keeping " + count + " bytes): " + e);
+        }
+
+        // Return inflater to pool
+        finally {
+            releaseInflater(inflater);
+        }
+
+        // Return output array (trimmed if hint was missing or too large)
+        return count == out.length ? out : Arrays.copyOf(out, count);
+    }
+
+    /**
+     * Returns an Inflater from the shared pool (or a new one if pool is empty).
+     */
+    public static Inflater getInflater()
+    {
+        synchronized (_inflaters) {
+            Inflater inflater = _inflaters.poll();
+            if (inflater != null)
+                return inflater;
         }
-        else System.err.println("Predictor algorithm #" + predictor + " not applied - image will look funny");
+        return new Inflater(false);
+    }
 
-        return buffer;
+    /**
+     * Returns an Inflater to the shared pool. If pool is full, the inflater is ended to free its native zlib memory.
+     */
+    public static void releaseInflater(Inflater anInflater)
+    {
+        anInflater.reset();
+        synchronized (_inflaters) {
+            if (_inflaters.size() < INFLATER_POOL_MAX) {
+                _inflaters.push(anInflater);
+                return;
+            }
+        }
+        anInflater.end();
     }
 
-}
\ No newline at end of file
+}
@@ -3,6 +3,8 @@
  */
 package snappdf;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.text.*;
 import java.util.*;
 import java.util.zip.DeflaterOutputStream;
@@ -567,10 +569,6 @@ public class PDFWriter extends PDFWriterBase {
             // Write dictionary contents surrounded by dictionary brackets
             appendln("<<");
             for (String key : map.keySet()) {
-
-                // Skip entries that we put in for caching purposes
-                if (key.startsWith("_rbcached")) continue;
-
                 append('/').append(key).append(' ');
                 writeXRefEntry(map.get(key));
                 appendln();
@@ -676,10 +674,25 @@ public class PDFWriter extends PDFWriterBase {
      */
     public void writeStream(PDFStream aStream)
     {
+        // If stream is already filtered and doesn't need encryption, copy bytes from stream (source isn't loaded)
+        Map dict = aStream.getDict();
+        if (dict.get("Filter") != null && getEncryptor() == null && !aStream.isEncrypted()) {
+            dict.put("Length", aStream.getLength());
+            writeXRefEntry(dict);
+            appendln();
+            appendln("stream");
+            try (InputStream in = aStream.openRawStream()) {
+                in.transferTo(_source);
+            }
+            catch (IOException e) { throw new PDFException(e); }
+            appendln();
+            appendln("endstream");
+            return;
+        }
+
         // Get bytes and length
         byte bytes[] = aStream.getBytes();
         int length = bytes.length;
-        Map dict = aStream.getDict();
 
         // Compress the data if it hasn't already been filtered
         Object filter = dict.get("Filter");
@@ -4,24 +4,16 @@
 package snappdf;
 
 /**
- * This class represents a PDF XRef entry.
+ * This class represents a PDF XRef entry. The entry data lives in the packed columns of PDFXTable, so an entry is
+ * just a lightweight handle for an object number that is only created when a caller asks for it.
  */
 public class PDFXEntry {
 
-    // The state
-    public int state = EntryUnknown;
+    // The XTable
+    private PDFXTable _xtable;
 
     // The object number
-    public int objectNumber;
-
-    // The file offset
-    public int fileOffset = -1;
-
-    // The generation number
-    public int generation;
-
-    // The object value
-    public Object value;
+    public final int objectNumber;
 
     // Constants for Entry types
     public static final int EntryUnknown = 0;
@@ -33,27 +25,43 @@ public class PDFXEntry {
     /**
      * Creates a new PDFXEntry.
      */
-    public PDFXEntry()
+    public PDFXEntry(PDFXTable aTable, int anIndex)
     {
+        _xtable = aTable;
+        objectNumber = anIndex;
     }
 
     /**
-     * Creates a new PPDFXEntryBase.
+     * Returns the XTable.
      */
-    public PDFXEntry(int anIndex)
-    {
-        objectNumber = anIndex;
-    }
+    public PDFXTable getXTable()  { return _xtable; }
+
+    /**
+     * Returns the state (EntryRead if the value has been resolved).
+     */
+    public int getState()  { return _xtable.getXRefState(objectNumber); }
+
+    /**
+     * Returns the file offset (or object stream number for compressed entry).
+     */
+    public long getFileOffset()  { return _xtable.getXRefOffset(objectNumber); }
+
+    /**
+     * Returns the generation number (or index in object stream for compressed entry).
+     */
+    public int getGeneration()  { return _xtable.getXRefGeneration(objectNumber); }
+
+    /**
+     * Returns the resolved object value, if read.
+     */
+    public Object getValue()  { return _xtable.getXRefValue(objectNumber); }
 
     /**
      * Releases the reference to the object.
      */
     public void reset()
     {
-        if (state == EntryRead) {
-            state = EntryNotYetRead;
-            value = null;
-        }
+        _xtable.resetXRef(objectNumber);
     }
 
     /**
@@ -64,7 +72,15 @@ public class PDFXEntry {
         if (anObj == this) return true;
         PDFXEntry other = anObj instanceof PDFXEntry ? (PDFXEntry) anObj : null;
         if (other == null) return false;
-        return other.fileOffset == fileOffset && other.generation == generation;
+        return other._xtable == _xtable && other.objectNumber == objectNumber;
+    }
+
+    /**
+     * Standard hashCode implementation.
+     */
+    public int hashCode()
+    {
+        return objectNumber;
     }
 
     /**
@@ -75,4 +91,4 @@ public class PDFXEntry {
         return objectNumber + " 0 R";
     }
 
-}
\ No newline at end of file
+}
@@ -3,20 +3,56 @@
  */
 package snappdf;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import snappdf.read.PDFDictUtils;
 import snap.util.ListUtils;
 
 /**
  * A class to manage XRefs in PDFFile.
+ * <p>
+ * Objects can be resolved from multiple threads: each read parses with its own PDFReader cursor over the shared
+ * byte source, and resolved values are published to a concurrent cache without locking (if two threads resolve the
+ * same object at once, the first published value wins). Cache hits only set a recently used bit on the entry; the
+ * cache is trimmed under a lock with a clock sweep that releases entries not used since the last sweep.
+ * <p>
+ * The XRef columns are only written while the file is opened - or, for a linearized file opened from its first page
+ * XRef section, when the remaining sections are read on first reference to an object not yet in table (only empty
+ * entries are filled then), or when an entry with a damaged offset is corrected from a scan of the file. Columns are
+ * written under the table lock and grown by publishing new arrays (with the count) through a single volatile field;
+ * readers that find an empty entry take the lock (or check the latest columns) before giving up on it.
  */
 public class PDFXTable {
 
     // The file
     public PDFFile _pfile;
 
-    // The XRefs
-    public List<PDFXEntry> _xrefs = new ArrayList();
+    // The XRef columns (count, offsets, generations and states), replaced when table grows
+    private volatile Columns _columns = new Columns(0, new long[0], new int[0], new byte[0]);
+
+    // The resolved XRef values, keyed by object number
+    private ConcurrentHashMap<Integer, CacheEntry> _values = new ConcurrentHashMap<>();
+
+    // The total estimated weight of resolved values
+    private AtomicLong _cacheWeight = new AtomicLong();
+
+    // The maximum estimated weight of resolved values before values not recently used are released
+    private volatile long _cacheLimit = DEFAULT_CACHE_LIMIT;
+
+    // The number of cache hits and misses
+    private LongAdder _cacheHits = new LongAdder(), _cacheMisses = new LongAdder();
+
+    // The lock for releasing values and the clock hand of the sweep (kept across trims, so sweep resumes where it left)
+    private final Object _trimLock = new Object();
+    private Iterator<Map.Entry<Integer, CacheEntry>> _clockHand;
+
+    // The objects changed or added since file was read, by object number (kept out of cache, so never released)
+    private ConcurrentSkipListMap<Integer, Object> _changedValues = new ConcurrentSkipListMap<>();
+
+    // The list of XRefs
+    private List<PDFXEntry> _xrefs;
 
     // List of entries (this should use XRefs)
     public List _entries = new Vector(16);
@@ -24,6 +60,22 @@ public class PDFXTable {
     // The reader
     public PDFReader _reader;
 
+    // The file offset of XRef sections not yet read (for linearized file opened from first page section) or -1
+    private volatile long _deferredXRefPos = -1;
+
+    // The XRef index rebuilt by scanning file, if a damaged XRef offset was found
+    private PDFXTableRebuilder _rebuilder;
+
+    // The most recently used decoded object streams by object number, and their total byte length
+    private LinkedHashMap<Integer, ObjectStream> _objStms = new LinkedHashMap<>(16, .75f, true);
+    private long _objStmsWeight;
+
+    // The max total byte length of decoded object streams kept
+    private static final long OBJ_STM_CACHE_LIMIT = 4 << 20;
+
+    // The default cache limit in bytes
+    public static final long DEFAULT_CACHE_LIMIT = 64 * 1024 * 1024;
+
     /**
      * Creates an XTable for file.
      */
@@ -42,11 +94,15 @@ public class PDFXTable {
     }
 
     /**
-     * Returns the list of PDFEntry objects from XRef table.
+     * Returns the list of PDFEntry objects from XRef table. Entries are created on demand.
      */
     public List<PDFXEntry> getXRefs()
     {
-        return _xrefs;
+        if (_xrefs != null) return _xrefs;
+        return _xrefs = new AbstractList<PDFXEntry>() {
+            public PDFXEntry get(int anIndex)  { return getXRef(anIndex); }
+            public int size()  { return getXRefCount(); }
+        };
     }
 
     /**
@@ -54,15 +110,22 @@ public class PDFXTable {
      */
     public int getXRefCount()
     {
-        return _xrefs.size();
+        return _columns.count;
     }
 
     /**
-     * Sets the list to contain at least this many refs.
+     * Sets the table to contain at least this many refs.
      */
-    public void setXRefMax(int aCount)
+    public synchronized void setXRefMax(int aCount)
     {
-        while (_xrefs.size() < aCount) _xrefs.add(new PDFXEntry(_xrefs.size()));
+        Columns cols = _columns;
+        if (aCount <= cols.count) return;
+        if (aCount > cols.states.length) {
+            int len = Math.max(aCount, Math.min(cols.states.length * 2, Integer.MAX_VALUE - 8));
+            _columns = new Columns(aCount, Arrays.copyOf(cols.offsets, len), Arrays.copyOf(cols.gens, len),
+                    Arrays.copyOf(cols.states, len));
+        }
+        else _columns = new Columns(aCount, cols.offsets, cols.gens, cols.states);
     }
 
     /**
@@ -70,8 +133,307 @@ public class PDFXTable {
      */
     public PDFXEntry getXRef(int anIndex)
     {
+        return new PDFXEntry(this, anIndex);
+    }
+
+    /**
+     * Returns the state of XRef at given index (EntryRead if value has been resolved).
+     */
+    public int getXRefState(int anIndex)
+    {
+        if (anIndex < 0) return PDFXEntry.EntryUnknown;
+        Columns cols = _columns;
+        if (anIndex >= cols.count || cols.states[anIndex] == PDFXEntry.EntryUnknown) {
+            if (_deferredXRefPos >= 0)
+                readDeferredXRefs();
+            cols = _columns;
+            if (anIndex >= cols.count) return PDFXEntry.EntryUnknown;
+        }
+        if (_values.containsKey(anIndex) || _changedValues.containsKey(anIndex)) return PDFXEntry.EntryRead;
+        return cols.states[anIndex];
+    }
+
+    /**
+     * Sets the file offset of XRef sections to read when an object not yet in table is first referenced.
+     */
+    public void setDeferredXRefPos(long aPos)
+    {
+        _deferredXRefPos = aPos;
+    }
+
+    /**
+     * Returns whether there are XRef sections that haven't been read yet.
+     */
+    public boolean isDeferredXRefs()  { return _deferredXRefPos >= 0; }
+
+    /**
+     * Reads the deferred XRef sections (if any). Entries already set by first page section are kept. If sections are
+     * damaged, the remaining entries are added from a scan of the file.
+     */
+    public synchronized void readDeferredXRefs()
+    {
+        // Get position and clear it first (reading can resolve objects, like an indirect Length, and get back here)
+        long pos = _deferredXRefPos;
+        if (pos < 0) return;
+        _deferredXRefPos = -1;
+
+        // Read sections
+        try { new PDFReader(_pfile, _reader.getSource()).readXRefSection(pos); }
+
+        // If sections are damaged, add entries still empty from XRef index rebuilt by scanning file (object streams
+        // are read on this thread, since this lock is held)
+        catch (Exception | PDFException e) {
+            System.err.println("PDFXTable.readDeferredXRefs: Failed to read XRef section at " + pos + ": " + e);
+            PDFXTableRebuilder rebuilder = getRebuilder();
+            rebuilder.addObjects(this);
+            rebuilder.readObjectStreams(this, Runnable::run);
+        }
+    }
+
+    /**
+     * Returns the file offset of XRef at given index (or object stream number for compressed entry).
+     */
+    public long getXRefOffset(int anIndex)
+    {
+        Columns cols = _columns;
+        return anIndex >= 0 && anIndex < cols.count ? cols.offsets[anIndex] : -1;
+    }
+
+    /**
+     * Returns the generation of XRef at given index (or index in object stream for compressed entry).
+     */
+    public int getXRefGeneration(int anIndex)
+    {
+        Columns cols = _columns;
+        return anIndex >= 0 && anIndex < cols.count ? cols.gens[anIndex] : 0;
+    }
+
+    /**
+     * Returns the generation number of object at given index in references and object definitions (for compressed and
+     * new objects, this is zero).
+     */
+    public int getObjectGeneration(int anIndex)
+    {
+        Columns cols = _columns;
+        if (anIndex < 0 || anIndex >= cols.count) return 0;
+        int state = cols.states[anIndex];
+        return state == PDFXEntry.EntryNotYetRead || state == PDFXEntry.EntryDeleted ? cols.gens[anIndex] : 0;
+    }
+
+    /**
+     * Returns the resolved value of XRef at given index, if read.
+     */
+    public Object getXRefValue(int anIndex)
+    {
+        Object value = _changedValues.get(anIndex);
+        if (value != null) return value;
+        CacheEntry entry = _values.get(anIndex);
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * Sets the XRef at given index, unless already defined (the newest XRef section is read first, so first wins).
+     */
+    public synchronized void setXRef(int anIndex, int aState, long anOffset, int aGen)
+    {
+        if (anIndex < 0) return;
         setXRefMax(anIndex + 1);
-        return _xrefs.get(anIndex);
+        Columns cols = _columns;
+        if (cols.states[anIndex] != PDFXEntry.EntryUnknown) return;
+        cols.offsets[anIndex] = anOffset;
+        cols.gens[anIndex] = aGen;
+        cols.states[anIndex] = (byte) aState;
+    }
+
+    /**
+     * Replaces the XRef at given index and releases its resolved value (for XRef table rebuilt by scanning file).
+     */
+    synchronized void replaceXRef(int anIndex, int aState, long anOffset, int aGen)
+    {
+        setXRefMax(anIndex + 1);
+        Columns cols = _columns;
+        cols.offsets[anIndex] = anOffset;
+        cols.gens[anIndex] = aGen;
+        cols.states[anIndex] = (byte) aState;
+        resetXRef(anIndex);
+    }
+
+    /**
+     * Sets the file offset of XRef at given index (for offset corrected from XRef index rebuilt by scanning file).
+     */
+    private synchronized void setXRefOffset(int anIndex, long anOffset)
+    {
+        _columns.offsets[anIndex] = anOffset;
+    }
+
+    /**
+     * Releases the resolved value of XRef at given index.
+     */
+    public void resetXRef(int anIndex)
+    {
+        CacheEntry entry = _values.remove(anIndex);
+        if (entry != null)
+            _cacheWeight.addAndGet(-entry.weight);
+    }
+
+    /**
+     * Sets a new or changed value for XRef at given index. The value is kept (instead of cached) and is returned for
+     * the XRef from then on, so it can be written with an incremental update.
+     */
+    public void setXRefObj(int anIndex, Object aValue)
+    {
+        if (anIndex <= 0 || anIndex >= getXRefCount())
+            throw new PDFException("PDFXTable.setXRefObj: Object number not in table: " + anIndex);
+        _changedValues.put(anIndex, aValue);
+    }
+
+    /**
+     * Adds a new object with the next free object number and returns its XRef.
+     */
+    public synchronized PDFXEntry addXRefObj(Object aValue)
+    {
+        readDeferredXRefs();
+        int objNum = Math.max(getXRefCount(), 1);
+        setXRefMax(objNum + 1);
+        setXRefObj(objNum, aValue);
+        return getXRef(objNum);
+    }
+
+    /**
+     * Returns the value of XRef at given index to be changed in place. The value is pinned with the changed values
+     * (so it is never released from cache and is written with an incremental update).
+     */
+    public Object editXRefObj(int anIndex)
+    {
+        Object value = getXRefObj(getXRef(anIndex));
+        if (value == null)
+            throw new PDFException("PDFXTable.editXRefObj: Object not found: " + anIndex);
+        setXRefMax(anIndex + 1);
+        Object old = _changedValues.putIfAbsent(anIndex, value);
+        return old != null ? old : value;
+    }
+
+    /**
+     * Returns the values changed or added since file was read, by object number.
+     */
+    public SortedMap<Integer, Object> getChangedXRefObjs()
+    {
+        return new TreeMap<>(_changedValues);
+    }
+
+    /**
+     * Returns the maximum estimated weight in bytes of resolved values kept in cache.
+     */
+    public long getCacheLimit()  { return _cacheLimit; }
+
+    /**
+     * Sets the maximum estimated weight in bytes of resolved values kept in cache.
+     */
+    public void setCacheLimit(long aValue)
+    {
+        _cacheLimit = aValue;
+        trimCache();
+    }
+
+    /**
+     * Returns the current estimated weight in bytes of resolved values kept in cache.
+     */
+    public long getCacheWeight()  { return _cacheWeight.get(); }
+
+    /**
+     * Returns the number of resolves that were answered from cache.
+     */
+    public long getCacheHitCount()  { return _cacheHits.sum(); }
+
+    /**
+     * Returns the number of resolves that had to read the object.
+     */
+    public long getCacheMissCount()  { return _cacheMisses.sum(); }
+
+    /**
+     * Adds a resolved value to cache if not already there and returns the cached value.
+     */
+    private Object putValueIfAbsent(int anIndex, Object aValue)
+    {
+        // Mark value with object number (so file caches can key values created from it by object number)
+        if (aValue instanceof PDFDict)
+            ((PDFDict) aValue).setObjectNumber(anIndex);
+        else if (aValue instanceof PDFStream)
+            ((PDFStream) aValue).setObjectNumber(anIndex);
+        else if (aValue instanceof PDFArray)
+            ((PDFArray) aValue).setObjectNumber(anIndex);
+
+        // Add entry (or return value of entry added by another thread first)
+        CacheEntry entry = new CacheEntry(aValue, getObjectWeight(aValue));
+        CacheEntry old = _values.putIfAbsent(anIndex, entry);
+        if (old != null)
+            return old.value;
+
+        // Add weight and release values not recently used if over limit
+        if (_cacheWeight.addAndGet(entry.weight) > _cacheLimit)
+            trimCache();
+        return aValue;
+    }
+
+    /**
+     * Releases values not recently used until cache weight is under limit, with a clock sweep: entries used since the
+     * hand last passed get their used bit cleared and a second chance, others are released. The last value is kept.
+     */
+    private void trimCache()
+    {
+        synchronized (_trimLock) {
+            while (_cacheWeight.get() > _cacheLimit && _values.size() > 1) {
+                if (_clockHand == null || !_clockHand.hasNext())
+                    _clockHand = _values.entrySet().iterator();
+                if (!_clockHand.hasNext())
+                    break;
+                Map.Entry<Integer, CacheEntry> next = _clockHand.next();
+                CacheEntry entry = next.getValue();
+                if (entry.used)
+                    entry.used = false;
+                else if (_values.remove(next.getKey(), entry))
+                    _cacheWeight.addAndGet(-entry.weight);
+            }
+        }
+    }
+
+    /**
+     * Returns the estimated memory weight of a resolved object in bytes. Streams are weighed by byte length (unless
+     * still a slice of source, which costs nothing extra).
+     */
+    public static int getObjectWeight(Object anObj)
+    {
+        if (anObj instanceof PDFStream) {
+            PDFStream stream = (PDFStream) anObj;
+            int bytesWeight = stream.isBytesSet() ? stream.getLength() : 0;
+            return 32 + bytesWeight + getObjectWeight(stream.getDict());
+        }
+        if (anObj instanceof PDFDict) {
+            PDFDict dict = (PDFDict) anObj;
+            int weight = 48;
+            for (String key : dict.keySet())
+                weight += 32 + getObjectWeight(key) + getObjectWeight(dict.getRaw(key));
+            return weight;
+        }
+        if (anObj instanceof PDFLazy) {
+            PDFLazy lazy = (PDFLazy) anObj;
+            return lazy.isParsed() ? getObjectWeight(lazy.getValue()) : 24;
+        }
+        if (anObj instanceof Map) {
+            int weight = 48;
+            for (Map.Entry entry : (Set<Map.Entry>) ((Map) anObj).entrySet())
+                weight += 32 + getObjectWeight(entry.getKey()) + getObjectWeight(entry.getValue());
+            return weight;
+        }
+        if (anObj instanceof List) {
+            int weight = 24;
+            for (Object item : (List) anObj)
+                weight += 8 + getObjectWeight(item);
+            return weight;
+        }
+        if (anObj instanceof String)
+            return 40 + ((String) anObj).length();
+        return 16;
     }
 
     /**
@@ -102,29 +464,41 @@ public class PDFXTable {
      */
     protected Object getXRefObjImpl(PDFXEntry anEntry) throws Exception
     {
-        // Handle entry by entry state
-        switch (anEntry.state) {
+        // If already read, just return value
+        int objNum = anEntry.objectNumber;
+        Object changed = _changedValues.isEmpty() ? null : _changedValues.get(objNum);
+        if (changed != null)
+            return changed;
+        CacheEntry entry = _values.get(objNum);
+        if (entry != null) {
+            if (!entry.used)
+                entry.used = true;
+            _cacheHits.increment();
+            return entry.value;
+        }
+        _cacheMisses.increment();
 
-            // Handle read object
-            case PDFXEntry.EntryRead:
-                return anEntry.value;
+        // Handle entry by entry state
+        switch (getXRefState(objNum)) {
 
             // Handle unread object: read, decrypt (maybe), update entry and return
             case PDFXEntry.EntryNotYetRead: {
-                Object obj = _reader.readObjectDefAt(anEntry.fileOffset);
-                if (_pfile._securityHandler != null)
-                    obj = _pfile._securityHandler.decryptObject(obj, anEntry.objectNumber, anEntry.generation);
-                anEntry.state = PDFXEntry.EntryRead;
-                return anEntry.value = obj;
+                Object obj = readObjectDef(objNum);
+                return putValueIfAbsent(objNum, obj);
             }
 
             // Handle compressed object
-            case PDFXEntry.EntryCompressed:
-                int ostreamObjNum = anEntry.fileOffset;
-                int objIndex = anEntry.generation;
+            case PDFXEntry.EntryCompressed: {
+                Columns cols = _columns;
+                int ostreamObjNum = (int) cols.offsets[objNum];
+                int objIndex = cols.gens[objNum];
                 Object obj = readCompressedEntry(ostreamObjNum, objIndex);
-                anEntry.state = PDFXEntry.EntryRead;
-                return anEntry.value = obj;
+                return putValueIfAbsent(objNum, obj);
+            }
+
+            // Handle object resolved by another thread since cache miss
+            case PDFXEntry.EntryRead:
+                return getXRefObjImpl(anEntry);
 
             // Handle deleted object
             case PDFXEntry.EntryDeleted:
@@ -138,24 +512,241 @@ public class PDFXTable {
     }
 
     /**
-     * Read compressed entry.
+     * Reads the object definition for given uncompressed object number and decrypts it (if needed).
+     */
+    Object readObjectDef(int objNum)
+    {
+        // If object definition isn't at offset, get offset from XRef index rebuilt by scanning file
+        PDFReader reader = createReader();
+        Columns cols = _columns;
+        long offset = cols.offsets[objNum];
+        if (!reader.isObjectDefAt(offset, objNum)) {
+            long offset2 = getRebuilder().getOffset(objNum);
+            if (offset2 >= 0)
+                setXRefOffset(objNum, offset = offset2);
+        }
+
+        // Read object, decrypting strings and marking streams to be decrypted when decoded (if needed)
+        PDFCodec decryptor = _pfile._securityHandler;
+        if (decryptor != null && !isEncryptDict(objNum))
+            return reader.readObjectDefAt(offset, decryptor, objNum, cols.gens[objNum]);
+        return reader.readObjectDefAt(offset);
+    }
+
+    /**
+     * Returns whether given object number is the encryption dictionary (which isn't encrypted).
+     */
+    private boolean isEncryptDict(int objNum)
+    {
+        Map trailer = _pfile.getTrailer();
+        Object encrypt = trailer != null ? trailer.get("Encrypt") : null;
+        return encrypt instanceof PDFXEntry && ((PDFXEntry) encrypt).objectNumber == objNum;
+    }
+
+    /**
+     * Returns the XRef index rebuilt by scanning file (scanning on first call).
+     */
+    private synchronized PDFXTableRebuilder getRebuilder()
+    {
+        if (_rebuilder != null) return _rebuilder;
+        System.err.println("PDFXTable: XRef offset damaged - scanning file for objects");
+        PDFXTableRebuilder rebuilder = new PDFXTableRebuilder(_pfile, _reader.getSource());
+        rebuilder.scan(ForkJoinPool.commonPool());
+        return _rebuilder = rebuilder;
+    }
+
+    /**
+     * Sets the XRef index rebuilt by scanning file (when whole table was rebuilt on open).
+     */
+    void setRebuilder(PDFXTableRebuilder aRebuilder)  { _rebuilder = aRebuilder; }
+
+    /**
+     * Returns whether table was rebuilt (or entries corrected) by scanning file, since XRef sections were damaged.
+     */
+    public synchronized boolean isRebuilt()  { return _rebuilder != null; }
+
+    /**
+     * Reads an object stream and returns the object at given index. When the stream is decoded, all the other objects
+     * in it are parsed in the same pass and added to cache. The decoded bytes and offset table of the most recently used
+     * streams are also kept (up to a small limit), so when a sibling is released from cache, it is parsed again without
+     * decoding the whole stream again.
+     * <p>
+     * Compressed objects are stored in a stream with this structure:
+     * <<
+     * /Type /ObjStm
+     * /N     <number of compressed objects>
+     * /First <byte offset of first object>
+     * /Extends <ptr to another objstm>
+     * >>
+     * stream
+     * <objnum1> <byteoffset1> <objnum2> <byteoffset2> ...
+     * object1 object2 object3
+     * endstream
      */
     public Object readCompressedEntry(int ostmNum, int objIndex)
     {
-        // Get the xref object for the object stream
-        PDFXEntry entry = getXRef(ostmNum);
-        Object obj = getXRefObj(entry);
+        // If object stream already decoded, just parse requested object
+        ObjectStream ostm;
+        synchronized (_objStms) { ostm = _objStms.get(ostmNum); }
+        if (ostm != null && objIndex >= 0)
+            return objIndex < ostm.objNums.length ? ostm.readObject(_pfile, objIndex) : null;
+
+        // Decode object stream and add to decoded streams
+        if (ostm == null) {
+            ostm = decodeObjectStream(ostmNum);
+            if (ostm == null)
+                return null;
+            addObjectStream(ostmNum, ostm);
+        }
+
+        // Read objects in order and add to cache (if xref table still maps object to this stream)
+        Object value = null;
+        for (int i = 0; i < ostm.objNums.length; i++) {
+            Object cobj = ostm.readObject(_pfile, i);
+            if (i == objIndex)
+                value = cobj;
+            else if (isCompressedEntryAt(ostm.objNums[i], ostmNum, i))
+                putValueIfAbsent(ostm.objNums[i], cobj);
+        }
+
+        // Return requested object
+        return value;
+    }
+
+    /**
+     * Reads and decodes the object stream with given object number and its offset table (or returns null if missing).
+     */
+    private ObjectStream decodeObjectStream(int ostmNum)
+    {
+        // Get the object stream (if not cached, read it without caching, since only its objects are needed)
+        Object obj = getXRefState(ostmNum) == PDFXEntry.EntryNotYetRead ? readObjectDef(ostmNum) :
+                getXRefObj(getXRef(ostmNum));
+        if (!(obj instanceof PDFStream)) {
+            System.err.println("PDFXTable.readCompressedEntry: Object stream not found: " + ostmNum);
+            return null;
+        }
+
+        // Get object count and offset of first object and decode stream
+        PDFStream stream = (PDFStream) obj;
+        Map sdict = stream.getDict();
+        int count = PDFDictUtils.getInt(sdict, _pfile, "N");
+        int firstOffset = PDFDictUtils.getInt(sdict, _pfile, "First");
+        byte sbytes[] = stream.decodeStream();
+        PDFReader reader = new PDFReader(_pfile, sbytes);
+
+        // Read offset table: 2 ints per object (object number, relative offset)
+        int objNums[] = new int[count], objOffsets[] = new int[count];
+        for (int i = 0; i < count; i++) {
+            objNums[i] = reader.readInt();
+            objOffsets[i] = firstOffset + reader.readInt();
+        }
+        return new ObjectStream(sbytes, objNums, objOffsets);
+    }
+
+    /**
+     * Adds a decoded object stream and releases least recently used ones while over limit (the new one is kept).
+     */
+    private void addObjectStream(int ostmNum, ObjectStream anObjStm)
+    {
+        synchronized (_objStms) {
+            ObjectStream old = _objStms.put(ostmNum, anObjStm);
+            _objStmsWeight += anObjStm.getWeight() - (old != null ? old.getWeight() : 0);
+            Iterator<ObjectStream> iter = _objStms.values().iterator();
+            while (_objStmsWeight > OBJ_STM_CACHE_LIMIT && _objStms.size() > 1) {
+                _objStmsWeight -= iter.next().getWeight();
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns whether XRef at given index is a compressed entry in given object stream at given stream index.
+     */
+    private boolean isCompressedEntryAt(int anIndex, int ostmNum, int objIndex)
+    {
+        Columns cols = _columns;
+        return anIndex >= 0 && anIndex < cols.count && cols.states[anIndex] == PDFXEntry.EntryCompressed &&
+                cols.offsets[anIndex] == ostmNum && cols.gens[anIndex] == objIndex;
+    }
 
-        // The first time through, the object will point to the stream representation of the object stream.
-        // Get it and create a PDFObjectStream, then change the reference to point to the object stream
-        PDFObjectStream oStm;
-        if (obj instanceof PDFStream) {
-            oStm = new PDFObjectStream((PDFStream) obj, _pfile);
-            entry.value = oStm;
+    /**
+     * Reads all object streams with given executor, so compressed objects are decoded in parallel up front.
+     */
+    public void readObjectStreams(Executor anExecutor)
+    {
+        // Make sure all XRef sections are read
+        readDeferredXRefs();
+
+        // Get object stream numbers
+        BitSet ostmNums = new BitSet();
+        Columns cols = _columns;
+        for (int i = 0; i < cols.count; i++)
+            if (cols.states[i] == PDFXEntry.EntryCompressed)
+                ostmNums.set((int) cols.offsets[i]);
+
+        // Read each object stream with executor and wait for all to finish
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = ostmNums.nextSetBit(0); i >= 0; i = ostmNums.nextSetBit(i + 1)) {
+            int ostmNum = i;
+            futures.add(CompletableFuture.runAsync(() -> readObjectStream(ostmNum), anExecutor));
         }
-        else oStm = (PDFObjectStream) obj;
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
 
-        return oStm.get(objIndex);
+    /**
+     * Reads all objects in object stream into cache.
+     */
+    private void readObjectStream(int ostmNum)
+    {
+        try { readCompressedEntry(ostmNum, -1); }
+        catch (Exception | PDFException e) {
+            System.err.println("PDFXTable.readObjectStream: Failed to read object stream " + ostmNum + ": " + e);
+        }
+    }
+
+    /**
+     * Resolves the given references in one pass ordered by file offset, so objects are read with a sequential scan of
+     * the source instead of jumping around the file. Compressed objects are read by object stream (each stream once,
+     * at the offset of the stream). References already resolved are skipped. Returns the number of objects read.
+     */
+    public int resolveAll(Collection<PDFXEntry> theRefs)
+    {
+        // Get object numbers to read: uncompressed objects and object streams of compressed objects
+        BitSet readNums = new BitSet(), ostmNums = new BitSet();
+        for (PDFXEntry ref : theRefs) {
+            int objNum = ref.objectNumber;
+            switch (getXRefState(objNum)) {
+                case PDFXEntry.EntryNotYetRead: readNums.set(objNum); break;
+                case PDFXEntry.EntryCompressed: ostmNums.set((int) getXRefOffset(objNum)); break;
+                default: break;
+            }
+        }
+        readNums.or(ostmNums);
+
+        // Sort object numbers by file offset (object streams that are themselves compressed go last)
+        List<Integer> objNums = new ArrayList<>(readNums.cardinality());
+        for (int i = readNums.nextSetBit(0); i >= 0; i = readNums.nextSetBit(i + 1))
+            objNums.add(i);
+        Columns cols = _columns;
+        objNums.sort(Comparator.comparingLong(i ->
+                i < cols.count && cols.states[i] == PDFXEntry.EntryNotYetRead ? cols.offsets[i] : Long.MAX_VALUE));
+
+        // Read objects in offset order
+        int readCount = 0;
+        for (int objNum : objNums) {
+            try {
+                if (ostmNums.get(objNum))
+                    readCompressedEntry(objNum, -1);
+                else putValueIfAbsent(objNum, readObjectDef(objNum));
+                readCount++;
+            }
+            catch (Exception | PDFException e) {
+                System.err.println("PDFXTable.resolveAll: Failed to read object " + objNum + ": " + e);
+            }
+        }
+
+        // Return number of objects read
+        return readCount;
     }
 
     /**
@@ -164,7 +755,21 @@ public class PDFXTable {
      */
     public void resetXRefs()
     {
-        for (PDFXEntry xref : _xrefs) xref.reset();
+        for (Integer objNum : _values.keySet())
+            resetXRef(objNum);
+        synchronized (_objStms) {
+            _objStms.clear();
+            _objStmsWeight = 0;
+        }
+    }
+
+    /**
+     * Returns a new reader cursor over the shared byte source, so objects can be parsed concurrently. Readers are
+     * cheap (just a position over the source), so each read gets its own instead of keeping one per thread.
+     */
+    public PDFReader createReader()
+    {
+        return new PDFReader(_pfile, _reader.getSource());
     }
 
     /**
@@ -239,91 +844,92 @@ public class PDFXTable {
         return getRefString(index);
     }
 
+
     /**
-     * A class to read pdf 1.5 compressed objects. Compressed objects are stored in a stream with this structure:
-     * <<
-     * /Type /ObjStm
-     * /N     <number of compressed objects>
-     * /First <byte offset of first object>
-     * /Extends <ptr to another objstm>
-     * >>
-     * stream
-     * <objnum1> <byteoffset1> <objnum2> <byteoffset2> ...
-     * object1 object2 object3
-     * endstream
-     * <p>
-     * PDFObjectStream reads the offset table at the beginning of stream and stores the objects & byte numbers at
-     * initialization. To read a specific object, the PDFReader's stream data gets reset to object stream's data and
-     * position is set to position in table.
+     * A decoded object stream: the decoded bytes, and the object numbers and offsets of the objects in it.
      */
-    private static class PDFObjectStream {
+    private static class ObjectStream {
 
-        // Ivars
-        int _firstOffset;
-        Offsets _offTable[];
-        PDFReader _reader;
+        // The decoded stream bytes
+        final byte bytes[];
+
+        // The object numbers and byte offsets (from start of stream) of objects
+        final int objNums[], offsets[];
 
         /**
-         * Creates new PDFObjectStream.
+         * Creates a new ObjectStream.
          */
-        public PDFObjectStream(PDFStream aStream, PDFFile srcFile)
+        ObjectStream(byte theBytes[], int theObjNums[], int theOffsets[])
         {
-            Map sdict = aStream.getDict();
-            int count = PDFDictUtils.getInt(sdict, srcFile, "N");
-            _firstOffset = PDFDictUtils.getInt(sdict, srcFile, "First");
-
-            // allocate space for the offsets
-            _offTable = new Offsets[count];
-
-            // save away the decompressed stream data
-            byte sbytes[] = aStream.decodeStream();
-            _reader = new PDFReader(srcFile, sbytes);
-            readOffsets();
+            bytes = theBytes;
+            objNums = theObjNums;
+            offsets = theOffsets;
         }
 
         /**
-         * Read offsets.
+         * Parses the object at given index in stream.
          */
-        public void readOffsets()
+        Object readObject(PDFFile aFile, int anIndex)
         {
-            // Read 2 ints from the stream (object number, relative offset)
-            for (int i = 0, iMax = _offTable.length; i < iMax; i++) {
-                int onum = _reader.readInt();
-                int off = _reader.readInt();
-                _offTable[i] = new Offsets(onum, off);
-            }
+            PDFReader reader = new PDFReader(aFile, bytes);
+            reader.setCharIndex(offsets[anIndex]);
+            return reader.readObject();
         }
 
         /**
-         * Return object with num.
+         * Returns the estimated memory weight in bytes.
          */
-        public Object get(int objnum)
-        {
-            //int relativeOffset = Offsets.findOffset(offTable, objnum);
-            int relativeOffset = _offTable[objnum].offset;
-            if (relativeOffset < 0) return null;
-            _reader.setCharIndex(relativeOffset + _firstOffset);
-            return _reader.readObject();
-        }
+        long getWeight()  { return bytes.length + objNums.length * 8L + 48; }
     }
 
     /**
-     * A private class that represents a single element in the object stream.
+     * The XRef columns, published together: entries past count may be filled by later columns sharing the arrays.
      */
-    private static class Offsets {
+    private static class Columns {
 
-        // Create new offsets
-        public Offsets(int num, int off)
+        // The number of XRefs
+        final int count;
+
+        // The XRef file offsets (or object stream numbers for compressed entries)
+        final long offsets[];
+
+        // The XRef generations (or indexes in object stream for compressed entries)
+        final int gens[];
+
+        // The XRef states
+        final byte states[];
+
+        /**
+         * Creates a new Columns.
+         */
+        Columns(int aCount, long theOffsets[], int theGens[], byte theStates[])
         {
-            offset = off;
+            count = aCount;
+            offsets = theOffsets;
+            gens = theGens;
+            states = theStates;
         }
+    }
+
+    /**
+     * A resolved value in cache, with its estimated weight and a bit set when used since last pass of the clock hand.
+     */
+    private static class CacheEntry {
 
-        int offset; //int num;
+        // The value and its estimated weight
+        final Object value;
+        final int weight;
 
-        /** Binary search array for a particular object number and return its relative file offset, or -1 if not found. */
-        //public static int findOffset(Offsets offArray[], int objNum)
-        //{ Offsets key = new Offsets(objNum,0); int where = Arrays.binarySearch(offArray, key);
-        //    return where>=0? offArray[where].offset : -1; }
-    }
+        // Whether entry was used since last pass of clock hand
+        volatile boolean used = true;
 
-}
\ No newline at end of file
+        /**
+         * Creates a new CacheEntry.
+         */
+        CacheEntry(Object aValue, int aWeight)
+        {
+            value = aValue;
+            weight = aWeight;
+        }
+    }
+}
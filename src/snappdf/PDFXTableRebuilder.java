@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snappdf;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import snappdf.read.PDFDictUtils;
+
+/**
+ * A class to rebuild the XRef table of a damaged file by scanning the file bytes for object definitions ("n g obj"),
+ * trailers and object streams.
+ * <p>
+ * The file is split into chunks that are scanned in parallel (each chunk is read a block at a time, so a memory-mapped
+ * file is scanned with bulk copies instead of a call per byte). Chunk results are then merged in file order, so when
+ * an object is defined more than once (as with incremental updates), the later definition wins. Object streams are
+ * decoded in parallel in a second pass, once the direct objects (like stream lengths and the encryption dict) can be
+ * resolved.
+ */
+public class PDFXTableRebuilder {
+
+    // The PDF file
+    private PDFFile _pfile;
+
+    // The byte source
+    private PDFByteSource _source;
+
+    // The offset, generation and flags of the last definition of each object number (offset is -1 if not found)
+    private long _offsets[] = new long[0];
+    private int _gens[] = new int[0];
+    private byte _flags[] = new byte[0];
+
+    // The number of object numbers (max object number found plus one)
+    private int _count;
+
+    // The file positions of "trailer" keywords
+    private long _trailers[] = new long[0];
+
+    // Constants for object flags
+    private static final byte OBJ_STM = 1;
+    private static final byte XREF_STM = 2;
+    private static final byte CATALOG = 4;
+    private static final byte COMPRESSED = 8;
+
+    // Constants for min chunk size, read block size, block lead and tail (for context around a match at block edge)
+    private static final long CHUNK_SIZE_MIN = 1 << 20;
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int BLOCK_LEAD = 64;
+    private static final int BLOCK_TAIL = 16;
+
+    // Constant for the max object number (the PDF implementation limit)
+    private static final int MAX_OBJ_NUM = 8388607;
+
+    // Keywords and names to scan for
+    private static final byte TRAILER[] = "trailer".getBytes();
+    private static final byte OBJ_STM_NAME[] = "/ObjStm".getBytes();
+    private static final byte XREF_NAME[] = "/XRef".getBytes();
+    private static final byte CATALOG_NAME[] = "/Catalog".getBytes();
+
+    /**
+     * Creates a new PDFXTableRebuilder for given file and source.
+     */
+    public PDFXTableRebuilder(PDFFile aPF, PDFByteSource aSource)
+    {
+        _pfile = aPF;
+        _source = aSource;
+    }
+
+    /**
+     * Returns the number of object numbers found (max object number plus one).
+     */
+    public int getCount()  { return _count; }
+
+    /**
+     * Returns the file offset of the last definition of given object number (or -1 if not found or compressed).
+     */
+    public long getOffset(int anObjNum)
+    {
+        if (anObjNum < 0 || anObjNum >= _count || (_flags[anObjNum] & COMPRESSED) != 0) return -1;
+        return _offsets[anObjNum];
+    }
+
+    /**
+     * Scans file for object definitions and trailers with given executor.
+     */
+    public void scan(Executor anExecutor)
+    {
+        // Split file into chunks (a few per processor for balance) and scan each with executor
+        long length = _source.length();
+        long procs = Runtime.getRuntime().availableProcessors();
+        int chunkCount = (int) Math.max(1, Math.min(procs * 4, length / CHUNK_SIZE_MIN));
+        long chunkSize = (length + chunkCount - 1) / chunkCount;
+        List<CompletableFuture<Chunk>> futures = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            long start = i * chunkSize, end = Math.min(start + chunkSize, length);
+            futures.add(CompletableFuture.supplyAsync(() -> scanChunk(start, end), anExecutor));
+        }
+
+        // Merge chunks in file order, so later definitions replace earlier ones
+        int lastNum = -1;
+        for (CompletableFuture<Chunk> future : futures) {
+            Chunk chunk = future.join();
+
+            // Names found before chunk's first header belong to last header of previous chunks
+            if (lastNum >= 0)
+                _flags[lastNum] |= chunk._leadFlags;
+
+            // Add headers
+            for (int i = 0; i < chunk._count; i++) {
+                int num = chunk._nums[i];
+                setCount(num + 1);
+                _offsets[num] = chunk._offsets[i];
+                _gens[num] = chunk._gens[i];
+                _flags[num] = chunk._flags[i];
+                lastNum = num;
+            }
+
+            // Add trailers
+            int tcount = _trailers.length;
+            _trailers = Arrays.copyOf(_trailers, tcount + chunk._trailerCount);
+            System.arraycopy(chunk._trailers, 0, _trailers, tcount, chunk._trailerCount);
+        }
+    }
+
+    /**
+     * Scans file and adds found objects to given (empty) XRef table. Returns a trailer merged from all trailers and
+     * XRef stream dicts in file order (or null if no catalog was found). Compressed objects are added separately with
+     * readObjectStreams(), once the trailer has been used to set up decryption.
+     */
+    public Map rebuild(PDFXTable aTable, Executor anExecutor)
+    {
+        // Scan file and add found objects
+        scan(anExecutor);
+        addObjects(aTable);
+
+        // Get trailer dicts and XRef stream dicts, sorted by file position
+        PDFReader reader = new PDFReader(_pfile, _source);
+        TreeMap<Long, Map> dicts = new TreeMap<>();
+        for (long pos : _trailers) {
+            reader.setCharIndex(pos + TRAILER.length);
+            Object obj = reader.readObject();
+            if (obj instanceof Map)
+                dicts.put(pos, (Map) obj);
+        }
+        for (int i = 0; i < _count; i++) {
+            if (_offsets[i] < 0 || (_flags[i] & XREF_STM) == 0) continue;
+            Object obj = reader.readObjectDefAt(_offsets[i]);
+            if (obj instanceof PDFStream)
+                dicts.put(_offsets[i], ((PDFStream) obj).getDict());
+        }
+
+        // Merge trailer entries (later wins)
+        Map trailer = new Hashtable();
+        for (Map dict : dicts.values()) {
+            for (String key : new String[] { "Root", "Info", "Encrypt", "ID" }) {
+                Object value = dict.get(key);
+                if (value != null)
+                    trailer.put(key, value);
+            }
+        }
+        trailer.put("Size", _count);
+
+        // If no root found in trailers, use last uncompressed catalog found
+        if (!(trailer.get("Root") instanceof PDFXEntry)) {
+            long catalogOffset = -1;
+            for (int i = 0; i < _count; i++) {
+                if ((_flags[i] & CATALOG) != 0 && _offsets[i] > catalogOffset) {
+                    catalogOffset = _offsets[i];
+                    trailer.put("Root", _pfile.getXRef(i));
+                }
+            }
+        }
+
+        // Return trailer
+        return trailer.get("Root") != null ? trailer : null;
+    }
+
+    /**
+     * Adds the objects found by scan() to given XRef table (object numbers not found are free, like object 0). Entries
+     * already in table are kept.
+     */
+    public void addObjects(PDFXTable aTable)
+    {
+        aTable.setXRefMax(_count);
+        for (int i = 0; i < _count; i++) {
+            if (_offsets[i] >= 0)
+                aTable.setXRef(i, PDFXEntry.EntryNotYetRead, _offsets[i], _gens[i]);
+            else aTable.setXRef(i, PDFXEntry.EntryDeleted, 0, 0);
+        }
+    }
+
+    /**
+     * Decodes the object streams found by rebuild() with given executor and adds their objects to given XRef table
+     * (unless a later direct definition was found).
+     */
+    public void readObjectStreams(PDFXTable aTable, Executor anExecutor)
+    {
+        // Get object stream numbers sorted by file offset
+        List<Integer> ostmNums = new ArrayList<>();
+        for (int i = 0; i < _count; i++)
+            if (_offsets[i] >= 0 && (_flags[i] & OBJ_STM) != 0)
+                ostmNums.add(i);
+        ostmNums.sort(Comparator.comparingLong(i -> _offsets[i]));
+
+        // Read object numbers of each object stream with executor
+        List<CompletableFuture<int[]>> futures = new ArrayList<>(ostmNums.size());
+        for (int ostmNum : ostmNums)
+            futures.add(CompletableFuture.supplyAsync(() -> readObjectStreamNums(aTable, ostmNum), anExecutor));
+
+        // Add compressed entries in file order (an object stream replaces earlier definitions of its objects)
+        for (int i = 0; i < ostmNums.size(); i++) {
+            int ostmNum = ostmNums.get(i);
+            long ostmOffset = _offsets[ostmNum];
+            int objNums[] = futures.get(i).join();
+            for (int j = 0; objNums != null && j < objNums.length; j++) {
+                int num = objNums[j];
+                if (num < 0 || num > MAX_OBJ_NUM || num == ostmNum || num < _count && _offsets[num] > ostmOffset)
+                    continue;
+                setCount(num + 1);
+                _offsets[num] = ostmOffset;
+                _flags[num] = COMPRESSED;
+                aTable.replaceXRef(num, PDFXEntry.EntryCompressed, ostmNum, j);
+            }
+        }
+    }
+
+    /**
+     * Returns the object numbers in given object stream (or null if not readable).
+     */
+    private int[] readObjectStreamNums(PDFXTable aTable, int ostmNum)
+    {
+        try {
+            Object obj = aTable.readObjectDef(ostmNum);
+            if (!(obj instanceof PDFStream)) return null;
+            PDFStream stream = (PDFStream) obj;
+            int count = PDFDictUtils.getInt(stream.getDict(), _pfile, "N");
+            PDFReader reader = new PDFReader(_pfile, stream.decodeStream());
+            int objNums[] = new int[count];
+            for (int i = 0; i < count; i++) {
+                objNums[i] = reader.readInt();
+                reader.readInt();
+            }
+            return objNums;
+        }
+        catch (Exception | PDFException e) {
+            System.err.println("PDFXTableRebuilder: Failed to read object stream " + ostmNum + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Makes sure the object arrays hold at least given count.
+     */
+    private void setCount(int aCount)
+    {
+        if (aCount <= _count) return;
+        if (aCount > _offsets.length) {
+            int len = Math.max(aCount, Math.min(_offsets.length * 2, MAX_OBJ_NUM + 1));
+            int olen = _offsets.length;
+            _offsets = Arrays.copyOf(_offsets, len);
+            Arrays.fill(_offsets, olen, len, -1);
+            _gens = Arrays.copyOf(_gens, len);
+            _flags = Arrays.copyOf(_flags, len);
+        }
+        _count = aCount;
+    }
+
+    /**
+     * Scans given range of file a block at a time and returns the found headers, names and trailers.
+     */
+    private Chunk scanChunk(long aStart, long anEnd)
+    {
+        Chunk chunk = new Chunk();
+        long length = _source.length();
+        byte buf[] = new byte[BLOCK_LEAD + BLOCK_SIZE + BLOCK_TAIL];
+
+        for (long blockStart = aStart; blockStart < anEnd; blockStart += BLOCK_SIZE) {
+
+            // Read block with lead and tail (bytes outside of file are zero, which reads as whitespace)
+            long base = blockStart - BLOCK_LEAD;
+            long readStart = Math.max(base, 0), readEnd = Math.min(blockStart + BLOCK_SIZE + BLOCK_TAIL, length);
+            if (readStart > base || readEnd - base < buf.length)
+                Arrays.fill(buf, (byte) 0);
+            _source.getBytes(readStart, buf, (int) (readStart - base), (int) (readEnd - readStart));
+
+            // Scan block
+            int scanEnd = BLOCK_LEAD + (int) Math.min(BLOCK_SIZE, anEnd - blockStart);
+            scanBlock(buf, BLOCK_LEAD, scanEnd, base, chunk);
+        }
+
+        // Return chunk
+        return chunk;
+    }
+
+    /**
+     * Scans given range of block for "obj" keywords, "trailer" keywords and the names that mark object types.
+     */
+    private void scanBlock(byte buf[], int aStart, int anEnd, long aBase, Chunk aChunk)
+    {
+        for (int i = aStart; i < anEnd; i++) {
+            byte c = buf[i];
+
+            // Handle "obj" (but not "endobj")
+            if (c == 'o') {
+                if (buf[i + 1] == 'b' && buf[i + 2] == 'j' && !PDFReader.isRegular(buf[i + 3]) &&
+                        PDFReader.isWhiteSpace(buf[i - 1]))
+                    addHeader(buf, i, aBase, aChunk);
+            }
+
+            // Handle "trailer"
+            else if (c == 't') {
+                if (buf[i + 1] == 'r' && matches(buf, i, TRAILER) && !PDFReader.isRegular(buf[i - 1]))
+                    aChunk.addTrailer(aBase + i);
+            }
+
+            // Handle names
+            else if (c == '/') {
+                if (matches(buf, i, OBJ_STM_NAME)) aChunk.addFlag(OBJ_STM);
+                else if (matches(buf, i, XREF_NAME)) aChunk.addFlag(XREF_STM);
+                else if (matches(buf, i, CATALOG_NAME)) aChunk.addFlag(CATALOG);
+            }
+        }
+    }
+
+    /**
+     * Adds an object header for the "obj" keyword at given index, if preceded by object number and generation.
+     */
+    private void addHeader(byte buf[], int anIndex, long aBase, Chunk aChunk)
+    {
+        // Back up over whitespace and generation
+        int p = anIndex - 1;
+        while (p > 0 && PDFReader.isWhiteSpace(buf[p])) p--;
+        int genEnd = p + 1;
+        while (p > 0 && PDFReader.isDigit(buf[p])) p--;
+        int genStart = p + 1;
+        if (genStart == genEnd || !PDFReader.isWhiteSpace(buf[p]))
+            return;
+
+        // Back up over whitespace and object number (which must not follow a regular char)
+        while (p > 0 && PDFReader.isWhiteSpace(buf[p])) p--;
+        int numEnd = p + 1;
+        while (p > 0 && PDFReader.isDigit(buf[p])) p--;
+        int numStart = p + 1;
+        if (numStart == numEnd || p == 0 || PDFReader.isRegular(buf[p]))
+            return;
+
+        // Parse object number and generation and add header
+        int num = parseInt(buf, numStart, numEnd);
+        int gen = parseInt(buf, genStart, genEnd);
+        if (num < 0 || num > MAX_OBJ_NUM || gen < 0 || gen > 65535)
+            return;
+        aChunk.addHeader(aBase + numStart, num, gen);
+    }
+
+    /**
+     * Returns the int for given digits (or -1 if too long).
+     */
+    private static int parseInt(byte buf[], int aStart, int anEnd)
+    {
+        if (anEnd - aStart > 9) return -1;
+        int value = 0;
+        for (int i = aStart; i < anEnd; i++)
+            value = value * 10 + buf[i] - '0';
+        return value;
+    }
+
+    /**
+     * Returns whether given bytes are at given index, followed by a non-regular char.
+     */
+    private static boolean matches(byte buf[], int anIndex, byte theBytes[])
+    {
+        for (int i = 0; i < theBytes.length; i++)
+            if (buf[anIndex + i] != theBytes[i])
+                return false;
+        return !PDFReader.isRegular(buf[anIndex + theBytes.length]);
+    }
+
+    /**
+     * The headers, names and trailers found in a chunk of the file.
+     */
+    private static class Chunk {
+
+        // The offset, object number, generation and flags of found headers
+        private long _offsets[] = new long[64];
+        private int _nums[] = new int[64];
+        private int _gens[] = new int[64];
+        private byte _flags[] = new byte[64];
+        private int _count;
+
+        // The flags found before first header (which belong to last header of previous chunk)
+        private byte _leadFlags;
+
+        // The positions of found "trailer" keywords
+        private long _trailers[] = new long[4];
+        private int _trailerCount;
+
+        /**
+         * Adds a header.
+         */
+        void addHeader(long anOffset, int aNum, int aGen)
+        {
+            if (_count == _offsets.length) {
+                int len = _count * 2;
+                _offsets = Arrays.copyOf(_offsets, len);
+                _nums = Arrays.copyOf(_nums, len);
+                _gens = Arrays.copyOf(_gens, len);
+                _flags = Arrays.copyOf(_flags, len);
+            }
+            _offsets[_count] = anOffset;
+            _nums[_count] = aNum;
+            _gens[_count++] = aGen;
+        }
+
+        /**
+         * Adds a flag to last header.
+         */
+        void addFlag(byte aFlag)
+        {
+            if (_count > 0) _flags[_count - 1] |= aFlag;
+            else _leadFlags |= aFlag;
+        }
+
+        /**
+         * Adds a trailer position.
+         */
+        void addTrailer(long aPos)
+        {
+            if (_trailerCount == _trailers.length)
+                _trailers = Arrays.copyOf(_trailers, _trailerCount * 2);
+            _trailers[_trailerCount++] = aPos;
+        }
+    }
+}
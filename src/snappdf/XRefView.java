@@ -455,7 +455,7 @@ public class XRefView extends ViewOwner {
                 TreeNode info = getNode(pfile, pfile.getInfoDict(), "Info Dict (" + infoXRef + ')');
                 TreeNode catalog = getNode(pfile, pfile.getCatalogDict(), "Catalog Dict (" + catXRef + ')');
                 Object pagesXRef = pfile.getCatalogDict().get("Pages");
-                Map pagesDict = pfile._pagesDict;
+                Map pagesDict = pfile.getPagesDict();
                 TreeNode pages = getNode(pfile, pagesDict, "Pages Dict (" + pagesXRef + ')');
 
                 // Add to new nodes list
@@ -3,18 +3,22 @@
  */
 package snappdf.read;
 import java.io.*;
+import java.util.Arrays;
 import java.util.Map;
 
 import snappdf.PDFException;
 
 /**
- * Decodes CCITTFax.
+ * Decodes CCITTFax (Group 3 1D, Group 3 2D/mixed and Group 4).
+ * Codewords are read with lookup tables built from the code trees below, and rows are decoded as lists of changing
+ * elements (the positions where color changes) which are then written out as packed 1-bit rows, so no per-pixel
+ * scanline is ever created. Rows can be decoded all at once, in bands of rows, or on demand from an input stream.
  */
 public class DecodeCCITTFax {
 
-    // The bit stream
+    // The bit stream and end bit
     byte _allBits[];
-    int _bitOffset;
+    int _bitOffset, _bitEnd;
     int _mark;
 
     // decode parameters
@@ -25,6 +29,18 @@ public class DecodeCCITTFax {
     boolean _eoblockRequired;
     boolean _blackIsOne;
 
+    // The number of scanlines decoded
+    int _scanlineCount;
+
+    // The changing elements of the reference (previous) row and current row, and the count in current row
+    int _refChanges[], _curChanges[];
+    int _curCount;
+
+    // Whether end of data has been reached
+    boolean _eod;
+
+    // The initial bit offset (so decoding can start over)
+    int _startOffset;
 
     /**
      * Decode a single image.
@@ -32,7 +48,7 @@ public class DecodeCCITTFax {
     public static byte[] bytesForCCITTFaxDecode(byte bytes[], int offset, int len, int K, int rows, int columns,
                                                 boolean byteAligned, boolean eolRequired, boolean eoblockRequired, boolean blackIsOne, int allowedDamagedRows)
     {
-        DecodeCCITTFax ccittFaxDecode = new DecodeCCITTFax(bytes, offset, K, rows, columns, allowedDamagedRows,
+        DecodeCCITTFax ccittFaxDecode = new DecodeCCITTFax(bytes, offset, len, K, rows, columns, allowedDamagedRows,
                 byteAligned, eolRequired, eoblockRequired, blackIsOne);
         return ccittFaxDecode.decodeStream();
     }
@@ -80,7 +96,7 @@ public class DecodeCCITTFax {
         }
 
         // return the new decoder
-        return new DecodeCCITTFax(bytes, offset, K, rows, columns, allowedDamagedRows,
+        return new DecodeCCITTFax(bytes, offset, len, K, rows, columns, allowedDamagedRows,
                 byteAligned, eolRequired, eoblockRequired, blackIsOne);
     }
 
@@ -89,9 +105,20 @@ public class DecodeCCITTFax {
      */
     public DecodeCCITTFax(byte bits[], int offset, int k, int rows, int columns, int numdamagedrows,
                           boolean aligned, boolean eolrequired, boolean eoblockrequired, boolean blackisone)
+    {
+        this(bits, offset, bits.length - offset, k, rows, columns, numdamagedrows, aligned, eolrequired,
+            eoblockrequired, blackisone);
+    }
+
+    /**
+     * Creates DecodeCCITTFax for given range of bytes.
+     */
+    public DecodeCCITTFax(byte bits[], int offset, int length, int k, int rows, int columns, int numdamagedrows,
+                          boolean aligned, boolean eolrequired, boolean eoblockrequired, boolean blackisone)
     {
         _allBits = bits;
-        _bitOffset = _mark = offset * 8;
+        _bitOffset = _mark = _startOffset = offset * 8;
+        _bitEnd = (offset + length) * 8;
         _K = k;
         _rows = rows;
         _columns = columns;
@@ -100,6 +127,9 @@ public class DecodeCCITTFax {
         _eolRequired = eolrequired;
         _eoblockRequired = eoblockrequired;
         _blackIsOne = blackisone;
+        _refChanges = new int[columns + 4];
+        _curChanges = new int[columns + 4];
+        resetRows();
     }
 
     /**
@@ -180,19 +210,73 @@ public class DecodeCCITTFax {
             -8, -5, -7, -4};
 
 
-    // Read the next codeword from the stream.  table is one of the above trees.
-// Returns the codeword or -1 for EOF
+    // Lookup tables for the code trees: For each 8 bit value, the tree node reached and the number of bits used
+    private static final int WHITE_LOOKUP[] = createLookup(ccittRunLengths_white);
+    private static final int BLACK_LOOKUP[] = createLookup(ccittRunLengths_black);
+    private static final int CODE2D_LOOKUP[] = createLookup(ccittCodeWords2d);
+
+    /**
+     * Creates a lookup table for a code tree. For each 8 bit value, the tree is walked until a leaf is found or 8 bits
+     * are used, and the entry holds the node (leaf value or branch index) shifted left 4 bits, plus the bits used.
+     */
+    private static int[] createLookup(int tree[])
+    {
+        int lookup[] = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int node = 0, len = 0;
+            do {
+                int bit = i >> (7 - len) & 1;
+                node = tree[node + bit];
+                len++;
+            } while (node > 0 && len < 8);
+            lookup[i] = node << 4 | len;
+        }
+        return lookup;
+    }
+
+    /**
+     * Read the next codeword from the stream. Table is one of the above trees. Returns the codeword or -1 for EOF.
+     */
     public int getNextCodeword(int table[])
     {
-        int byteOffset = _bitOffset / 8;
-        int mask = 1 << (7 - (_bitOffset % 8));
-        int abyte;
+        // If near end of data, walk tree a bit at a time
+        if (_bitOffset + 24 > _bitEnd)
+            return getNextCodewordSlow(table);
+
+        // Get lookup table for tree
+        int lookup[] = table == ccittRunLengths_white ? WHITE_LOOKUP : table == ccittRunLengths_black ? BLACK_LOOKUP :
+            table == ccittCodeWords2d ? CODE2D_LOOKUP : null;
+        if (lookup == null)
+            return getNextCodewordSlow(table);
+
+        // Get next 16 bits and look up first 8 - if code is longer, walk rest of tree with the remaining bits
+        int byteOffset = _bitOffset >> 3;
+        int bits = ((_allBits[byteOffset] & 0xff) << 16 | (_allBits[byteOffset + 1] & 0xff) << 8 |
+            _allBits[byteOffset + 2] & 0xff) >> (8 - (_bitOffset & 7)) & 0xffff;
+        int entry = lookup[bits >> 8];
+        int node = entry >> 4, len = entry & 15;
+        while (node > 0) {
+            node = table[node + (bits >> (15 - len) & 1)];
+            len++;
+        }
+        _bitOffset += len;
+
+        // Return codeword
+        if (node == -9999)
+            throw new PDFException("Error decoding CCITTFaxDecode stream");
+        return node == EndOfTheLine ? EndOfTheLine : -node;
+    }
+
+    /**
+     * Read the next codeword from the stream by walking the tree a bit at a time. Returns the codeword or -1 for EOF.
+     */
+    private int getNextCodewordSlow(int table[])
+    {
         int treeindex = 0;
-        if (byteOffset >= _allBits.length)
-            return -1;
-        abyte = _allBits[byteOffset];
         while (true) {
-            if ((abyte & mask) != 0)
+            if (_bitOffset >= _bitEnd)
+                return -1; // incomplete codeword, but no more bits. returns eof
+            if ((_allBits[_bitOffset >> 3] & (0x80 >> (_bitOffset & 7))) != 0)
                 ++treeindex;
             treeindex = table[treeindex];
             ++_bitOffset;
@@ -202,14 +286,6 @@ public class DecodeCCITTFax {
                 return EndOfTheLine;
             else if (treeindex <= 0)
                 return -treeindex;
-            mask >>= 1;
-            if (mask == 0) {
-                if (++byteOffset >= _allBits.length)
-                    // incomplete codeword, but no more bits.  returns eof
-                    return -1;
-                abyte = _allBits[byteOffset];
-                mask = 128;
-            }
         }
     }
 
@@ -220,29 +296,75 @@ public class DecodeCCITTFax {
      * 2560 requires an additional number, containing any number of digits.
      **/
     public int getNextInt(int table[])
+    {
+        int i = getNextRun(table);
+        if (i < 0) // should only happen for EOF
+            throw new PDFException("premature EOL encountered in CCITTFaxDecode stream");
+        return i;
+    }
+
+    /**
+     * Returns the next run length (makeup codes plus terminating code) or -1 for EOF before run.
+     */
+    private int getNextRun(int table[])
     {
         boolean need_more_digits = false;
-        int i = 0, c;
+        int i = 0;
 
         while (true) {
-            c = getNextCodeword(table);
-            if (c < 0) { // should only happen for EOL or EOF
-                throw new PDFException("premature EOL encountered in CCITTFaxDecode stream");
+            int c = getNextCodeword(table);
+            if (c == EndOfTheLine)
+                throw new PDFException("Unexpected EOL in CCITTFaxDecode stream");
+            if (c < 0) {
+                if (i == 0 && !need_more_digits)
+                    return -1;
+                throw new PDFException("premature end of CCITTFaxDecode stream");
             }
             if (need_more_digits) {
                 if (c > 63)
                     throw new PDFException("Error decoding CCITTFaxDecodeStream");
-                i += c;
-                return i;
-            }
-            else {
-                if (c <= 63)
-                    return i + c;
-                i += c;
-                if (c != 2560)
-                    need_more_digits = true;
+                return i + c;
             }
+            if (c <= 63)
+                return i + c;
+            i += c;
+            if (c != 2560)
+                need_more_digits = true;
+        }
+    }
+
+    /**
+     * Returns the next bit (or -1 at end of data).
+     */
+    private int getNextBit()
+    {
+        if (_bitOffset >= _bitEnd)
+            return -1;
+        int bit = _allBits[_bitOffset >> 3] >> (7 - (_bitOffset & 7)) & 1;
+        _bitOffset++;
+        return bit;
+    }
+
+    /**
+     * Skips an EOL (eleven or more zero bits, including any fill bits, followed by a one) and returns true, or leaves
+     * stream unchanged and returns false if next bits are not an EOL. Trailing zero bits at end of data are skipped.
+     */
+    private boolean skipEOL()
+    {
+        int offset = _bitOffset;
+        int zeros = 0;
+        while (offset < _bitEnd && (_allBits[offset >> 3] & (0x80 >> (offset & 7))) == 0) {
+            offset++;
+            zeros++;
+        }
+        if (offset >= _bitEnd && zeros >= 8) {
+            _bitOffset = _bitEnd; // only fill bits left
+            return false;
         }
+        if (zeros < 11 || offset >= _bitEnd)
+            return false;
+        _bitOffset = offset + 1;
+        return true;
     }
 
     /**
@@ -270,303 +392,322 @@ public class DecodeCCITTFax {
     }
 
     /**
-     * Decode the entire image at once
+     * Returns the number of bytes in a decoded (packed 1 bit per pixel) row.
+     */
+    public int getBytesPerRow()  { return (_columns + 7) >> 3; }
+
+    /**
+     * Decode the entire image at once, as packed 1 bit per pixel rows.
      */
     public byte[] decodeStream()
     {
-        ByteArrayOutputStream outstream = new ByteArrayOutputStream(64);
+        int rowBytes = getBytesPerRow();
+        byte bytes[] = new byte[rowBytes * (_rows > 0 ? _rows : 64)];
+        int row = 0;
+        resetRows();
+
+        // Decode rows into bytes, growing if rows are unknown
         try {
-            decodeStream(outstream);
+            while (true) {
+                if (_rows <= 0 && (row + 1) * rowBytes > bytes.length)
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                int count = decodeRows(bytes, row * rowBytes, bytes.length / rowBytes - row);
+                if (count == 0) break;
+                row += count;
+            }
         }
         catch (Exception e) {
-            System.err.println("Error decoding CCITTFax image stream");
-            return null;
+            System.err.println("Error decoding CCITTFax image stream: " + e);
         }
-        return outstream.toByteArray();
+
+        // If rows are known, fill any missing rows with white, otherwise trim
+        if (_rows > 0)
+            Arrays.fill(bytes, row * rowBytes, bytes.length, getWhiteByte());
+        else bytes = Arrays.copyOf(bytes, row * rowBytes);
+
+        // Reset so the next call to decodeStream will start over
+        resetRows();
+        return bytes;
     }
 
     /**
-     * Decode, writing image bytes to outstream
+     * Decode, writing packed image rows to outstream
      */
     public void decodeStream(OutputStream outstream) throws PDFException, IOException
     {
-        byte scanline[] = new byte[_columns];
-        int initialStreamPosition = _bitOffset;
-
-        // Pure 1D encoding
-        if (_K == 0) {
-            while (decodeScanline1D(scanline)) {
-                writeScanline(outstream, scanline);
-                if (_byteAligned)
-                    byteAlignStream();
-            }
-        }
-        //Pure 2D encoding
-        else if (_K < 0) {
-            // 2D encoding always uses the last scanline as a reference.
-            // For the first scanline, the reference is a pure white scanline
-            for (int i = 0; i < _columns; ++i)
-                scanline[i] = 1;
-            while (decodeScanline2D(scanline)) {
-                writeScanline(outstream, scanline);
-                if (_byteAligned)
-                    byteAlignStream();
-            }
-        }
-        else {
-            // Mixed mode takes 1 1d line, followed by K-1 2d lines.
-            // The only trick would be to check how the end of stream is handled
-            _bitOffset = initialStreamPosition;
-            throw new PDFException("Mixed 1d&2d CCITTFaxDecode mode not implemented yet");
-        }
+        byte row[] = new byte[getBytesPerRow()];
+        resetRows();
 
+        // Decode rows and write
+        while (decodeRows(row, 0, 1) > 0)
+            outstream.write(row);
         outstream.flush();
 
-        // reset the input stream so the next call to decodeStream will start over
-        _bitOffset = initialStreamPosition;
+        // Reset so the next call to decodeStream will start over
+        resetRows();
     }
 
-    // There are two different encoding schemes which can used together in a bit stream.
-// The 1D encoding (Group 3) takes a scanline and alternates between black and white
-// runs by encoding a run length code.
-// The 2D encoding (Group 4) works on mulitple scanlines by encoding a scanline with
-// 1D encoding (for mixed Group 3 & 4 mode) or by initializing to white (Pure Group 4)
-// and then encoding later scanlines using codes to specify diffrerences
-// from previous scanlines.
-// 
-// Returns true for success, false for eof.
-    public boolean decodeScanline1D(byte outdata[])
+    /**
+     * Resets decoder to start decoding from the first row.
+     */
+    public void resetRows()
     {
-        int codeword_trees[][] = {ccittRunLengths_black, ccittRunLengths_white};
-        int atree[];
-        int x = 0;
-        int runcolor = 1; //0 for black, 1 for white
-        int codeword;
-        int runlength = 0;
-        boolean need_more_digits = false;
-        int num_2560s = 0;
-        int num_eols = 0;
+        _bitOffset = _mark = _startOffset;
+        _scanlineCount = 0;
+        _eod = false;
 
-        atree = codeword_trees[runcolor];
-        // outdata is assumed to be big enough to hold x 8bit pixels, so no bounds checking on the array is done
-        while (x < _columns) {
-            codeword = getNextCodeword(atree);
-
-            if (codeword == EndOfTheLine) {
-                //EOL before getting any row data may be part of an EndOfBlock (6 EOLs)
-                if (x == 0) {
-                    for (num_eols = 1; num_eols < 6; ++num_eols) {
-                        codeword = getNextCodeword(atree);
-                        if (codeword == -1) return false;
-                        else if (codeword != EndOfTheLine)
-                            throw new PDFException("Unexpected EOL in CCITTFaxDecode stream");
-                    }
-                    // got an eob - return false (for end of data)
+        // Reference row for first row is all white
+        _refChanges[0] = _refChanges[1] = _refChanges[2] = _columns;
+    }
+
+    /**
+     * Decodes up to given number of rows into given bytes at given offset, as packed 1 bit per pixel rows. This allows
+     * enormous images to be decoded in bands. Returns the number of rows decoded (zero at end of data).
+     */
+    public int decodeRows(byte theBytes[], int anOffset, int aRowCount)
+    {
+        int rowBytes = getBytesPerRow();
+        for (int i = 0; i < aRowCount; i++) {
+            if (!decodeRow())
+                return i;
+            writeRow(theBytes, anOffset + i * rowBytes);
+        }
+        return aRowCount;
+    }
+
+    /**
+     * Returns an input stream that decodes the image one row at a time.
+     */
+    public InputStream getInputStream()
+    {
+        resetRows();
+        return new InputStream() {
+
+            // The current row and read position in row
+            byte _row[] = new byte[getBytesPerRow()];
+            int _pos = _row.length;
+
+            /** Decodes next row if current row is used up and returns whether bytes are available. */
+            boolean ensureBytes()
+            {
+                if (_pos < _row.length) return true;
+                if (decodeRows(_row, 0, 1) == 0)
                     return false;
-                }
-                else // EOL in the middle of the row is an error
-                    throw new PDFException("Unexpected EOL in CCITTFaxDecodeStream");
-            }
-            //large run lengths can be encoded as 2560+2560+2560...+m, where m is 1 or 2 digit code
-            else if (codeword == 2560) {
-                if (need_more_digits)
-                    throw new PDFException("Error decoding CCITTFaxDecode stream");
-                ++num_2560s;
-            }
-            //Run lengths between 64 & 2560 consist of 2 codes, and this code is the high digit
-            else if (codeword >= 64) {
-                runlength = codeword;
-                if (need_more_digits)
-                    throw new PDFException("Error decoding CCITTFaxDecode stream");
-                need_more_digits = true;
+                _pos = 0;
+                return true;
             }
-            //A run length between 0 and 63
-            else if (codeword != -1) {
-                // If previous code word was for a high digit, add the low digit in
-                if (need_more_digits)
-                    runlength += codeword;
-                else
-                    runlength = codeword;
-                // add in chain of 2560s
-                runlength += 2560 * num_2560s;
-                if (x + runlength > _columns)
-                    throw new PDFException("Error decoding CCITTFaxDecode stream");
-                // fill the output with the colors.  Notice it's 8bits per pixel, 2 colors
-                for (int r = 0; r < runlength; ++r)
-                    outdata[x++] = (byte) runcolor;
-
-                // reset everthing for the next run
-                runcolor = 1 - runcolor;
-                atree = codeword_trees[runcolor];
-                need_more_digits = false;
-                num_2560s = 0;
+
+            /** Override to read from row. */
+            public int read()
+            {
+                return ensureBytes() ? _row[_pos++] & 0xff : -1;
             }
-            //EOF
-            else {
-                if (x == 0)
-                    return false;
-                else
-                    throw new PDFException("premature end of CCITTFaxDecode stream");
+
+            /** Override to read from row. */
+            public int read(byte theBytes[], int anOffset, int aLength)
+            {
+                if (aLength == 0) return 0;
+                if (!ensureBytes()) return -1;
+                int len = Math.min(aLength, _row.length - _pos);
+                System.arraycopy(_row, _pos, theBytes, anOffset, len);
+                _pos += len;
+                return len;
             }
+        };
+    }
+
+    /**
+     * Decodes the next row into current changing elements. Returns false at end of data.
+     */
+    protected boolean decodeRow()
+    {
+        // If already at end or all rows decoded, return false
+        if (_eod || _rows > 0 && _scanlineCount >= _rows) {
+            _eod = true;
+            return false;
         }
-        // Filled the scanline.  Check for EOL
-        mark();
-        if (getNextCodeword(atree) != EndOfTheLine) {
-            if (_eolRequired)
-                throw new PDFException("No End-of-line marker found in CCITTFaxDecode stream");
-            else
-                // It wasn't required to be there, so back up to the last point in the stream.
-                backup();
+
+        // Swap current row to reference row
+        if (_scanlineCount > 0) {
+            int ref[] = _refChanges;
+            _refChanges = _curChanges;
+            _curChanges = ref;
+            _refChanges[_curCount] = _refChanges[_curCount + 1] = _refChanges[_curCount + 2] = _columns;
+        }
+
+        // Skip any EOLs (and for mixed mode, the tag bit that follows each). Two or more in a row mark end of block.
+        // For mixed mode, tag bit is 1 if row is 1D and 0 if row is 2D.
+        int eols = 0, tag = 1;
+        while (skipEOL()) {
+            eols++;
+            if (_K > 0)
+                tag = getNextBit();
+        }
+        if (eols >= 2) {
+            _eod = true;
+            return false;
+        }
+
+        // If no EOL and data is byte aligned, align. If mixed mode with no EOL, read tag bit.
+        if (eols == 0) {
+            if (_byteAligned)
+                byteAlignStream();
+            if (_K > 0)
+                tag = getNextBit();
         }
-        return true;
 
+        // Decode row: Pure 1D, pure 2D or mixed (a 1D row followed by up to K-1 2D rows, flagged by tag bit)
+        boolean success = _K == 0 || _K > 0 && tag == 1 ? decodeRow1D() : decodeRow2D();
+        if (success)
+            _scanlineCount++;
+        else _eod = true;
+        return success;
     }
 
-    //Used by 2D decoder
-//Finds b1 & b2 (returned as elements b[1] and b[2], respectively)
-//on the reference scanline, starting from pixel a0
-    public void locateReferenceMarks(byte scanline[], int a0, byte a0color, int b[])
+    // There are two different encoding schemes which can used together in a bit stream.
+    // The 1D encoding (Group 3) takes a scanline and alternates between black and white
+    // runs by encoding a run length code.
+    // The 2D encoding (Group 4) works on mulitple scanlines by encoding a scanline with
+    // 1D encoding (for mixed Group 3 & 4 mode) or by initializing to white (Pure Group 4)
+    // and then encoding later scanlines using codes to specify diffrerences
+    // from previous scanlines.
+    //
+    // Returns true for success, false for eof.
+    private boolean decodeRow1D()
     {
-        int x;
-        int b0 = a0 + 1;
-        byte bcolor = 0, previous;
-        // b1 is defined as first 'changing element' to the right of a0 which
-        // is a different color from a0
-        // A changing element is a pixel whose color is different from the
-        // pixel to its left.
-        // The pixel at -1 is defined to be white, so scanline[0] is a changing
-        // element if it is black.
-
-        //search for b1
-        for (x = b0; x < scanline.length; ++x) {
-            bcolor = scanline[x];
-            previous = x == 0 ? 1 : scanline[x - 1];
-            if (bcolor != previous) {
-                // a changing element.  If its different from a0color,
-                // we've found b1
-                if (bcolor != a0color) {
-                    b[1] = x;
-                    break;
-                }
+        int cur[] = _curChanges, count = 0, max = cur.length - 3;
+        int x = 0;
+        boolean white = true;
+
+        // Read alternating white and black runs and add changing element at end of each
+        while (x < _columns) {
+            int run = getNextRun(white ? ccittRunLengths_white : ccittRunLengths_black);
+            if (run < 0) {
+                if (x == 0)
+                    return false;
+                throw new PDFException("premature end of CCITTFaxDecode stream");
             }
+            x += run;
+            if (x > _columns || count >= max)
+                throw new PDFException("Error decoding CCITTFaxDecode stream");
+            cur[count++] = x;
+            white = !white;
         }
-        // If b1 not found (all pixels were the same color, for instance) set
-        // b1 & b2 to the pixel after the last one in the line.
-        if (x == scanline.length) {
-            b[1] = b[2] = x;
-        }
-        else {
-            //find b2
-            while (++x < scanline.length)
-                if (scanline[x] != bcolor) {
-                    b[2] = x;
-                    break;
-                }
-            if (x == scanline.length)
-                b[2] = x;
-        }
+
+        // Set count and return
+        _curCount = count;
+        return true;
     }
 
     /**
-     * 2D decoder.  outdata is a buffer which the new scanline will be written to.
-     * On input, however, outdata should have the bits for the previous scanline.
-     * The 2D encoder will include codewords which make reference to the previous
-     * scanline.
-     * For the very first scaneline, outdata should be initialized to all white.
+     * 2D decoder. Codewords make reference to the changing elements of the previous row, which is all white for the
+     * very first row.
      **/
-    public boolean decodeScanline2D(byte outdata[])
+    private boolean decodeRow2D()
     {
-        int codeword_trees[][] = {ccittRunLengths_black, ccittRunLengths_white};
-        int x = 0;
+        int ref[] = _refChanges, cur[] = _curChanges, count = 0, max = cur.length - 3;
+        int columns = _columns;
+
         // a0 starts off to the left of first pixel and is defined as white
         int a0 = -1;
-        byte a0Color = 1;
-        int a1, a2;
-        int b[] = new int[3];
-        int codeword;
+        int refIndex = 0;
 
+        while (a0 < columns) {
+            int codeword = getNextCodeword(ccittCodeWords2d);
 
-        while (x < _columns) {
-            codeword = getNextCodeword(ccittCodeWords2d);
-            //EOD due to unused bits in last byte of data
-            if ((codeword < 0) && (x == 0)) return false;
-            //EOFB is 2 EOLs in a row.  No other EOLs are valid in 2d mode
-            if (codeword == EndOfTheLine) {
-                if ((x == 0) && (getNextCodeword(ccittCodeWords2d) == EndOfTheLine))
-                    return false;
-                else
-                    throw new PDFException("EOL encountered in CCITTFaxDecode stream");
-            }
-            // Horizontal mode explicity codes a0a1 and a1a2
-            else if (codeword == Horizontal) {
-                if (a0 == -1) // first pixel on line
-                    a0 = 0;
-                a1 = a0 + getNextInt(codeword_trees[a0Color]);
-                a2 = a1 + getNextInt(codeword_trees[1 - a0Color]);
-
-                while (x < a1)
-                    outdata[x++] = a0Color;
-                while (x < a2)
-                    outdata[x++] = (byte) (1 - a0Color);
-                a0 = a2;
+            // EOD due to unused bits in last byte of data
+            if (codeword < 0) {
+                if (a0 < 0) return false;
+                throw new PDFException(codeword == EndOfTheLine ? "EOL encountered in CCITTFaxDecode stream" :
+                    "premature end of CCITTFaxDecode stream");
             }
-            else if (codeword == UncompressedMode) {
-                throw new PDFException("UncompressedMode not implemented yet");
-            }
-            else {
-                // The rest of these codes make reference to b[1] & b[2] on the line above
-                locateReferenceMarks(outdata, a0, a0Color, b);
-                if (codeword == PassMode) {
-                    while (x < b[2])
-                        outdata[x++] = a0Color;
-                    a0 = b[2];
-                }
-                else {
-                    switch (codeword) {
-                        case Vertical0:
-                            break;
-                        case VerticalRight1:
-                            b[1] += 1;
-                            break;
-                        case VerticalRight2:
-                            b[1] += 2;
-                            break;
-                        case VerticalRight3:
-                            b[1] += 3;
-                            break;
-                        case VerticalLeft1:
-                            b[1] -= 1;
-                            break;
-                        case VerticalLeft2:
-                            b[1] -= 2;
-                            break;
-                        case VerticalLeft3:
-                            b[1] -= 3;
-                            break;
-                        default:
-                            throw new PDFException("Invalid data in CCITTFaxDecode stream");
-                    }
-                    // I don't think this should ever happen in a valid stream
-                    if (b[1] > outdata.length)
-                        b[1] = outdata.length;
-                    a0 = b[1];
-                    while (x < b[1])
-                        outdata[x++] = a0Color;
-                    a0Color = (byte) (1 - a0Color);
+
+            // Find b1 (first changing element on reference row to right of a0 and opposite color to a0 color) and b2
+            // (next changing element after b1). Even changing elements are to black, odd are to white.
+            while (refIndex > 0 && ref[refIndex - 1] > a0) refIndex--;
+            while (ref[refIndex] <= a0) refIndex++;
+            if ((refIndex & 1) != (count & 1)) refIndex++;
+            int b1 = ref[refIndex], b2 = ref[refIndex + 1];
+            if (count >= max)
+                throw new PDFException("Error decoding CCITTFaxDecode stream");
+
+            switch (codeword) {
+
+                // Pass mode: Color continues to b2
+                case PassMode: a0 = b2; break;
+
+                // Horizontal mode explicity codes a0a1 and a1a2
+                case Horizontal: {
+                    if (a0 < 0) a0 = 0; // first pixel on line
+                    boolean white = (count & 1) == 0;
+                    int a1 = a0 + getNextInt(white ? ccittRunLengths_white : ccittRunLengths_black);
+                    int a2 = a1 + getNextInt(white ? ccittRunLengths_black : ccittRunLengths_white);
+                    cur[count++] = Math.min(a1, columns);
+                    cur[count++] = a0 = Math.min(a2, columns);
+                    break;
                 }
+
+                // Vertical modes: a1 is offset from b1
+                case Vertical0: cur[count++] = a0 = b1; break;
+                case VerticalRight1: cur[count++] = a0 = Math.min(b1 + 1, columns); break;
+                case VerticalRight2: cur[count++] = a0 = Math.min(b1 + 2, columns); break;
+                case VerticalRight3: cur[count++] = a0 = Math.min(b1 + 3, columns); break;
+                case VerticalLeft1: cur[count++] = a0 = Math.max(b1 - 1, Math.max(a0, 0)); break;
+                case VerticalLeft2: cur[count++] = a0 = Math.max(b1 - 2, Math.max(a0, 0)); break;
+                case VerticalLeft3: cur[count++] = a0 = Math.max(b1 - 3, Math.max(a0, 0)); break;
+                case UncompressedMode: throw new PDFException("UncompressedMode not implemented yet");
+                default: throw new PDFException("Invalid data in CCITTFaxDecode stream");
             }
         }
+
+        // Set count and return
+        _curCount = count;
         return true;
     }
 
     /**
-     * Write the decoded scanline to a stream.
+     * Writes the current row changing elements to given bytes at given offset as a packed 1 bit per pixel row.
      */
-    public void writeScanline(OutputStream out, byte scanline[]) throws IOException
+    private void writeRow(byte theBytes[], int anOffset)
     {
-        out.write(scanline);
+        // Fill row with white
+        Arrays.fill(theBytes, anOffset, anOffset + getBytesPerRow(), getWhiteByte());
+
+        // Fill each black run (from even changing element to next odd changing element or end of row)
+        int cur[] = _curChanges, count = _curCount;
+        for (int i = 0; i < count; i += 2) {
+            int x0 = cur[i], x1 = i + 1 < count ? cur[i + 1] : _columns;
+            if (x0 < x1)
+                fillRun(theBytes, anOffset, x0, Math.min(x1, _columns), _blackIsOne);
+        }
     }
 
+    /**
+     * Sets the bits for pixels x0 to x1 (exclusive) in given row to given value.
+     */
+    private static void fillRun(byte row[], int anOffset, int x0, int x1, boolean isOne)
+    {
+        int byte0 = anOffset + (x0 >> 3), byte1 = anOffset + ((x1 - 1) >> 3);
+        int mask0 = 0xff >> (x0 & 7), mask1 = 0xff << (7 - ((x1 - 1) & 7)) & 0xff;
+
+        // If run is within one byte, just set masked bits
+        if (byte0 == byte1) {
+            int mask = mask0 & mask1;
+            row[byte0] = (byte) (isOne ? row[byte0] | mask : row[byte0] & ~mask);
+            return;
+        }
+
+        // Set bits of first byte, whole bytes in between and bits of last byte
+        row[byte0] = (byte) (isOne ? row[byte0] | mask0 : row[byte0] & ~mask0);
+        Arrays.fill(row, byte0 + 1, byte1, isOne ? (byte) 0xff : 0);
+        row[byte1] = (byte) (isOne ? row[byte1] | mask1 : row[byte1] & ~mask1);
+    }
+
+    /**
+     * Returns the byte value for a row of white pixels.
+     */
+    private byte getWhiteByte()  { return _blackIsOne ? 0 : (byte) 0xff; }
+
     /**
      * Get the width of the decompressed image
      */
@@ -2,243 +2,293 @@
  * Copyright (c) 2010, ReportMill Software. All rights reserved.
  */
 package snappdf.read;
-import java.io.ByteArrayOutputStream;
+import java.io.*;
+import java.util.Arrays;
+
+import snappdf.PDFException;
 
 /**
- * LZW decompressor
+ * LZW decompressor.
+ * The string table is kept in flat arrays of prefix code, suffix byte and string length, so each code is expanded
+ * straight into the output by walking its prefix chain backwards from the end of the string - no symbol stack and no
+ * per-byte calls. When decoding a whole buffer, the table also records where each string was first written, so long
+ * strings are bulk copied from earlier output instead.
  */
 public class DecodeLZW {
 
-    // Bytes, offset and length
-    byte bytes[];
-    int offset, originalOffset, length;
+    // The input bytes, read position and end (for streams, this is a buffer refilled from input stream)
+    private byte _bytes[];
+    private int _pos, _end;
+
+    // The input stream (if decoding from stream instead of bytes)
+    private InputStream _in;
 
-    // Parameters
-    int predictor, columns, colors, bits, early;
+    // The EarlyChange parameter: If 1, code size increases one code early
+    private int _early;
 
-    int look;   // 1 character lookahead
+    // The bit buffer and number of bits in it
+    private int _bitBuf, _bitCount;
 
-    // LZW alogrithm vars
-    int code_buf, num_bits;
-    int clear_code, end_code; // values for Clear and End codes
+    // The string table: Prefix code, last byte and length of the string for each code
+    private short _prefix[] = new short[TABLE_SIZE];
+    private byte _suffix[] = new byte[TABLE_SIZE];
+    private short _length[] = new short[TABLE_SIZE];
 
-    int input_code_size;
-    int code_size;              // current actual code size
-    int limit_code;             // 2^code_size
-    int real_limit_code;        // limit_code adjusted for earlyChange
-    int max_code;               // first unused code value
-    boolean first_time;         // flags first call to LZWReadByte
+    // The output position of each string (when whole output is kept, so strings can be copied from earlier output)
+    private int _offsets[];
 
-    // Private state for LZWReadByte
-    int oldcode;            // previous LZW symbol
-    int firstcode;      // first byte of oldcode's expansion
+    // The next free code, current code size, the previous code (or -1 after a Clear) and its output position
+    private int _nextCode, _codeSize, _prevCode = -1, _prevPos;
 
-    // LZW symbol table and expansion stack
-    int symbol_head[];        // => table of prefix symbols
-    short symbol_tail[];      // => table of suffix bytes
-    short symbol_stack[];     // => stack for symbol expansions
-    int sp = -1;              // stack pointer
+    // Whether end of data has been reached
+    private boolean _done;
 
-    static int MAX_LZW_BITS = 12; // maximum LZW code size
-    static int LZW_TABLE_SIZE = 1 << MAX_LZW_BITS; // # of possible LZW symbols
+    // Constants for special codes
+    private static final int CLEAR_CODE = 256;
+    private static final int END_CODE = 257;
 
+    // Constants for max code size and table size (also an upper bound on the length of any string)
+    private static final int MAX_BITS = 12;
+    private static final int TABLE_SIZE = 1 << MAX_BITS;
 
     /**
      * Returns a decoded byte array for given LZW encoded byte array.
      */
     public static byte[] decode(byte bytes[], int offset, int length, int early)
     {
-        DecodeLZW dec = new DecodeLZW(bytes, offset, length, early);
-        ByteArrayOutputStream out;
-        int c;
-
-        out = new ByteArrayOutputStream(length);
-        while ((c = dec.getChar()) >= 0)
-            out.write(c);
-
-        return out.toByteArray();
+        return decode(bytes, offset, length, early, -1);
     }
 
     /**
-     * Creates a new LZW decoder for given bytes.
+     * Returns a decoded byte array for given LZW encoded byte array, with expected decoded length if known (or -1).
      */
-    public DecodeLZW(byte bytes[], int offset, int length, int early1)
+    public static byte[] decode(byte bytes[], int offset, int length, int early, int aSizeHint)
     {
-        this.bytes = bytes;
-        this.offset = originalOffset = offset;
-        this.length = length;
-        early = early1;
-        reset();
+        DecodeLZW dec = new DecodeLZW(bytes, offset, length, early);
+        dec._offsets = new int[TABLE_SIZE];
+        byte out[] = new byte[aSizeHint > 0 ? aSizeHint : Math.max(length * 3, 1024)];
+        int pos = 0;
+
+        // Decode codes into output, growing output whenever there isn't room for the longest possible string
+        while (!dec._done) {
+            if (out.length - pos < TABLE_SIZE)
+                out = Arrays.copyOf(out, Math.max(out.length * 2, pos + TABLE_SIZE));
+            pos = dec.decodeCodes(out, pos);
+        }
+
+        // Return output trimmed to decoded length
+        return pos == out.length ? out : Arrays.copyOf(out, pos);
     }
 
     /**
-     * Resets decoder for new bytes.
+     * Returns an input stream that decodes given LZW encoded input stream.
      */
-    private void reset()
+    public static InputStream getInputStream(InputStream anIn, int early)
     {
-        offset = originalOffset;
-        look = -1;
-        if (sp < 0)
-            initLZW();
-        reInitLZW();
+        return new LZWStream(new DecodeLZW(anIn, early));
     }
 
     /**
-     * Initialize LZW decoding state.
+     * Creates a new LZW decoder for given bytes.
      */
-    private void initLZW()
+    public DecodeLZW(byte bytes[], int offset, int length, int early)
     {
-        input_code_size = 8;
-        symbol_head = new int[LZW_TABLE_SIZE];
-        symbol_tail = new short[LZW_TABLE_SIZE];
-        symbol_stack = new short[LZW_TABLE_SIZE];
-
-        // GetCode initialization
-        code_buf = 0; // nothing in the buffer
-        num_bits = 0; // force buffer load on first call
-
-        // LZWReadByte initialization:
-        // compute special code values (note that these do not change later)
-        clear_code = 1 << input_code_size;
-        end_code = clear_code + 1;
-        first_time = true;
+        _bytes = bytes;
+        _pos = offset;
+        _end = Math.min(offset + length, bytes.length);
+        _early = early;
+        initTable();
     }
 
     /**
-     * Reinitialize LZW state; shared code for startup and Clear processing.
+     * Creates a new LZW decoder for given input stream.
      */
-    private void reInitLZW()
+    public DecodeLZW(InputStream anIn, int early)
     {
-        code_size = input_code_size + 1;
-        limit_code = clear_code << 1;   // 2^code_size
-        real_limit_code = limit_code;
-        if (early != 0)
-            --real_limit_code;
-        max_code = clear_code + 2; // first unused code value
-        sp = 0; // init stack to empty
+        _in = anIn;
+        _bytes = new byte[4096];
+        _early = early;
+        initTable();
     }
 
     /**
-     * Returns some LZW thing.
+     * Initialize table with the single byte strings.
      */
-    private int getCode()
+    private void initTable()
     {
-        while (num_bits < code_size) {
-            int c = (char) bytes[offset++];
-            if (offset > originalOffset + length)
-                return end_code;
-            code_buf <<= 8;
-            code_buf |= (c & 0xff);
-            num_bits += 8;
+        for (int i = 0; i < 256; i++) {
+            _suffix[i] = (byte) i;
+            _length[i] = 1;
         }
-
-        int code = (code_buf >> (num_bits - code_size));
-        code &= (1 << code_size) - 1;
-        num_bits -= code_size;
-        return code;
+        clearTable();
     }
 
     /**
-     * Reads an LZW-compressed byte.
+     * Resets table and code size, for startup and Clear processing.
      */
-    private int readLZWByte()
+    private void clearTable()
     {
-        int code; // Current working code
-        int incode; // Saves actual input code
-
-        // First time, just eat expected Clear code(s) and return next code (should be raw byte)
-        if (first_time) {
-            first_time = false;
-            code = clear_code; // Enables sharing code with Clear case
-        }
-
-        else {
-
-            // If any codes are stacked from a previously read symbol, return them
-            if (sp > 0)
-                return symbol_stack[--sp];
-            // Time to read a new symbol
-            code = getCode();
-        }
+        _nextCode = END_CODE + 1;
+        _codeSize = 9;
+        _prevCode = -1;
+    }
 
-        if (code == clear_code) {
+    /**
+     * Decodes codes into given array starting at given position, until end of data or until there may not be room for
+     * another string. Returns the new position.
+     */
+    public int decodeCodes(byte out[], int aPos)
+    {
+        int pos = aPos;
+        int posMax = out.length - TABLE_SIZE;
 
-            // Reinit state, swallow any extra Clear codes, and return next code (should be raw byte)
-            reInitLZW();
-            do {
-                code = getCode();
-            } while (code == clear_code);
+        while (pos <= posMax) {
 
-            // Make sure it is raw byte
-            if (code > clear_code)
-                return -1;
+            // Get next code - if Clear, reset table and continue
+            int code = getCode();
+            if (code == CLEAR_CODE) {
+                clearTable();
+                continue;
+            }
 
-            // Make firstcode, oldcode valid!
-            firstcode = oldcode = code;
-            return code;
-        }
+            // If End (or end of data), mark done and return
+            if (code == END_CODE) {
+                _done = true;
+                break;
+            }
 
-        // EOF
-        if (code == end_code)
-            return -1;
+            // If first code after Clear, it must be a raw byte
+            int prevCode = _prevCode;
+            if (prevCode < 0) {
+                if (code > CLEAR_CODE) {
+                    _done = true;
+                    break;
+                }
+                _prevPos = pos;
+                out[pos++] = (byte) code;
+                _prevCode = code;
+                continue;
+            }
 
-        // Got normal raw byte or LZW symbol
-        incode = code; // Save for a moment
+            // Get string to output: If code is defined, it's the code string. Otherwise it's the previous string plus
+            // its first byte (the KwKwK case - code == nextCode is OK, anything bigger is bad data)
+            int nextCode = _nextCode;
+            boolean isBad = code > nextCode;
+            int strCode = code < nextCode ? code : prevCode;
+            int len = _length[strCode];
+
+            // If whole output is kept and string is long, copy it from where it was first written
+            int c;
+            if (_offsets != null && len > 8) {
+                System.arraycopy(out, _offsets[strCode], out, pos, len);
+                c = out[pos] & 0xff;
+            }
 
-        // Special case for not-yet-defined symbol
-        if (code >= max_code) {
+            // Otherwise write string backwards from end by walking prefix chain
+            else {
+                c = strCode;
+                for (int i = pos + len - 1; i > pos; i--) {
+                    out[i] = _suffix[c];
+                    c = _prefix[c];
+                }
+                out[pos] = (byte) c;
+            }
 
-            // code == max_code is OK; anything bigger is bad data
-            if (code > max_code)
-                incode = 0; // Prevent creation of loops in symbol table
+            // Handle KwKwK case: Append first byte of string
+            if (code >= nextCode)
+                out[pos + len++] = (byte) c;
+
+            // If there's room in table, define a new string = previous string + first byte of this string
+            if (nextCode < TABLE_SIZE) {
+                _prefix[nextCode] = (short) prevCode;
+                _suffix[nextCode] = (byte) c;
+                _length[nextCode] = (short) (_length[prevCode] + 1);
+                if (_offsets != null)
+                    _offsets[nextCode] = _prevPos;
+                _nextCode = ++nextCode;
+
+                // If time to increase code size, do it
+                if (nextCode + _early >= (1 << _codeSize) && _codeSize < MAX_BITS)
+                    _codeSize++;
+            }
 
-            // This symbol will be defined as oldcode/firstcode
-            symbol_stack[sp++] = (short) firstcode;
-            code = oldcode;
+            // Save code and position (bad codes become 0 to prevent loops in table) and advance position
+            _prevCode = isBad ? 0 : code;
+            _prevPos = pos;
+            pos += len;
         }
 
-        // If it's a symbol, expand it into the stack
-        while (code >= clear_code) {
-            symbol_stack[sp++] = symbol_tail[code]; // Tail is a byte value
-            code = symbol_head[code]; // Head is another LZW symbol
-        }
+        // Return position
+        return pos;
+    }
 
-        // At this point code just represents a raw byte
-        firstcode = code; // save for possible future use
-
-        // If there's room in table,
-        if ((code = max_code) < LZW_TABLE_SIZE) {
-            // Define a new symbol = prev sym + head of this sym's expansion
-            symbol_head[code] = oldcode;
-            symbol_tail[code] = (short) firstcode;
-            max_code++;
-
-            // Is it time to increase code_size?
-            if ((max_code >= real_limit_code) && (code_size < MAX_LZW_BITS)) {
-                code_size++;
-                limit_code <<= 1; // keep equal to 2^code_size
-                real_limit_code = limit_code;
-                if (early != 0)
-                    --real_limit_code;
-            }
+    /**
+     * Returns whether decoder has reached end of data.
+     */
+    public boolean isDone()  { return _done; }
+
+    /**
+     * Returns the next code from input bits (or End code if out of input).
+     */
+    private int getCode()
+    {
+        // Fill bit buffer to hold next code
+        while (_bitCount < _codeSize) {
+            if (_pos >= _end && !fillInput())
+                return END_CODE;
+            _bitBuf = _bitBuf << 8 | _bytes[_pos++] & 0xff;
+            _bitCount += 8;
         }
 
-        oldcode = incode; // Save last input symbol for future use
-        return firstcode; // Return first byte of symbol's expansion
+        // Extract code from top of bit buffer
+        _bitCount -= _codeSize;
+        return _bitBuf >>> _bitCount & (1 << _codeSize) - 1;
     }
 
     /**
-     * Returns next char from LZW stream.
+     * Refills input buffer from input stream (if available) and returns whether there are more bytes.
      */
-    private int getChar()
+    private boolean fillInput()
     {
-        int c = look;
+        if (_in == null)
+            return false;
+        try {
+            int len = _in.read(_bytes, 0, _bytes.length);
+            _pos = 0;
+            _end = Math.max(len, 0);
+            return len > 0;
+        }
+        catch (IOException e) {
+            throw new PDFException(e);
+        }
+    }
 
-        if (c == -1)
-            c = readLZWByte();
-        else look = -1;
+    /**
+     * A stream that decodes LZW codes a buffer at a time.
+     */
+    private static class LZWStream extends DecodeStreams.BufferedDecodeStream {
+
+        // The decoder
+        private DecodeLZW _decoder;
+
+        /**
+         * Creates a new LZWStream.
+         */
+        public LZWStream(DecodeLZW aDecoder)
+        {
+            super(aDecoder._in, TABLE_SIZE * 4);
+            _decoder = aDecoder;
+        }
 
-        return c;
+        /**
+         * Override to decode codes into buffer.
+         */
+        protected int fill()
+        {
+            if (_decoder.isDone())
+                return -1;
+            int len = _decoder.decodeCodes(_buf, 0);
+            return len > 0 ? len : -1;
+        }
     }
-
 }
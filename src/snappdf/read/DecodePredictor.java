@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snappdf.read;
+import java.util.Arrays;
+
+import snappdf.PDFException;
+
+/**
+ * Flate & LZW predictor algorithms.
+ * Predictors are simple algorithms performed on samples prior to compression in hopes of getting better compression
+ * ratios. These methods are called after lzw or flate decompression in order to undo the predictor. They work a row
+ * at a time and in place, so they can be used on a whole decoded buffer or on rows as they come from a stream.
+ */
+public class DecodePredictor {
+
+    // Constants for PNG predictor tags
+    public static final int PNG_NONE = 0;
+    public static final int PNG_SUB = 1;
+    public static final int PNG_UP = 2;
+    public static final int PNG_AVERAGE = 3;
+    public static final int PNG_PAETH = 4;
+
+    /**
+     * Returns whether given predictor is a PNG predictor (10-15).
+     */
+    public static boolean isPNG(int aPredictor)  { return aPredictor >= 10 && aPredictor <= 15; }
+
+    /**
+     * Returns whether given predictor is supported for given bits per sample (and complains if not).
+     */
+    public static boolean isSupported(int aPredictor, int theColors, int theBits)
+    {
+        if (aPredictor == 1 || isPNG(aPredictor))
+            return true;
+        if (aPredictor == 2) {
+            if (theBits == 1 || theBits == 2 || theBits == 4 || theBits == 8 || theBits == 16)
+                return true;
+            System.err.println("Predictor not yet implemented for this image configuration");
+            System.err.println(" bitspersample=" + theBits + ", samples per pixel=" + theColors);
+            return false;
+        }
+        System.err.println("Predictor algorithm #" + aPredictor + " not applied - image will look funny");
+        return false;
+    }
+
+    /**
+     * Returns the number of bytes in a decoded row.
+     */
+    public static int getBytesPerRow(int theColors, int theBits, int theColumns)
+    {
+        return (theColors * theBits * theColumns + 7) / 8;
+    }
+
+    /**
+     * Returns the bytes of given buffer with predictor undone. TIFF predictor is undone in place and the same buffer is
+     * returned. PNG rows are decoded in place and compacted over their tag bytes, then the buffer is trimmed.
+     */
+    public static byte[] decode(byte buffer[], int aPredictor, int theColors, int theBits, int theColumns)
+    {
+        // If no predictor or unsupported, just return buffer
+        if (aPredictor == 1 || !isSupported(aPredictor, theColors, theBits))
+            return buffer;
+
+        // If row size is empty or bogus (like /Colors or /Columns 0 or negative), just return buffer
+        int bytesPerRow = getBytesPerRow(theColors, theBits, theColumns);
+        if (theColors < 1 || theColumns < 1 || bytesPerRow <= 0) {
+            System.err.println("DecodePredictor.decode: Invalid colors/columns: " + theColors + "/" + theColumns);
+            return buffer;
+        }
+
+        // Handle TIFF Predictor 2: Decode each complete row in place
+        if (aPredictor == 2) {
+            for (int src = 0, srcMax = buffer.length - bytesPerRow; src <= srcMax; src += bytesPerRow)
+                decodeTIFFRow(buffer, src, bytesPerRow, theColors, theBits);
+            return buffer;
+        }
+
+        // Handle PNG: Each row is a tag byte and row bytes (last row may be incomplete). Since the decoded row always
+        // starts before its encoded bytes, a row can be decoded to its final location without clobbering input.
+        int bytesPerPixel = (theColors * theBits + 7) / 8;
+        int src = 0, dest = 0, length = buffer.length;
+        while (src < length) {
+            int tag = buffer[src++];
+            int len = Math.min(bytesPerRow, length - src);
+            int prev = dest > 0 ? dest - bytesPerRow : -1;
+            decodePNGRow(tag, buffer, src, buffer, dest, prev >= 0 ? buffer : null, prev, len, bytesPerPixel);
+            src += len;
+            dest += len;
+        }
+
+        // Return buffer trimmed to decoded length
+        return Arrays.copyOf(buffer, dest);
+    }
+
+    /**
+     * Decodes a PNG predicted row from given source bytes into given destination bytes, using given previous decoded
+     * row (or null for first row). Source and destination can be the same array, if destination is not after source.
+     */
+    public static void decodePNGRow(int aTag, byte src[], int srcOff, byte dst[], int dstOff, byte prev[], int prevOff,
+        int aLength, int bpp)
+    {
+        // On first row, Up is None, Average is half of left and Paeth is Sub (since above and above left are zero)
+        if (prev == null) {
+            if (aTag == PNG_UP) aTag = PNG_NONE;
+            else if (aTag == PNG_PAETH) aTag = PNG_SUB;
+        }
+
+        // Get count of leading bytes that have no left pixel
+        int lead = Math.min(bpp, aLength);
+
+        switch (aTag) {
+
+            // None: Just copy
+            case PNG_NONE:
+                if (src != dst || srcOff != dstOff)
+                    System.arraycopy(src, srcOff, dst, dstOff, aLength);
+                break;
+
+            // Sub: Add left
+            case PNG_SUB:
+                for (int i = 0; i < lead; i++)
+                    dst[dstOff + i] = src[srcOff + i];
+                for (int i = lead; i < aLength; i++)
+                    dst[dstOff + i] = (byte) (src[srcOff + i] + dst[dstOff + i - bpp]);
+                break;
+
+            // Up: Add above
+            case PNG_UP:
+                for (int i = 0; i < aLength; i++)
+                    dst[dstOff + i] = (byte) (src[srcOff + i] + prev[prevOff + i]);
+                break;
+
+            // Average: Add average of left and above (unsigned)
+            case PNG_AVERAGE:
+                if (prev == null) {
+                    for (int i = 0; i < lead; i++)
+                        dst[dstOff + i] = src[srcOff + i];
+                    for (int i = lead; i < aLength; i++)
+                        dst[dstOff + i] = (byte) (src[srcOff + i] + ((dst[dstOff + i - bpp] & 0xff) >> 1));
+                    break;
+                }
+                for (int i = 0; i < lead; i++)
+                    dst[dstOff + i] = (byte) (src[srcOff + i] + ((prev[prevOff + i] & 0xff) >> 1));
+                for (int i = lead; i < aLength; i++) {
+                    int left = dst[dstOff + i - bpp] & 0xff, above = prev[prevOff + i] & 0xff;
+                    dst[dstOff + i] = (byte) (src[srcOff + i] + ((left + above) >> 1));
+                }
+                break;
+
+            // Paeth: Add whichever of left, above or above left is closest to (left + above - above left)
+            case PNG_PAETH:
+                for (int i = 0; i < lead; i++)
+                    dst[dstOff + i] = (byte) (src[srcOff + i] + prev[prevOff + i]);
+                for (int i = lead; i < aLength; i++) {
+                    int left = dst[dstOff + i - bpp] & 0xff, above = prev[prevOff + i] & 0xff;
+                    int aboveLeft = prev[prevOff + i - bpp] & 0xff;
+                    int pa = Math.abs(above - aboveLeft), pb = Math.abs(left - aboveLeft);
+                    int pc = Math.abs(left + above - aboveLeft - aboveLeft);
+                    int pr = pa <= pb && pa <= pc ? left : pb <= pc ? above : aboveLeft;
+                    dst[dstOff + i] = (byte) (src[srcOff + i] + pr);
+                }
+                break;
+
+            // Complain about anything else
+            default: throw new PDFException("Illegal value for PNG predictor tag");
+        }
+    }
+
+    /**
+     * Decodes a TIFF Predictor 2 row in place. Each sample is actually a distance from the same sample of the pixel to
+     * its left, which makes rows of the same color collapse into zeros. Samples are 1, 2, 4, 8 or 16 bits.
+     */
+    public static void decodeTIFFRow(byte row[], int anOffset, int aLength, int theColors, int theBits)
+    {
+        switch (theBits) {
+
+            // Handle 8 bit: Add byte of pixel to left
+            case 8:
+                for (int i = anOffset + theColors, iMax = anOffset + aLength; i < iMax; i++)
+                    row[i] += row[i - theColors];
+                break;
+
+            // Handle 16 bit: Add big-endian sample of pixel to left
+            case 16: {
+                int stride = theColors * 2;
+                for (int i = anOffset + stride, iMax = anOffset + aLength - 1; i < iMax; i += 2) {
+                    int left = (row[i - stride] & 0xff) << 8 | row[i - stride + 1] & 0xff;
+                    int sample = ((row[i] & 0xff) << 8 | row[i + 1] & 0xff) + left;
+                    row[i] = (byte) (sample >> 8);
+                    row[i + 1] = (byte) sample;
+                }
+                break;
+            }
+
+            // Handle 1, 2, 4 bit: Add packed sample of pixel to left (modulo sample size)
+            default: {
+                int mask = (1 << theBits) - 1;
+                int sampleCount = aLength * 8 / theBits;
+                for (int i = theColors; i < sampleCount; i++) {
+                    int bitIndex = i * theBits, leftIndex = bitIndex - theColors * theBits;
+                    int byteIndex = anOffset + (bitIndex >> 3), shift = 8 - theBits - (bitIndex & 7);
+                    int left = row[anOffset + (leftIndex >> 3)] >> (8 - theBits - (leftIndex & 7)) & mask;
+                    int sample = (row[byteIndex] >> shift) + left & mask;
+                    row[byteIndex] = (byte) (row[byteIndex] & ~(mask << shift) | sample << shift);
+                }
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snappdf.read;
+import java.io.*;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import snappdf.PDFException;
+import snappdf.PDFUtils;
+
+/**
+ * Streaming versions of the PDF decode filters. Each filter is an InputStream that decodes from the previous stage
+ * with small buffers, so a chain of filters never holds a full copy of the encoded or intermediate data.
+ */
+public class DecodeStreams {
+
+    /**
+     * Returns an input stream that decodes given input stream with given filter (/FlateDecode, /LZW, etc.).
+     */
+    public static InputStream getDecodeStream(InputStream anIn, String aFilter, Map params)
+    {
+        InputStream in;
+
+        // Handle FlateDecode
+        if (aFilter.equals("/FlateDecode"))
+            in = new FlateStream(anIn);
+
+        // Handle LZW
+        else if (aFilter.equals("/LZWDecode") || aFilter.equals("/LZW")) {
+            Object obj = params != null ? params.get("EarlyChange") : null;
+            int early = obj instanceof Number ? ((Number) obj).intValue() : 1;
+            in = DecodeLZW.getInputStream(anIn, early);
+        }
+
+        // Handle CCITTFaxDecode: Compressed data is read up front (decoder needs random access), rows decode on demand
+        else if (aFilter.equals("/CCITTFaxDecode")) {
+            byte bytes[] = readAllBytes(anIn);
+            in = DecodeCCITTFax.createDecoder(params, bytes, 0, bytes.length).getInputStream();
+        }
+
+        // Handle ASCII85
+        else if (aFilter.equals("/ASCII85Decode"))
+            in = new ASCII85Stream(anIn);
+
+        // Handle ASCIIHex
+        else if (aFilter.equals("/ASCIIHexDecode"))
+            in = new ASCIIHexStream(anIn);
+
+        // Handle Crypt (stream was already decrypted as first stage of decoding)
+        else if (aFilter.equals("/Crypt"))
+            return anIn;
+
+        // Complain if unsupported Decode
+        else {
+            System.err.println("Decompression type " + aFilter + " not yet supported.");
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        // Apply predictor
+        return getPredictorStream(in, params);
+    }
+
+    /**
+     * Returns an input stream that undoes the Flate & LZW predictor given in filter params (or given stream if none).
+     */
+    public static InputStream getPredictorStream(InputStream anIn, Map params)
+    {
+        // Get predictor parameters
+        Object obj = params != null ? params.get("Predictor") : null;
+        int predictor = obj instanceof Number ? ((Number) obj).intValue() : 1;
+        if (predictor == 1)
+            return anIn;
+        int columns = getInt(params, "Columns", 1);
+        int colors = getInt(params, "Colors", 1);
+        int bits = getInt(params, "BitsPerComponent", 8);
+
+        // Return PredictorStream
+        return new PredictorStream(anIn, predictor, colors, bits, columns);
+    }
+
+    /**
+     * Reads all bytes from given stream and closes it.
+     */
+    public static byte[] readAllBytes(InputStream anIn)
+    {
+        return readAllBytes(anIn, -1);
+    }
+
+    /**
+     * Reads all bytes from given stream and closes it, reading directly into an array of given expected size if known.
+     */
+    public static byte[] readAllBytes(InputStream anIn, int aSizeHint)
+    {
+        try (InputStream in = anIn) {
+
+            // If no size hint, just read all bytes
+            if (aSizeHint <= 0)
+                return in.readAllBytes();
+
+            // Read into array of hinted size - if stream has more, append remainder
+            byte bytes[] = new byte[aSizeHint];
+            int count = in.readNBytes(bytes, 0, bytes.length);
+            if (count < bytes.length)
+                return Arrays.copyOf(bytes, count);
+            byte more[] = in.readAllBytes();
+            if (more.length == 0)
+                return bytes;
+            bytes = Arrays.copyOf(bytes, count + more.length);
+            System.arraycopy(more, 0, bytes, count, more.length);
+            return bytes;
+        }
+        catch (IOException e) {
+            throw new PDFException(e);
+        }
+    }
+
+    /**
+     * Returns an int value from given params dict, or default value if not found.
+     */
+    private static int getInt(Map params, String aKey, int aDefault)
+    {
+        Object obj = params.get(aKey);
+        return obj instanceof Number ? ((Number) obj).intValue() : aDefault;
+    }
+
+    /**
+     * An InflaterInputStream that uses a pooled Inflater and returns it to the pool when closed.
+     */
+    private static class FlateStream extends InflaterInputStream {
+
+        // The number of bytes inflated and whether data ended early or was damaged
+        private long _count;
+        private boolean _ended;
+
+        /**
+         * Creates a new FlateStream.
+         */
+        public FlateStream(InputStream anIn)
+        {
+            super(anIn, PDFUtils.getInflater(), 4096);
+        }
+
+        /**
+         * Override to decode truncated or damaged data leniently (like PDFUtils.bytesForFlate()): the bytes inflated
+         * before the end or damage are returned, followed by end of stream.
+         */
+        public int read(byte theBytes[], int anOffset, int aLength) throws IOException
+        {
+            if (_ended) return -1;
+            try {
+                int len = super.read(theBytes, anOffset, aLength);
+                if (len > 0) _count += len;
+                return len;
+            }
+
+            // Handle truncated data: Just end stream
+            catch (EOFException e) {
+                _ended = true;
+                return -1;
+            }
+
+            // Handle damaged data: Complain and end stream
+            catch (ZipException e) {
+                System.err.println("DecodeStreams: Damaged Flate data (keeping " + _count + " bytes): " + e);
+                _ended = true;
+                return -1;
+            }
+        }
+
+        /**
+         * Override to return inflater to pool.
+         */
+        public void close() throws IOException
+        {
+            if (inf == null) return;
+            super.close();
+            PDFUtils.releaseInflater(inf);
+            inf = null;
+        }
+    }
+
+    /**
+     * An InputStream that decodes from an input stream into an internal buffer, one chunk at a time.
+     */
+    public static abstract class BufferedDecodeStream extends InputStream {
+
+        // The input stream
+        protected InputStream _in;
+
+        // The decoded bytes buffer, read position and length
+        protected byte _buf[];
+        protected int _bufPos, _bufLen;
+
+        // Whether end of decoded data has been reached
+        private boolean _eof;
+
+        /**
+         * Creates a new BufferedDecodeStream.
+         */
+        public BufferedDecodeStream(InputStream anIn, int aBufSize)
+        {
+            _in = anIn;
+            _buf = new byte[aBufSize];
+        }
+
+        /**
+         * Decodes the next chunk into buffer from start and returns the number of bytes decoded (or -1 at end).
+         */
+        protected abstract int fill() throws IOException;
+
+        /**
+         * Makes sure buffer has bytes available and returns false at end.
+         */
+        private boolean ensureBytes() throws IOException
+        {
+            while (_bufPos >= _bufLen) {
+                if (_eof) return false;
+                int len = fill();
+                if (len < 0) {
+                    _eof = true;
+                    return false;
+                }
+                _bufPos = 0;
+                _bufLen = len;
+            }
+            return true;
+        }
+
+        /**
+         * Override to read from buffer.
+         */
+        public int read() throws IOException
+        {
+            return ensureBytes() ? _buf[_bufPos++] & 0xff : -1;
+        }
+
+        /**
+         * Override to read from buffer.
+         */
+        public int read(byte theBytes[], int anOffset, int aLength) throws IOException
+        {
+            if (aLength == 0) return 0;
+            if (!ensureBytes()) return -1;
+            int len = Math.min(aLength, _bufLen - _bufPos);
+            System.arraycopy(_buf, _bufPos, theBytes, anOffset, len);
+            _bufPos += len;
+            return len;
+        }
+
+        /**
+         * Override to close input stream.
+         */
+        public void close() throws IOException
+        {
+            _in.close();
+        }
+    }
+
+    /**
+     * An ASCII85 decode stream.
+     */
+    private static class ASCII85Stream extends BufferedDecodeStream {
+
+        // The raw input chunk (each input byte decodes to at most 4 bytes, for 'z')
+        private byte _inBuf[] = new byte[1024];
+
+        // The current group value and number of digits in group
+        private int _decode, _matchlen;
+
+        // Whether EOD marker has been found
+        private boolean _done;
+
+        /**
+         * Creates a new ASCII85Stream.
+         */
+        public ASCII85Stream(InputStream anIn)
+        {
+            super(anIn, 1024 * 4 + 4);
+        }
+
+        /**
+         * Override to decode next chunk.
+         */
+        protected int fill() throws IOException
+        {
+            if (_done) return -1;
+            int inLen = _in.read(_inBuf, 0, _inBuf.length);
+            int out = 0;
+
+            // Handle end of input without EOD marker
+            if (inLen < 0)
+                return finish(0);
+
+            for (int i = 0; i < inLen; i++) {
+                byte c = _inBuf[i];
+
+                // Skip whitespace
+                if ((c == ' ') || (c == '\t') || (c == '\n') || (c == '\r') || (c == '\f'))
+                    continue;
+
+                // Valid ascii85 char: 5 bytes interpreted as 5 base-85 digits
+                if ((c >= '!') && (c <= 'u')) {
+                    _decode = _decode * 85 + c - '!';
+                    if (++_matchlen == 5) {
+                        _buf[out++] = (byte) (_decode >> 24);
+                        _buf[out++] = (byte) (_decode >> 16);
+                        _buf[out++] = (byte) (_decode >> 8);
+                        _buf[out++] = (byte) _decode;
+                        _decode = 0;
+                        _matchlen = 0;
+                    }
+                }
+
+                // z is shorthand for 4 zero bytes
+                else if ((c == 'z') && (_matchlen == 0)) {
+                    for (int j = 0; j < 4; j++) _buf[out++] = 0;
+                }
+
+                // ~ is the start of the EOD marker
+                else if (c == '~')
+                    return finish(out);
+
+                else throw new PDFException("Illegal character in ASCII85 stream");
+            }
+            return out;
+        }
+
+        /**
+         * Writes the final partial group and marks stream done.
+         */
+        private int finish(int out)
+        {
+            _done = true;
+            if (_matchlen == 1)
+                throw new PDFException("wrong number of characters in ASCII85 stream");
+
+            // Final partial group digits are the high digits, with a 1 added to the least significant digit
+            if (_matchlen > 0) {
+                int decode = _decode + 1;
+                for (int i = _matchlen; i < 5; ++i)
+                    decode *= 85;
+                for (int i = 0; i < _matchlen - 1; ++i)
+                    _buf[out++] = (byte) (decode >> ((3 - i) * 8));
+            }
+            return out > 0 ? out : -1;
+        }
+    }
+
+    /**
+     * An ASCIIHex decode stream.
+     */
+    private static class ASCIIHexStream extends BufferedDecodeStream {
+
+        // The raw input chunk
+        private byte _inBuf[] = new byte[4096];
+
+        // The current byte value and number of nibbles
+        private int _decode, _matchlen;
+
+        // Whether EOD marker has been found
+        private boolean _done;
+
+        /**
+         * Creates a new ASCIIHexStream.
+         */
+        public ASCIIHexStream(InputStream anIn)
+        {
+            super(anIn, 4096 / 2 + 1);
+        }
+
+        /**
+         * Override to decode next chunk.
+         */
+        protected int fill() throws IOException
+        {
+            if (_done) return -1;
+            int inLen = _in.read(_inBuf, 0, _inBuf.length);
+            int out = 0;
+
+            // Handle end of input without EOD marker
+            if (inLen < 0)
+                return finish(0);
+
+            for (int i = 0; i < inLen; i++) {
+                byte c = _inBuf[i];
+                int nibble;
+
+                // Skip whitespace
+                if ((c == ' ') || (c == '\t') || (c == '\n') || (c == '\r') || (c == '\f'))
+                    continue;
+
+                if ((c >= 'a') && (c <= 'f'))
+                    nibble = c - 'a' + 10;
+                else if ((c >= 'A') && (c <= 'F'))
+                    nibble = c - 'A' + 10;
+                else if ((c >= '0') && (c <= '9'))
+                    nibble = c - '0';
+                else if (c == '>')
+                    return finish(out);
+                else throw new PDFException("Illegal character in ASCIIHex stream");
+
+                _decode = (_decode << 4) | nibble;
+                if (++_matchlen == 2) {
+                    _buf[out++] = (byte) _decode;
+                    _decode = 0;
+                    _matchlen = 0;
+                }
+            }
+            return out;
+        }
+
+        /**
+         * Writes the final odd nibble (as a zero byte, like the buffer decoder) and marks stream done.
+         */
+        private int finish(int out)
+        {
+            _done = true;
+            if (_matchlen == 1)
+                _buf[out++] = 0;
+            return out > 0 ? out : -1;
+        }
+    }
+
+    /**
+     * A stream that undoes Flate & LZW predictors one row at a time. PNG predictors select the algorithm per row with
+     * a leading tag byte and work on bytes, TIFF predictor 2 works on samples.
+     */
+    private static class PredictorStream extends BufferedDecodeStream {
+
+        // The predictor, colors (samples per pixel), bits per sample, bytes per pixel (rounded up) and bytes per row
+        private int _predictor, _colors, _bitsPerSample, _bytesPerPixel, _bytesPerRow;
+
+        // Whether predictor is supported
+        private boolean _supported;
+
+        // The previous row (for PNG predictors)
+        private byte _prevRow[];
+
+        // The row index
+        private int _row;
+
+        /**
+         * Creates a new PredictorStream.
+         */
+        public PredictorStream(InputStream anIn, int aPredictor, int theColors, int theBits, int theColumns)
+        {
+            super(anIn, Math.max(DecodePredictor.getBytesPerRow(theColors, theBits, theColumns), 1));
+            _predictor = aPredictor;
+            _colors = theColors;
+            _bitsPerSample = theBits;
+            _bytesPerPixel = (theColors * theBits + 7) / 8;
+            _bytesPerRow = _buf.length;
+            _prevRow = new byte[_bytesPerRow];
+            _supported = DecodePredictor.isSupported(aPredictor, theColors, theBits);
+        }
+
+        /**
+         * Override to decode next row.
+         */
+        protected int fill() throws IOException
+        {
+            // Handle PNG: Read tag byte and row (last row may be incomplete), decode row in place and copy to prev row
+            if (DecodePredictor.isPNG(_predictor)) {
+                int tag = _in.read();
+                if (tag < 0) return -1;
+                int len = _in.readNBytes(_buf, 0, _bytesPerRow);
+                byte prev[] = _row > 0 ? _prevRow : null;
+                DecodePredictor.decodePNGRow(tag, _buf, 0, _buf, 0, prev, 0, len, _bytesPerPixel);
+                System.arraycopy(_buf, 0, _prevRow, 0, len);
+                _row++;
+                return len;
+            }
+
+            // Handle TIFF predictor 2 and others: Read row and decode in place (if complete row)
+            int len = _in.readNBytes(_buf, 0, _bytesPerRow);
+            if (len <= 0) return -1;
+            if (_predictor == 2 && _supported && len == _bytesPerRow)
+                DecodePredictor.decodeTIFFRow(_buf, 0, len, _colors, _bitsPerSample);
+            return len;
+        }
+    }
+}
@@ -86,13 +86,10 @@ public class PDFColorSpace {
         else if (csobj instanceof List) {
             cslist = (List) csobj;
             // The usual format is [/SpaceName obj1 obj2...]
-            // We do color space cacheing by adding the colorspace as the last object in the list.
-            // The normal map cacheing strategy is to add an element with key _rbcached_..., but Adobe, in their inifinite
-            // wisdom, decided that color spaces should be arrays instead of dictionaries, like everything else.
-            // TODO:  Make sure not to export this extra element when saving pdf
-            Object cachedObj = cslist.get(cslist.size() - 1);
-            if (cachedObj instanceof ColorSpace)
-                return (ColorSpace) cachedObj;
+            // Color spaces are arrays instead of dictionaries, so they are cached by array in the file's cache.
+            ColorSpace cached = page.getFile().getColorSpaceCache().get(cslist);
+            if (cached != null)
+                return cached;
 
             String pdfName = ((String) cslist.get(0)).substring(1);
             params = cslist.size() > 1 ? page.getXRefObj(cslist.get(1)) : null;
@@ -175,7 +172,7 @@ public class PDFColorSpace {
 
         // Create ColorSpace, cache and return
         ColorSpace outerSpace = createColorSpace(type, params);
-        if (cslist != null) cslist.add(outerSpace);
+        if (cslist != null) page.getFile().getColorSpaceCache().put(cslist, outerSpace);
         return outerSpace;
     }
 
@@ -7,6 +7,7 @@ import java.util.Map;
 
 import snap.geom.Rect;
 import snap.geom.Transform;
+import snappdf.PDFArray;
 import snappdf.PDFException;
 import snappdf.PDFFile;
 
@@ -42,6 +43,14 @@ public class PDFDictUtils {
      */
     public static Rect getRect(Map dictionary, PDFFile srcFile, String key)
     {
+        // If numeric array of 4, get rect straight from array
+        PDFArray array = getNumericArray(dictionary, srcFile, key);
+        if (array != null && array.size() == 4) {
+            double x0 = array.getDouble(0), y0 = array.getDouble(1);
+            return new Rect(x0, y0, array.getDouble(2) - x0, array.getDouble(3) - y0);
+        }
+
+        // Get rect from float array
         float rarray[] = getFloatArray(dictionary, srcFile, key);
         if (rarray == null) return null;
         if (rarray.length != 4) throw new PDFException("Wrong number of elements in rectangle definition");
@@ -53,6 +62,13 @@ public class PDFDictUtils {
      */
     public static Transform getTransform(Map dictionary, PDFFile srcFile, String key)
     {
+        // If numeric array of 6, get transform straight from array
+        PDFArray array = getNumericArray(dictionary, srcFile, key);
+        if (array != null && array.size() == 6)
+            return new Transform(array.getDouble(0), array.getDouble(1), array.getDouble(2), array.getDouble(3),
+                    array.getDouble(4), array.getDouble(5));
+
+        // Get transform from float array
         float marray[] = getFloatArray(dictionary, srcFile, key);
         if (marray == null) return null; // It probably would be safe to return the identity matrix here
         if (marray.length != 6) throw new PDFException("Wrong number of elements in matrix definition");
@@ -93,6 +109,10 @@ public class PDFDictUtils {
         if (srcFile != null)
             val = srcFile.getXRefObj(val);
 
+        // If numeric PDFArray, just return its ints
+        if (val instanceof PDFArray && ((PDFArray) val).isNumeric())
+            return ((PDFArray) val).size() > 0 ? ((PDFArray) val).getIntArray() : null;
+
         if (val == null) return null;
         if (!(val instanceof List)) throw new PDFException("Parameter \"" + key + "\" is not an array");
         List vlist = (List) val;
@@ -117,6 +137,10 @@ public class PDFDictUtils {
         if (srcFile != null)
             val = srcFile.getXRefObj(val);
 
+        // If numeric PDFArray, just return its floats
+        if (val instanceof PDFArray && ((PDFArray) val).isNumeric())
+            return ((PDFArray) val).size() > 0 ? ((PDFArray) val).getFloatArray() : null;
+
         if (val == null) return null;
         if (!(val instanceof List)) throw new PDFException("Parameter \"" + key + "\" is not an array");
         List vlist = (List) val;
@@ -131,4 +155,14 @@ public class PDFDictUtils {
         return farray;
     }
 
+    /**
+     * Returns the numeric PDFArray for given dictionary and key (or null if value isn't one).
+     */
+    private static PDFArray getNumericArray(Map dictionary, PDFFile srcFile, String key)
+    {
+        Object val = dictionary.get(key);
+        if (srcFile != null)
+            val = srcFile.getXRefObj(val);
+        return val instanceof PDFArray && ((PDFArray) val).isNumeric() ? (PDFArray) val : null;
+    }
 }
\ No newline at end of file
@@ -34,7 +34,7 @@ public class PDFFont {
         if (fontDict == null) return getDefaultFont();
 
         // First check to see if we've created & cached the font already
-        Font awtFont = (Font) fontDict.get("_rbcached_awtfont_");
+        Font awtFont = srcfile.getFontCache().get(fontDict);
         if (awtFont != null)
             return awtFont;
 
@@ -95,7 +95,7 @@ public class PDFFont {
         }
 
         // cache it
-        fontDict.put("_rbcached_awtfont_", awtFont);
+        srcfile.getFontCache().put(fontDict, awtFont);
         return awtFont;
     }
 
@@ -149,7 +149,7 @@ public class PDFFont {
     public static GlyphMapper getGlyphMapper(Map fontDict, PDFFile srcfile)
     {
         // Check if we did it already
-        GlyphMapper mapper = (GlyphMapper) fontDict.get("_rbcached_glyphmapper_");
+        GlyphMapper mapper = srcfile.getGlyphMapperCache().get(fontDict);
         if (mapper != null)
             return mapper;
 
@@ -160,7 +160,7 @@ public class PDFFont {
             mapper.setCIDToGIDMap(srcfile.getXRefObj(child.get("CIDToGIDMap")));
         }
 
-        fontDict.put("_rbcached_glyphmapper_", mapper);
+        srcfile.getGlyphMapperCache().put(fontDict, mapper);
         return mapper;
     }
 
@@ -190,7 +190,7 @@ public class PDFFont {
      */
     public static Object getGlyphWidths(Map fontDict, PDFFile srcfile, PDFPagePainter aPntr)
     {
-        Object obj = fontDict.get("_rbcached_glyphwidths_");
+        Object obj = srcfile.getGlyphWidthsCache().get(fontDict);
         if (obj != null)
             return obj;
 
@@ -254,7 +254,7 @@ public class PDFFont {
         }
 
         // cache it
-        fontDict.put("_rbcached_glyphwidths_", obj);
+        srcfile.getGlyphWidthsCache().put(fontDict, obj);
         return obj;
     }
 
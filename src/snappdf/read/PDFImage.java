@@ -22,7 +22,8 @@ public class PDFImage {
     {
         // First check to see if we've done this already
         Map imageDict = imageStream.getDict();
-        Image image = (Image) imageDict.get("_rbcached_awtimage_");
+        PDFObjectCache<Image> imageCache = srcfile.getImageCache();
+        Image image = imageCache.get(imageStream);
         if (image != null)
             return image;
 
@@ -43,7 +44,7 @@ public class PDFImage {
 
         if (imageStream.usesFilter("/DCTDecode")) {
             image = getDCTImage(imageStream);
-            imageDict.put("_rbcached_awtimage_", image);
+            imageCache.put(imageStream, image);
             return image;
         }
 
@@ -87,9 +88,14 @@ public class PDFImage {
         //   3. what happens if the colorspace is a pattern or shading?  would need clip path.
         if (isMask || bpc == 1) {
 
-            // For enormous monochrome images, use image producer that renders image in strips (see RM14)
-            //if(w*h>4*1024*1024 && imageStream.usesFilter("/CCITTFaxDecode")) {
-            //    awtImage = getCCITTFaxDecodeImage(imageStream,w,h); return awtImage; }
+            // For enormous monochrome images, decode CCITTFax rows in bands straight into a packed image (see RM14)
+            if (w * h > 4 * 1024 * 1024 && alphaMask == null && imageStream.usesFilter("/CCITTFaxDecode")) {
+                image = getCCITTFaxDecodeImage(imageStream, w, h, isMask);
+                if (image != null) {
+                    imageCache.put(imageStream, image);
+                    return image;
+                }
+            }
 
             //current color and alpha for mask, black and white for image
             byte clut[] = isMask ? new byte[]{0, 0, 0, -1, -1, -1, -1, 0} : new byte[]{0, 0, 0, -1, -1, -1};
@@ -114,15 +120,9 @@ public class PDFImage {
             return null;
         }
 
-        // For image masks, check to see if filter already expanded the data out to 8bpp. If not, do it now.
-        if (expandBitmap) {
-            if (w * h != streamBytes.length)
-                streamBytes = expandBitmapBits(streamBytes, w, h);
-                // if w & h are both 1, bit count equals byte count regardless of whether we've exapanded them or not.
-                // So do it again right here just in case.
-            else if (w == 1 && h == 1)
-                streamBytes[0] = (byte) (streamBytes[0] & 1);
-        }
+        // For image masks and monochrome images, expand packed 1 bit rows (as all filters give them) out to 8bpp
+        if (expandBitmap)
+            streamBytes = expandBitmapBits(streamBytes, w, h);
 
         // Decode array (optional). The decode array tells you how to turn the bits of an individual
         // component sample into a float which would be valid in the colorspace.
@@ -170,7 +170,7 @@ public class PDFImage {
         }
 
         if (image != null)
-            imageDict.put("_rbcached_awtimage_", image);
+            imageCache.put(imageStream, image);
         return image;
     }
 
@@ -239,6 +239,59 @@ public class PDFImage {
         return expandedBytes;
     }
 
+    /**
+     * Returns a packed 1 bit per pixel image for an enormous CCITTFax monochrome image (or mask). Rows are decoded in
+     * bands straight into the image raster, so the image is never expanded out to 8bpp.
+     */
+    private static Image getCCITTFaxDecodeImage(PDFStream imageStream, int w, int h, boolean isMask)
+    {
+        // CCITTFaxDecode must be last filter - get bytes for filters before it and create decoder
+        int nfilters = imageStream.numFilters();
+        if (imageStream.indexOfFilter("/CCITTFaxDecode") != nfilters - 1)
+            return null;
+        byte bytes[] = imageStream.decodeStream(nfilters - 1);
+        Map params = imageStream.getFilterParameters("/CCITTFaxDecode");
+        DecodeCCITTFax decoder = DecodeCCITTFax.createDecoder(params, bytes, 0, bytes.length);
+        if (decoder.getWidth() != w)
+            return null;
+
+        // Get whether Decode array inverts samples
+        Object decode = imageStream.getDict().get("Decode");
+        boolean invert = decode instanceof List && !((List) decode).isEmpty() &&
+            ((List) decode).get(0) instanceof Number && ((Number) ((List) decode).get(0)).intValue() == 1;
+
+        // Create color model: For mask, 0 samples paint (black) and 1 samples are transparent. Otherwise, 0 is black.
+        byte off = 0, on = -1;
+        byte b0 = invert ? on : off, b1 = invert ? off : on;
+        byte gray[] = isMask ? new byte[2] : new byte[]{b0, b1};
+        IndexColorModel cmodel = isMask ? new IndexColorModel(1, 2, gray, gray, gray, new byte[]{b1, b0}) :
+            new IndexColorModel(1, 2, gray, gray, gray);
+
+        // Create packed image and get its data
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_BINARY, cmodel);
+        byte data[] = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int rowBytes = decoder.getBytesPerRow(), row = 0;
+
+        // Decode rows in bands straight into image data
+        try {
+            while (row < h) {
+                int count = decoder.decodeRows(data, row * rowBytes, Math.min(CCITT_BAND_ROWS, h - row));
+                if (count == 0) break;
+                row += count;
+            }
+        }
+        catch (PDFException e) {
+            System.err.println("Error decoding CCITTFax image stream: " + e);
+        }
+
+        // Fill any missing rows with white and return
+        Arrays.fill(data, row * rowBytes, data.length, decoder.blackIsOne() ? 0 : (byte) 0xff);
+        return image;
+    }
+
+    // The number of rows decoded at a time for enormous CCITTFax images
+    private static final int CCITT_BAND_ROWS = 256;
+
     /**
      * For DCTDecode images, try assuming the data is a valid jpeg stream and let awt read it.
      * TODO:  A big problem here is color spaces.  The awt version won't work for cmyk images that are dct encoded,
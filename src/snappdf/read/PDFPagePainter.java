@@ -122,9 +122,8 @@ public class PDFPagePainter {
 
         // Make sure PageBytes is set (if missing, get from Page)
         if (_pageBytes == null) {
-            PDFStream pstream = _page.getPageContentsStream();
-            if (pstream == null) return;
-            _pageBytes = pstream.decodeStream();
+            _pageBytes = _page.getPageContentsBytes();
+            if (_pageBytes == null) return;
         }
 
         // Make sure Tokens is set (if missing, get from PageBytes)
@@ -1268,30 +1267,29 @@ public class PDFPagePainter {
         if (xobjStream != null) {
             Map xobjDict = xobjStream.getDict();
 
-            // Check to see if we went through this already
-            Object cached = xobjDict.get("_rbcached_xobject_");
-            if (cached != null)
-                return cached;
-
             String type = (String) xobjDict.get("Subtype");
             if (type == null)
                 throw new PDFException("Unknown xobject type");
 
-            // Image XObject - pass it to the ImageFactory
+            // Image XObject - pass it to the ImageFactory (which caches images)
             if (type.equals("/Image")) {
                 // First check for a colorspace entry for the image, and create an awt colorspace.
                 Object space = _page.getXRefObj(xobjDict.get("ColorSpace"));
                 ColorSpace imageCSpace = space == null ? null : PDFColorSpace.getColorspace(space, _page);
-                cached = PDFImage.getImage(xobjStream, imageCSpace, _pfile);
+                Object image = PDFImage.getImage(xobjStream, imageCSpace, _pfile);
+                if (image != null)
+                    return image;
             }
 
-            // A PDFForm just saves the stream away for later parsing
-            else if (type.equals("/Form"))
-                cached = new PDFForm(xobjStream);
-
-            if (cached != null) {
-                xobjDict.put("_rbcached_xobject_", cached);
-                return cached;
+            // A PDFForm just saves the stream away for later parsing (check to see if we went through this already)
+            else if (type.equals("/Form")) {
+                PDFObjectCache<PDFForm> formCache = _pfile.getFormCache();
+                PDFForm form = formCache.get(xobjStream);
+                if (form == null) {
+                    form = new PDFForm(xobjStream);
+                    formCache.put(xobjStream, form);
+                }
+                return form;
             }
         }
 
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snappdf.read;
+import java.util.*;
+
+import snap.gfx.ColorSpace;
+import snappdf.*;
+
+/**
+ * Warms the file caches (fonts, glyph mappers, images and forms) with the resources of a page, so a page painter
+ * finds them already built. This is run on a background thread, so it works with its own PDFPage for the same page
+ * index (the resource stack of a page being painted is not shared across threads).
+ */
+public class PDFPagePrefetcher {
+
+    // The PDF file
+    private PDFFile _pfile;
+
+    // The private page used to look up named resources
+    private PDFPage _page;
+
+    // The resource dicts already visited (forms can share or nest resources)
+    private Set<Object> _visited = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Constant for max form nesting depth
+    private static final int MAX_FORM_DEPTH = 8;
+
+    /**
+     * Creates a new PDFPagePrefetcher for given file and page index.
+     */
+    public PDFPagePrefetcher(PDFFile aFile, int aPageIndex)
+    {
+        _pfile = aFile;
+        _page = new PDFPage(aFile, aPageIndex);
+    }
+
+    /**
+     * Builds the fonts, glyph mappers, images and forms used by page resources (and resources of forms, recursively).
+     */
+    public void prefetch()
+    {
+        prefetchResources(_pfile.getXRefObj(_page.getPageResources()), 0);
+    }
+
+    /**
+     * Builds the fonts and xobjects in given resources dict.
+     */
+    private void prefetchResources(Object theResources, int aDepth)
+    {
+        if (!(theResources instanceof Map) || !_visited.add(theResources)) return;
+        Map resources = (Map) theResources;
+
+        // Build fonts
+        Object fonts = _pfile.getXRefObj(resources.get("Font"));
+        if (fonts instanceof Map) {
+            for (Object font : ((Map) fonts).values()) {
+                Object fontDict = _pfile.getXRefObj(font);
+                if (fontDict instanceof Map)
+                    prefetchFont((Map) fontDict);
+            }
+        }
+
+        // Build xobjects
+        Object xobjects = _pfile.getXRefObj(resources.get("XObject"));
+        if (xobjects instanceof Map) {
+            for (Object xobj : ((Map) xobjects).values()) {
+                Object xobjStream = _pfile.getXRefObj(xobj);
+                if (xobjStream instanceof PDFStream)
+                    prefetchXObject((PDFStream) xobjStream, aDepth);
+            }
+        }
+    }
+
+    /**
+     * Builds the font and glyph mapper for given font dict.
+     */
+    private void prefetchFont(Map aFontDict)
+    {
+        try {
+            PDFFont.getFont(aFontDict, _pfile);
+            PDFFont.getGlyphMapper(aFontDict, _pfile);
+        }
+        catch (Exception | PDFException e) {
+            System.err.println("PDFPagePrefetcher: Failed to prefetch font " + aFontDict.get("BaseFont") + ": " + e);
+        }
+    }
+
+    /**
+     * Builds the image or form for given xobject stream.
+     */
+    private void prefetchXObject(PDFStream xobjStream, int aDepth)
+    {
+        Map xobjDict = xobjStream.getDict();
+        Object type = xobjDict.get("Subtype");
+
+        // Handle image: Get color space (as painter does) and build image
+        if ("/Image".equals(type)) {
+            try {
+                Object space = _page.getXRefObj(xobjDict.get("ColorSpace"));
+                ColorSpace imageCSpace = space == null ? null : PDFColorSpace.getColorspace(space, _page);
+                PDFImage.getImage(xobjStream, imageCSpace, _pfile);
+            }
+            catch (Exception | PDFException e) {
+                System.err.println("PDFPagePrefetcher: Failed to prefetch image: " + e);
+            }
+        }
+
+        // Handle form: Build form and prefetch form resources (with form resources on top of resource stack)
+        else if ("/Form".equals(type) && aDepth < MAX_FORM_DEPTH) {
+            PDFObjectCache<PDFForm> formCache = _pfile.getFormCache();
+            if (formCache.get(xobjStream) == null)
+                formCache.put(xobjStream, new PDFForm(xobjStream));
+            Object formResources = _pfile.getXRefObj(xobjDict.get("Resources"));
+            if (formResources instanceof Map) {
+                _page.pushResources((Map) formResources);
+                try { prefetchResources(formResources, aDepth + 1); }
+                finally { _page.popResources(); }
+            }
+        }
+    }
+}
@@ -53,7 +53,7 @@ public class PDFWriterPDF {
             dict.putAll(writerPageContentsDict);
 
             // Now create the form stream object and dump it to writer
-            PDFStream formStream = new PDFStream(readerPageContentsStream.getBytes(), dict);
+            PDFStream formStream = new PDFStream(readerPageContentsStream, dict);
             aWriter.writeStream(formStream);
 
             // Everything is wrapped in parse exception handler, complain if thrown
@@ -89,7 +89,7 @@ public class PDFWriterPDF {
         else if (anObj instanceof PDFStream) {
             PDFStream readerStream = (PDFStream) anObj;
             Map writerDictionary = (Map) addObjectToWriter(aWriter, pFile, readerStream.getDict());
-            local = new PDFStream(readerStream.getBytes(), writerDictionary);
+            local = new PDFStream(readerStream, writerDictionary);
         }
 
         // Handle map: add map values and return new map with new values